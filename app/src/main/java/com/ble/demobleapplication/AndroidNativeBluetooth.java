@@ -2,9 +2,6 @@ package com.ble.demobleapplication;
 
 import static android.bluetooth.BluetoothGatt.GATT_SUCCESS;
 import static android.bluetooth.BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE;
-import static android.bluetooth.BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
-import static android.bluetooth.BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
-import static androidx.constraintlayout.helper.widget.MotionEffect.TAG;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -20,23 +17,25 @@ import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.Handler;
-import android.os.Looper;
 import android.os.ParcelUuid;
-import android.util.Log;
 
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class AndroidNativeBluetooth {
+    private static final BleLog LOG = BleLog.NATIVE;
+    // Scan results and per-packet records are rate limited
+    private static final BleLog SCAN_LOG = BleLog.SCAN.sampled(5);
+    private static final BleLog DATA_LOG = BleLog.DATA.sampled(10);
+    // Before API 33 the characteristic has no value until one has been read or received
+    private static final byte[] NO_VALUE = new byte[0];
+
     // Constants
     private static String CLIENT_UUID = "00002902-0000-1000-8000-00805f9b34fb";
 
@@ -48,19 +47,12 @@ public class AndroidNativeBluetooth {
     // State management specific
     private static boolean mScanning = false;
 
-    private static BluetoothGattService uart = null;
-    private static BluetoothGattCharacteristic rx = null;
-    private static BluetoothGattCharacteristic tx = null;
-    private static BluetoothGatt gatt = null;
     private static BluetoothManager bluetoothManager = null;
     private static BluetoothAdapter bluetoothAdapter = null;
     private static ScanCallback mScanCallback = null;
     private static BluetoothLeScanner mBluetoothLeScanner = null;
     private static Handler mHandler = null;
     private static Context mContext = null;
-    private static BluetoothDevice mmDevice = null;
-
-    private static byte[] ioBuffer = null;
 
     //Holds discovered characteristics
     private static List<BluetoothGattCharacteristic> discoveredCharacteristics = null;
@@ -68,18 +60,14 @@ public class AndroidNativeBluetooth {
     //Holds the discovered devices
     private static List<String> deviceList = new ArrayList();
 
-    private static Boolean isBonded = false;
-
-    private static Queue<Runnable> commandQueue = new LinkedList<>();
-    private static boolean commandQueueBusy;
-    private static int retries = 0;
-    private static Handler bleHandler = new Handler(Looper.getMainLooper());
-    static BluetoothGatt bluetoothGatt = null;
-    static boolean isRetrying;
-
-    private static final int MAX_TRIES = 5;
+    // One session per connected peripheral, keyed by MAC address
+    private static final Map<String, GattSession> sessions = new ConcurrentHashMap<>();
+    private static final Handler bleHandler = GattThread.getHandler();
 
-    private static final String byteString = "7EA0210223F193730A81801405020500060205000704000000010804000000017F657E";
+    // HDLC addresses of the meter's management logical device and our client
+    private static final int HDLC_CLIENT_ADDRESS = 0x78;
+    private static final int HDLC_SERVER_ADDRESS = 0x91;
+    private static final int HDLC_SERVER_ADDRESS_LENGTH = 2;
 
     // -------------------------------------------------------- //
     // Callbacks for errors
@@ -110,81 +98,10 @@ public class AndroidNativeBluetooth {
 
     // Internal functions
 
-    private static void nextCommand() {
-        // If there is still a command being executed then bail out
-        if (commandQueueBusy) {
-            return;
-        }
-
-        // Check if we still have a valid gatt object
-        if (bluetoothGatt == null) {
-            Log.e(TAG, String.format("ERROR: GATT is 'null' for peripheral '%s', clearing command queue"));
-            commandQueue.clear();
-            commandQueueBusy = false;
-            return;
-        }
-
-        // Execute the next command in the queue
-        if (commandQueue.size() > 0) {
-            final Runnable bluetoothCommand = commandQueue.peek();
-            commandQueueBusy = true;
-            retries = 0;
-            bleHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        bluetoothCommand.run();
-                    } catch (Exception ex) {
-                        Log.e(TAG, String.format("ERROR: Command exception for device '%s'"), ex);
-                    }
-                }
-            });
-        }
-    }
-
-    private static void completedCommand() {
-        commandQueueBusy = false;
-        isRetrying = false;
-        commandQueue.poll();
-        nextCommand();
-    }
-
-    private static void retryCommand() {
-        commandQueueBusy = false;
-        Runnable currentCommand = commandQueue.peek();
-        if (currentCommand != null) {
-            if (retries >= MAX_TRIES) {
-                // Max retries reached, give up on this one and proceed
-                Log.v(TAG, "Max number of tries reached");
-                commandQueue.poll();
-            } else {
-                isRetrying = true;
-            }
-        }
-        nextCommand();
-    }
-
-    private static String bytesToHex(byte[] bytes) {
-        char[] hexArray = "0123456789ABCDEF".toCharArray();
-        char[] hexChars = new char[bytes.length * 2];
-
-        for (int j = 0; j < bytes.length; j++) {
-            int v = bytes[j] & 0xFF;
-            hexChars[j * 2] = hexArray[v >>> 4];
-            hexChars[j * 2 + 1] = hexArray[v & 0x0F];
-        }
-
-        return new String(hexChars).toUpperCase();
-    }
-
-    private static byte[] hexStringToByteArray(String s) {
-        int len = s.length();
-        byte[] data = new byte[len / 2];
-        for (int i = 0; i < len; i += 2) {
-            data[i / 2] = (byte) ((Character.digit(s.charAt(i), 16) << 4)
-                    + Character.digit(s.charAt(i + 1), 16));
-        }
-        return data;
+    private static GattSession getSession(BluetoothGatt gatt) {
+        // Every GATT callback resolves its session first, so this guards them all
+        GattThread.assertCurrent();
+        return sessions.get(gatt.getDevice().getAddress());
     }
 
     private static boolean isCharacteristicWritable(BluetoothGattCharacteristic pChar) {
@@ -210,7 +127,7 @@ public class AndroidNativeBluetooth {
 
     public AndroidNativeBluetooth(Context mContext) {
         if (mContext == null) {
-            System.out.println("WARNING: Context must not be null");
+            LOG.w("WARNING: Context must not be null");
             return;
         }
 
@@ -222,36 +139,36 @@ public class AndroidNativeBluetooth {
             bluetoothAdapter = bluetoothManager.getAdapter();
         }
 
-        System.out.println("SUCCESS: Created AndroidNativeBle object");
+        LOG.i("SUCCESS: Created AndroidNativeBle object");
     }
 
     // To be called from C/C++ code to set the scanning timeout
     public static void setTimeOut(String timeoutvalue) {
         scan_timeout = Long.parseLong(timeoutvalue);
-        System.out.println("INFO: Set timeout value: " + timeoutvalue);
+        LOG.i("INFO: Set timeout value: {}", timeoutvalue);
     }
 
     // To be called from C/C++ code to set the service UUID
     public static void setUUID(String uuidstr) {
         service_uuid_str = uuidstr;
-        System.out.println("INFO: Set UUID value: " + uuidstr);
+        LOG.i("INFO: Set UUID value: {}", uuidstr);
     }
 
     // To be called from C/C++ code to set the application context (cotext of Main Activty)
     public static void setContext(Context ctx) {
         if (ctx == null) {
-            System.out.println("ERROR: Context must not be null");
+            LOG.e("ERROR: Context must not be null");
             return;
         }
 
         mContext = ctx;
-        System.out.println("INFO: Context set by C++ caller");
+        LOG.i("INFO: Context set by C++ caller");
     }
 
     // To be called by C/C++ to start scanning
     public static void startScanning() {
         if (mContext == null) {
-            System.out.println("ERROR: Context must not be null");
+            LOG.e("ERROR: Context must not be null");
             return;
         }
 
@@ -264,16 +181,16 @@ public class AndroidNativeBluetooth {
         }
 
         if (service_uuid_str == null || service_uuid_str.isEmpty()) {
-            System.out.println("ERROR: UUID must not be blank/empty or null");
+            LOG.e("ERROR: UUID must not be blank/empty or null");
             return;
         }
 
         if (scan_timeout == -1) {
-            System.out.println("ERROR: Scan time out must not be -1");
+            LOG.e("ERROR: Scan time out must not be -1");
             return;
         }
 
-        System.out.println("INFO: Start scanning with service UUID " + service_uuid_str + " and millisecond timeout " + scan_timeout);
+        LOG.i("INFO: Start scanning with service UUID {} and millisecond timeout {}", service_uuid_str, scan_timeout);
 
         deviceList.clear();
 
@@ -309,7 +226,7 @@ public class AndroidNativeBluetooth {
 
     // To be called from C/C++ code to stop scanning
     public static void stopScanning() {
-        System.out.println("Stop scanning");
+        LOG.d("Stop scanning");
 
         if (mScanning && bluetoothAdapter != null && bluetoothAdapter.isEnabled() && mBluetoothLeScanner != null) {
             mBluetoothLeScanner.stopScan(mScanCallback);
@@ -335,13 +252,10 @@ public class AndroidNativeBluetooth {
                 return;
             }
 
-            System.out.println("INFO: processScanResult");
-
             deviceList.add(macAddress);
 
             int rssi = result.getRssi();
             String deviceName = result.getDevice().getName();
-            String rawData = bytesToHex(result.getScanRecord().getBytes());
 
             if (deviceName == null) {
                 deviceName = "Unknown Device";
@@ -349,11 +263,11 @@ public class AndroidNativeBluetooth {
 
             //deviceDiscovered(deviceName, macAddress, String.valueOf(rssi), rawData);
 
-            System.out.println("INFO: onScanResult: device Name " + deviceName);
-            System.out.println("INFO: onScanResult: rssi " + rssi);
-            System.out.println("INFO: onScanResult: mac address " + macAddress);
-            System.out.println("INFO: onScanResult: raw data length " + rawData.length());
-            System.out.println("INFO: onScanResult: raw data " + rawData);
+            SCAN_LOG.d("INFO: onScanResult: {} rssi {}", macAddress, rssi);
+            SCAN_LOG.v("INFO: onScanResult: device Name {}", deviceName);
+            if (SCAN_LOG.isLoggable(EventLog.Level.VERBOSE)) {
+                SCAN_LOG.v("INFO: onScanResult: raw data {}", HexCodec.toHex(result.getScanRecord().getBytes()));
+            }
         }
 
         @Override
@@ -374,20 +288,32 @@ public class AndroidNativeBluetooth {
         }
     }
 
-    public static final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+    // Registered with the BondStateDispatcher for the address of every session
+    private static final BondStateDispatcher.Listener mBondListener = new BondStateDispatcher.Listener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            System.out.println("INFO: BroadcastReceiver::onReceive()");
-            String action = intent.getAction();
-
-            if (BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(action)) {
-                if (mmDevice.getBondState() == BluetoothDevice.BOND_BONDED) {
-                    System.out.println("SUCCESS: Device Bonded");
-                    isBonded = true;
-                    mmDevice.connectGatt(mContext, false, mGattCallback);
-                }
+        public void onBondStateChanged(BluetoothDevice device, int bondState, int previousBondState) {
+            LOG.i("INFO: Bond state {} -> {}", previousBondState, bondState);
+            final GattSession session = sessions.get(device.getAddress());
+            if (session == null) {
+                return;
+            }
+            if (bondState == BluetoothDevice.BOND_BONDED) {
+                LOG.i("SUCCESS: Device Bonded");
+                session.setBonded(true);
+                // Tracked so a late disconnect of the handle used for pairing is told apart
+                session.setGatt(device.connectGatt(mContext, false, mGattCallback, BluetoothDevice.TRANSPORT_LE, BluetoothDevice.PHY_LE_1M_MASK, bleHandler));
             }
         }
+
+        @Override
+        public void onAclConnected(BluetoothDevice device) {
+            LOG.i("INFO: ACL connected to {}", device.getAddress());
+        }
+
+        @Override
+        public void onAclDisconnected(BluetoothDevice device) {
+            LOG.i("INFO: ACL disconnected from {}", device.getAddress());
+        }
     };
 
     // To be called from C/C++ code to connect to a peripheral
@@ -396,139 +322,194 @@ public class AndroidNativeBluetooth {
     public static void connect(String macAddress) {
         if (bluetoothManager == null) {
             bluetoothManager = (BluetoothManager) mContext.getSystemService(Context.BLUETOOTH_SERVICE);
-            System.out.println("WARNING: Bluetooth Manager was null");
+            LOG.w("WARNING: Bluetooth Manager was null");
         }
 
         if (bluetoothAdapter == null) {
             bluetoothAdapter = bluetoothManager.getAdapter();
-            System.out.println("INFO: Bluetooth Adapter was null");
+            LOG.i("INFO: Bluetooth Adapter was null");
         }
 
-        gatt = null;
-        rx = null;
-        tx = null;
-        uart = null;
-
         mac_address_str = macAddress;
-        System.out.println("INFO: Set MAC Address value for connection: " + mac_address_str);
-        mmDevice = bluetoothAdapter.getRemoteDevice(mac_address_str);
+        LOG.i("INFO: Set MAC Address value for connection: {}", mac_address_str);
+        BluetoothDevice mmDevice = bluetoothAdapter.getRemoteDevice(mac_address_str);
 
         if (mmDevice != null) {
-            System.out.println("INFO: Device is valid");
-            IntentFilter filter = new IntentFilter();
-            filter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
-            mContext.registerReceiver(mReceiver, filter);
-            gatt = mmDevice.connectGatt(mContext, false, mGattCallback);
+            LOG.i("INFO: Device is valid");
+            GattSession session = sessions.remove(mac_address_str);
+            if (session != null) {
+                session.close();
+            }
+            session = new GattSession(mmDevice, bleHandler);
+            session.getLinkTuner().setUse2MPhy(bluetoothAdapter.isLe2MPhySupported());
+            session.getHdlcDecoder().addFrameListener(new HdlcDecoder.FrameListener() {
+                @Override
+                public void onFrame(HdlcFrame frame) {
+                    DATA_LOG.d("Received frame {}", frame);
+                    //dataReceived(frame.toByteArray());
+                }
+            });
+            final GattSession hdlcSession = session;
+            final HdlcLink link = new HdlcLink(HDLC_CLIENT_ADDRESS, HDLC_SERVER_ADDRESS, HDLC_SERVER_ADDRESS_LENGTH, new HdlcLink.Sink() {
+                @Override
+                public boolean send(byte[] frame) {
+                    return hdlcSession.send(frame);
+                }
+            }, bleHandler);
+            final DlmsTransactions transactions = new DlmsTransactions(link, bleHandler);
+            transactions.setNotificationListener(new DlmsTransactions.NotificationListener() {
+                @Override
+                public void onNotification(byte[] apdu) {
+                    if (LOG.isLoggable(EventLog.Level.VERBOSE)) {
+                        LOG.v("Received DLMS notification {}", HexCodec.toHex(apdu));
+                    }
+                }
+            });
+            link.setListener(new HdlcLink.Listener() {
+                @Override
+                public void onConnected(HdlcLink.Parameters parameters) {
+                    LOG.i("INFO: HDLC link established: {}", parameters);
+                }
+
+                @Override
+                public void onApdu(byte[] apdu) {
+                    if (DATA_LOG.isLoggable(EventLog.Level.VERBOSE)) {
+                        DATA_LOG.v("Received APDU {}", HexCodec.toHex(apdu));
+                    }
+                    transactions.onApdu(apdu);
+                    //dataReceived(apdu);
+                }
+
+                @Override
+                public void onDisconnected() {
+                    LOG.i("INFO: HDLC link closed");
+                    transactions.reset();
+                }
+            });
+            session.setHdlcLink(link);
+            session.setDlmsTransactions(transactions);
+            sessions.put(mac_address_str, session);
+
+            BondStateDispatcher.getInstance(mContext).register(mac_address_str, mBondListener);
+            session.setGatt(mmDevice.connectGatt(mContext, false, mGattCallback, BluetoothDevice.TRANSPORT_LE, BluetoothDevice.PHY_LE_1M_MASK, bleHandler));
         }
     }
 
     // To be called from C/C++ code to disconnect from a peripheral
     // MAC address is also provided to ensure that correct device is invoked
     public static void disconnect(String macAddress) {
-        gatt.disconnect();
+        GattSession session = sessions.get(macAddress);
+        if (session != null && session.getGatt() != null) {
+            session.getGatt().disconnect();
+        }
     }
 
     // To be called from C/C++ code to send data to the connected remote device
     // MAC address is also provided to ensure that correct device is invoked
     // Java code must also convert the string format data len to integer and compare that to data len of the byte array converted from hex string
     public static void send(final byte[] dataHexFormat) {
-        ioBuffer = null;
-        if (gatt == null || uart == null || rx == null || tx == null) {
+        GattSession session = sessions.get(mac_address_str);
+        if (session == null || !session.isReady()) {
             return;
         }
+        BluetoothGattCharacteristic tx = session.getTx();
 
-        System.out.println("INFO: send() via " + tx.getUuid().toString().toUpperCase());
-        System.out.println(bytesToHex(dataHexFormat));
-        System.out.println("INFO: send() via " + new String(dataHexFormat, StandardCharsets.UTF_8));
+        DATA_LOG.d("INFO: send() {} bytes via {}", dataHexFormat.length, tx.getUuid());
+        if (DATA_LOG.isLoggable(EventLog.Level.VERBOSE)) {
+            DATA_LOG.v("INFO: send() {}", HexCodec.toHex(dataHexFormat));
+        }
 
         if (!isCharacteristicWritable(tx)) {
-            System.out.println("ERROR: NO WRITE POSSIBLE");
+            LOG.e("ERROR: NO WRITE POSSIBLE");
             return;
         }
 
         if (!isCharacteristicReadable(tx)) {
-            System.out.println("ERROR: NO READ POSSIBLE");
+            LOG.e("ERROR: NO READ POSSIBLE");
         }
 
-        if ((tx.getProperties() & PROPERTY_WRITE_NO_RESPONSE) != 0) {
-            tx.setWriteType(WRITE_TYPE_NO_RESPONSE);
-        } else {
-            tx.setWriteType(WRITE_TYPE_DEFAULT);
+        if (!session.send(dataHexFormat)) {
+            LOG.e("ERROR: Could not enqueue read characteristic command");
         }
 
-        tx.setValue(dataHexFormat);
+        //gatt.writeCharacteristic(tx, dataHexFormat, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+    }
 
-        bluetoothGatt = gatt;
-        boolean result = commandQueue.add(new Runnable() {
-            @Override
-            public void run() {
 
-                if (!bluetoothGatt.writeCharacteristic(tx)) {
-                    System.out.println("ERROR: GATT write failed");
-                    completedCommand();
-                } else {
-                    System.out.println("INFO: write Requested");
-                    retries++;
-                }
-            }
-        });
-
-        if (result) {
-            nextCommand();
-        } else {
-            Log.e(TAG, "ERROR: Could not enqueue read characteristic command");
+    // Closes the session of a device whose link went down, failing its pending commands
+    private static void onDisconnected(GattSession session, BluetoothGatt gatt, int status) {
+        final BluetoothGatt current = session.getGatt();
+        if (current != null && current != gatt) {
+            // A handle the session has already replaced, e.g. the one used for pairing
+            gatt.close();
+            return;
+        }
+        if (!session.isBonded() && gatt.getDevice().getBondState() == BluetoothDevice.BOND_BONDING) {
+            return;
+        }
+        LOG.i("INFO: BLE Disconnected, status {}", status);
+        //deviceDisonnected(mac_address_str);
+        sessions.remove(session.getAddress(), session);
+        session.close();
+        if (current == null) {
+            gatt.close();
         }
-
-        //gatt.writeCharacteristic(tx, dataHexFormat, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
     }
 
-
     private static BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
             super.onConnectionStateChange(gatt, status, newState);
+            final GattSession session = getSession(gatt);
+            if (session == null) {
+                gatt.close();
+                return;
+            }
+
+            if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                // Whatever the status, so a link lost with 8, 19 or 133 fails what is pending
+                onDisconnected(session, gatt, status);
+                return;
+            }
 
             if (status == GATT_SUCCESS) {
 
-                if (isBonded) {
+                if (session.isBonded()) {
 
                     if (newState == BluetoothProfile.STATE_CONNECTED) {
-                        System.out.println("SUCCESS: Connected");
+                        LOG.i("SUCCESS: Connected");
                         if (status == BluetoothGatt.GATT_SUCCESS) {
 
-                            bluetoothGatt = gatt;
-                            boolean result = commandQueue.add(new Runnable() {
+                            session.setGatt(gatt);
+                            boolean result = session.enqueue(new GattCommand(GattCommand.Type.DISCOVER_SERVICES, new Runnable() {
                                 @Override
                                 public void run() {
-                                    if (!bluetoothGatt.discoverServices()) {
-                                        System.out.println("ERROR: GATT Service discovery failed");
-                                        completedCommand();
+                                    if (!session.getGatt().discoverServices()) {
+                                        LOG.e("ERROR: GATT Service discovery failed");
+                                        session.retryCommand(GattCommand.Type.DISCOVER_SERVICES);
                                     } else {
-                                        System.out.println("INFO: Service Discovery Requested");
-                                        retries++;
+                                        LOG.i("INFO: Service Discovery Requested");
                                     }
                                 }
-                            });
+                            }));
 
-                            if (result) {
-                                nextCommand();
-                            } else {
-                                Log.e(TAG, "ERROR: Could not enqueue read characteristic command");
+                            if (!result) {
+                                LOG.e("ERROR: Could not enqueue read characteristic command");
                             }
                         } else {
                             if (status == BluetoothGatt.GATT_READ_NOT_PERMITTED) {
-                                System.out.println("ERROR: GATT read operation is not permitted");
+                                LOG.e("ERROR: GATT read operation is not permitted");
                             } else {
                                 if (status == BluetoothGatt.GATT_WRITE_NOT_PERMITTED) {
-                                    System.out.println("ERROR: GATT write operation is not permitted");
+                                    LOG.e("ERROR: GATT write operation is not permitted");
                                 } else {
                                     if (status == BluetoothGatt.GATT_INSUFFICIENT_AUTHENTICATION) {
-                                        System.out.println("ERROR: Insufficient authentication for a given operation");
+                                        LOG.e("ERROR: Insufficient authentication for a given operation");
                                     } else {
                                         if (status == BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED) {
-                                            System.out.println("ERROR: The given request is not supported");
+                                            LOG.e("ERROR: The given request is not supported");
                                         } else {
-                                            System.out.println("ERROR: A GATT operation failed");
+                                            LOG.e("ERROR: A GATT operation failed");
                                         }
                                     }
                                 }
@@ -539,30 +520,24 @@ public class AndroidNativeBluetooth {
                         return;
                     }
 
-                    if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                        System.out.println("INFO: BLE Disconnected");
-                        //deviceDisonnected(mac_address_str);
-                        return;
-                    }
-
                     if (newState == BluetoothProfile.STATE_CONNECTING) {
-                        System.out.println("INFO: BLE Connecting");
+                        LOG.i("INFO: BLE Connecting");
                         return;
                     }
 
                     if (newState == BluetoothProfile.STATE_DISCONNECTING) {
-                        System.out.println("INFO: BLE Disconnecting");
+                        LOG.i("INFO: BLE Disconnecting");
                         return;
                     }
 
-                    System.out.println("WARNING: Unhandled connection state");
+                    LOG.w("WARNING: Unhandled connection state");
 
                 }
 
             } else {
 
-                if (isBonded)
-                    retryCommand();
+                if (session.isBonded())
+                    session.retryCommand(status);
 
             }
         }
@@ -570,16 +545,23 @@ public class AndroidNativeBluetooth {
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
             super.onServicesDiscovered(gatt, status);
+            final GattSession session = getSession(gatt);
+            if (session == null) {
+                return;
+            }
 
             if (status == BluetoothGatt.GATT_SUCCESS) {
 
                 final List<BluetoothGattService> services = gatt.getServices();
 
                 boolean found = false;
+                BluetoothGattService uart = null;
+                BluetoothGattCharacteristic rx = null;
+                BluetoothGattCharacteristic tx = null;
 
                 for (BluetoothGattService service : services) {
                     if (service_uuid_str.equals(service.getUuid().toString().toUpperCase())) {
-                        System.out.println("INFO: Service Discovery Finished");
+                        LOG.i("INFO: Service Discovery Finished");
                         found = true;
                         discoveredCharacteristics = service.getCharacteristics();
                         uart = service;
@@ -597,59 +579,58 @@ public class AndroidNativeBluetooth {
 
                         if (isCharacteristicNotifiable(characteristic)) {
                             rx = characteristic;
-                            System.out.println("SUCCESS: RX Found");
+                            LOG.i("SUCCESS: RX Found");
                         }
 
                         if (isCharacteristicWritable(characteristic)) {
                             tx = characteristic;
-                            System.out.println("SUCCESS: TX Found");
+                            LOG.i("SUCCESS: TX Found");
                         }
                     }
 
+                    session.setGatt(gatt);
+                    session.setCharacteristics(uart, rx, tx);
+
                     if (rx != null) {
                         // Setup notifications on RX characteristic changes (i.e. data received).
                         // First call setCharacteristicNotification to enable notification.
                         if (!gatt.setCharacteristicNotification(rx, true)) {
-                            System.out.println("Couldn't set notifications for RX characteristic!");
+                            LOG.e("Couldn't set notifications for RX characteristic!");
                             //errorEvent("ERROR: Couldn't set notifications for RX characteristic!","103");
                         } else {
                             // Next update the RX characteristic's client descriptor to enable notifications.
                             if (rx.getDescriptor(UUID.fromString(CLIENT_UUID)) != null) {
                                 BluetoothGattDescriptor desc = rx.getDescriptor(UUID.fromString(CLIENT_UUID));
                                 desc.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                                bluetoothGatt = gatt;
-                                boolean result = commandQueue.add(new Runnable() {
+                                boolean result = session.enqueue(new GattCommand(GattCommand.Type.WRITE_DESCRIPTOR, new Runnable() {
                                     @Override
                                     public void run() {
-                                        if (!bluetoothGatt.writeDescriptor(desc)) {
-                                            System.out.println("ERROR: Couldn't write RX client descriptor value!");
-                                            completedCommand();
+                                        if (!session.getGatt().writeDescriptor(desc)) {
+                                            LOG.e("ERROR: Couldn't write RX client descriptor value!");
+                                            session.retryCommand(GattCommand.Type.WRITE_DESCRIPTOR);
                                         } else {
-                                            System.out.println("SUCCESS: RX Notifications subscribed");
-                                            retries++;
+                                            LOG.i("SUCCESS: RX Notifications subscribed");
                                         }
                                     }
-                                });
+                                }));
 
-                                if (result) {
-                                    nextCommand();
-                                } else {
-                                    Log.e(TAG, "ERROR: Could not enqueue read characteristic command");
+                                if (!result) {
+                                    LOG.e("ERROR: Could not enqueue read characteristic command");
                                 }
 
                             } else {
-                                System.out.println("ERROR: Couldn't get RX client descriptor!");
+                                LOG.e("ERROR: Couldn't get RX client descriptor!");
                             }
                         }
                     }
 
                     if (tx != null) {
                         if (isCharacteristicIndicatable(tx)) {
-                            System.out.println("INFO: Setting indication on TX possible");
+                            LOG.i("INFO: Setting indication on TX possible");
                             // Setup notifications on TX characteristic changes (i.e. data sent).
                             // First call setCharacteristicIndication to enable indication.
                             if (!gatt.setCharacteristicNotification(tx, true)) {
-                                System.out.println("Couldn't set indications for TX characteristic!");
+                                LOG.e("Couldn't set indications for TX characteristic!");
                                 //errorEvent("ERROR: Couldn't set indications for TX characteristic!","103");
                             } else {
                                 // Next update the TX characteristic's client descriptor to enable indications.
@@ -657,41 +638,37 @@ public class AndroidNativeBluetooth {
                                     BluetoothGattDescriptor desc = tx.getDescriptor(UUID.fromString(CLIENT_UUID));
                                     desc.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
 
-                                    bluetoothGatt = gatt;
-                                    boolean result = commandQueue.add(new Runnable() {
+                                    boolean result = session.enqueue(new GattCommand(GattCommand.Type.WRITE_DESCRIPTOR, new Runnable() {
                                         @Override
                                         public void run() {
-                                            if (!bluetoothGatt.writeDescriptor(desc)) {
-                                                System.out.println("ERROR: Couldn't write TX client descriptor value!");
-                                                completedCommand();
+                                            if (!session.getGatt().writeDescriptor(desc)) {
+                                                LOG.e("ERROR: Couldn't write TX client descriptor value!");
+                                                session.retryCommand(GattCommand.Type.WRITE_DESCRIPTOR);
                                             } else {
-                                                System.out.println("SUCCESS: TX Notifications subscribed");
-                                                retries++;
+                                                LOG.i("SUCCESS: TX Notifications subscribed");
                                             }
                                         }
-                                    });
+                                    }));
 
-                                    if (result) {
-                                        nextCommand();
-                                    } else {
-                                        Log.e(TAG, "ERROR: Could not enqueue read characteristic command");
+                                    if (!result) {
+                                        LOG.e("ERROR: Could not enqueue read characteristic command");
                                     }
 
                                 } else {
-                                    System.out.println("ERROR: Couldn't get TX client descriptor!");
+                                    LOG.e("ERROR: Couldn't get TX client descriptor!");
                                 }
                             }
                         } else {
-                            System.out.println("WARNING: Cannot set indication on TX");
+                            LOG.w("WARNING: Cannot set indication on TX");
                         }
                     }
                 }
 
-                completedCommand();
+                session.completedCommand(GattCommand.Type.DISCOVER_SERVICES);
             } else {
-                if (isBonded)
-                    retryCommand();
-                System.out.println("INFO: onServicesDiscoveonConnectionStateChanged() received: " + status);
+                if (session.isBonded())
+                    session.retryCommand(GattCommand.Type.DISCOVER_SERVICES, status);
+                LOG.i("INFO: onServicesDiscoveonConnectionStateChanged() received: {}", status);
             }
         }
 
@@ -699,93 +676,134 @@ public class AndroidNativeBluetooth {
         @Override
         public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
             super.onMtuChanged(gatt, mtu, status);
-            System.out.println("SUCCESS: Negotiated MTU " + mtu);
+            LOG.i("SUCCESS: Negotiated MTU {}", mtu);
+            final GattSession session = getSession(gatt);
+            if (session == null) {
+                return;
+            }
             if (status == GATT_SUCCESS) {
-                send(hexStringToByteArray(byteString));
-                completedCommand();
+                session.setMtu(mtu);
+                session.getLinkTuner().attach(gatt);
+                session.getHdlcLink().connect();
+                session.completedCommand(GattCommand.Type.REQUEST_MTU);
                 //deviceConnected(mac_address_str);
             } else {
 
-                if (isBonded)
-                    retryCommand();
+                if (session.isBonded())
+                    session.retryCommand(GattCommand.Type.REQUEST_MTU, status);
+
+            }
+        }
+
+        @Override
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            final GattSession session = getSession(gatt);
+            if (session != null) {
+                session.getLinkTuner().onPhyUpdate(txPhy, rxPhy, status);
+            }
+        }
 
+        // Hidden in BluetoothGattCallback, so no @Override
+        public void onConnectionUpdated(BluetoothGatt gatt, int interval, int latency, int timeout, int status) {
+            final GattSession session = getSession(gatt);
+            if (session != null) {
+                session.getLinkTuner().onConnectionUpdated(interval, latency, timeout, status);
             }
         }
 
         @Override
         public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
             super.onDescriptorRead(gatt, descriptor, status);
-            System.out.println("INFO: onDescriptorRead");
+            LOG.i("INFO: onDescriptorRead");
         }
 
         @Override
         public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
             super.onDescriptorWrite(gatt, descriptor, status);
-            System.out.println("INFO: onDescriptorWrite " + status);
+            LOG.i("INFO: onDescriptorWrite {}", status);
+            final GattSession session = getSession(gatt);
+            if (session == null) {
+                return;
+            }
             if (status == GATT_SUCCESS) {
-                bluetoothGatt = gatt;
-                boolean result = commandQueue.add(new Runnable() {
+                boolean result = session.enqueue(new GattCommand(GattCommand.Type.REQUEST_MTU, new Runnable() {
                     @Override
                     public void run() {
-                        if (!bluetoothGatt.requestMtu(517)) {
-                            System.out.println("ERROR: Couldn't equest MTUR!");
-                            completedCommand();
+                        if (!session.getGatt().requestMtu(517)) {
+                            LOG.e("ERROR: Couldn't equest MTUR!");
+                            session.retryCommand(GattCommand.Type.REQUEST_MTU);
                         } else {
-                            System.out.println("SUCCESS: MTU Requested Successfully!");
-                            retries++;
+                            LOG.i("SUCCESS: MTU Requested Successfully!");
                         }
                     }
-                });
+                }));
 
-                if (result) {
-                    nextCommand();
-                } else {
-                    Log.e(TAG, "ERROR: Could not enqueue read characteristic command");
+                if (!result) {
+                    LOG.e("ERROR: Could not enqueue read characteristic command");
                 }
 
-                completedCommand();
+                session.completedCommand(GattCommand.Type.WRITE_DESCRIPTOR);
 
             } else {
 
-                if (isBonded)
-                    retryCommand();
+                if (session.isBonded())
+                    session.retryCommand(GattCommand.Type.WRITE_DESCRIPTOR, status);
 
             }
         }
 
         @Override
         public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            super.onCharacteristicRead(gatt, characteristic, status);
-            System.out.println("INFO: onCharacteristicRead");
+            // Only called before API 33, later versions pass the value to the overload below
+            final byte[] value = characteristic.getValue();
+            onCharacteristicRead(gatt, characteristic, value != null ? value : NO_VALUE, status);
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, byte[] value, int status) {
+            DATA_LOG.d("INFO: onCharacteristicRead");
         }
 
         @Override
         public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
             super.onCharacteristicWrite(gatt, characteristic, status);
-            System.out.println("INFO: onCharacteristicWrite");
+            DATA_LOG.d("INFO: onCharacteristicWrite");
+            final GattSession session = getSession(gatt);
+            if (session == null) {
+                return;
+            }
+            if (characteristic == session.getTx() && session.onTxWriteCompleted(status)) {
+                return;
+            }
             if (status == GATT_SUCCESS) {
-                System.out.println("INFO: onCharacteristicWrite Success");
-                completedCommand();
+                DATA_LOG.d("INFO: onCharacteristicWrite Success");
+                session.completedCommand(GattCommand.Type.WRITE_CHARACTERISTIC);
 
             } else {
-                System.out.println("INFO: onCharacteristicWrite failed");
-                retryCommand();
+                LOG.w("INFO: onCharacteristicWrite failed");
+                session.retryCommand(GattCommand.Type.WRITE_CHARACTERISTIC, status);
 
             }
         }
 
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            super.onCharacteristicChanged(gatt, characteristic);
-            System.out.println("INFO: onCharacteristicChanged");
+            // Only called before API 33. The value is read from the characteristic at once, on the
+            // GATT thread, before the next notification can replace it
+            final byte[] value = characteristic.getValue();
+            onCharacteristicChanged(gatt, characteristic, value != null ? value : NO_VALUE);
+        }
 
-            ioBuffer = characteristic.getValue();
-            String byteArrayToStr = new String(ioBuffer, StandardCharsets.US_ASCII);
-            System.out.println("Received data of length " + byteArrayToStr.length());
-            //dataReceived(ioBuffer);
-            ioBuffer = null;
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, byte[] value) {
+            final GattSession session = getSession(gatt);
+            if (session == null) {
+                return;
+            }
 
-            completedCommand();
+            DATA_LOG.d("Received {} bytes on {}", value.length, characteristic.getUuid());
+            session.getLinkTuner().onTraffic(value.length, false);
+            session.getHdlcDecoder().feed(value, 0, value.length);
         }
     };
 }
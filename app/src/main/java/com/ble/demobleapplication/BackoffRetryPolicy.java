@@ -0,0 +1,80 @@
+package com.ble.demobleapplication;
+
+import android.bluetooth.BluetoothGatt;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with decorrelated jitter: each delay is drawn uniformly between the base
+ * delay and three times the previous delay, capped at a maximum. Retries of several sessions
+ * that failed at the same moment (e.g. a status 133 storm) therefore spread out instead of
+ * hitting the controller together.
+ * <p>
+ * ATT errors that report a property of the attribute or the link, such as missing permissions,
+ * authentication or encryption, an unsupported request or a bad length, are permanent and are
+ * not retried. Everything else, notably GATT_ERROR (133), GATT_BUSY and connection congestion,
+ * is treated as transient.
+ */
+public class BackoffRetryPolicy implements RetryPolicy {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    public static final long DEFAULT_BASE_DELAY_MS = 50;
+    public static final long DEFAULT_MAX_DELAY_MS = 2000;
+
+    // ATT error codes (Core spec Vol 3, Part F, 3.4.1.1) not exposed by BluetoothGatt
+    private static final int ATT_INVALID_HANDLE = 0x01;
+    private static final int ATT_INVALID_PDU = 0x04;
+    private static final int ATT_ATTRIBUTE_NOT_FOUND = 0x0A;
+    private static final int ATT_ATTRIBUTE_NOT_LONG = 0x0B;
+    private static final int ATT_INSUFFICIENT_KEY_SIZE = 0x0C;
+    private static final int ATT_UNSUPPORTED_GROUP_TYPE = 0x10;
+
+    private final int maxAttempts;
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private final Random random = new Random();
+
+    public BackoffRetryPolicy() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS);
+    }
+
+    public BackoffRetryPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelayMs = Math.max(1, baseDelayMs);
+        this.maxDelayMs = Math.max(this.baseDelayMs, maxDelayMs);
+    }
+
+    @Override
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    @Override
+    public boolean isRetryable(int status) {
+        switch (status) {
+            case ATT_INVALID_HANDLE:
+            case BluetoothGatt.GATT_READ_NOT_PERMITTED:
+            case BluetoothGatt.GATT_WRITE_NOT_PERMITTED:
+            case ATT_INVALID_PDU:
+            case BluetoothGatt.GATT_INSUFFICIENT_AUTHENTICATION:
+            case BluetoothGatt.GATT_INSUFFICIENT_AUTHORIZATION:
+            case BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED:
+            case BluetoothGatt.GATT_INVALID_OFFSET:
+            case ATT_ATTRIBUTE_NOT_FOUND:
+            case ATT_ATTRIBUTE_NOT_LONG:
+            case ATT_INSUFFICIENT_KEY_SIZE:
+            case BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH:
+            case BluetoothGatt.GATT_INSUFFICIENT_ENCRYPTION:
+            case ATT_UNSUPPORTED_GROUP_TYPE:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    @Override
+    public synchronized long getDelayMs(int attempt, long previousDelayMs) {
+        long upper = Math.min(maxDelayMs, Math.max(baseDelayMs, previousDelayMs) * 3);
+        return baseDelayMs + (long) (random.nextDouble() * (upper - baseDelayMs));
+    }
+}
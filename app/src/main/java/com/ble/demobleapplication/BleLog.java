@@ -0,0 +1,329 @@
+package com.ble.demobleapplication;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logcat facade for the BLE code, with one instance per subsystem so each can be filtered by its
+ * tag and given its own level.
+ * <p>
+ * Messages are templates with {@code {}} holes filled from the arguments, which are only turned
+ * into text once the level check has passed. There are fixed overloads instead of varargs, and
+ * {@code long} ones for the verbose and debug levels, so a disabled call on the hot path
+ * allocates nothing. Verbose and debug records are only compiled into debug builds.
+ * <p>
+ * {@link #sampled(int)} gives a logger for high-frequency events such as scan results and
+ * notifications, which lets through a number of records per second and reports how many it
+ * suppressed. {@link #getStats()} counts the records written and the CPU time spent formatting
+ * and writing them, for every logger together, along with the CPU time of the log file writer.
+ */
+public final class BleLog {
+
+    // Debug and verbose records cost nothing in release builds
+    static final boolean DEBUG_BUILD = BuildConfig.DEBUG;
+
+    public static final BleLog SCAN = new BleLog("BleScan");
+    public static final BleLog GATT = new BleLog("BleGatt");
+    public static final BleLog LINK = new BleLog("BleLink");
+    // Payloads, HDLC frames and DLMS APDUs
+    public static final BleLog DATA = new BleLog("BleData");
+    // AndroidNativeBluetooth, the entry points used from C++
+    public static final BleLog NATIVE = new BleLog("BleNative");
+
+    private static final int UNSET = -1;
+    private static final long SAMPLE_WINDOW_MS = 1000;
+
+    private static volatile int defaultThreshold =
+            (DEBUG_BUILD ? EventLog.Level.DEBUG : EventLog.Level.INFO).ordinal();
+    private static volatile boolean costTracking = true;
+    private static final AtomicLong records = new AtomicLong();
+    private static final AtomicLong suppressed = new AtomicLong();
+    private static final AtomicLong cpuNanos = new AtomicLong();
+
+    /**
+     * Logging activity of all loggers, or the difference between two snapshots.
+     */
+    public static final class Stats {
+        private final long records;
+        private final long suppressed;
+        private final long cpuNanos;
+        private final long fileCpuNanos;
+
+        Stats(long records, long suppressed, long cpuNanos, long fileCpuNanos) {
+            this.records = records;
+            this.suppressed = suppressed;
+            this.cpuNanos = cpuNanos;
+            this.fileCpuNanos = fileCpuNanos;
+        }
+
+        public long getRecords() {
+            return records;
+        }
+
+        /**
+         * @return Records dropped by sampled loggers.
+         */
+        public long getSuppressed() {
+            return suppressed;
+        }
+
+        /**
+         * @return CPU time the calling threads spent formatting and writing logcat records.
+         */
+        public long getCpuNanos() {
+            return cpuNanos;
+        }
+
+        /**
+         * @return CPU time of the {@link FileLogger} writer thread.
+         */
+        public long getFileCpuNanos() {
+            return fileCpuNanos;
+        }
+
+        public Stats since(Stats earlier) {
+            return new Stats(records - earlier.records, suppressed - earlier.suppressed,
+                    cpuNanos - earlier.cpuNanos, fileCpuNanos - earlier.fileCpuNanos);
+        }
+
+        @Override
+        public String toString() {
+            return records + " records, " + suppressed + " suppressed, " + (cpuNanos / 1000) + " us CPU, "
+                    + (fileCpuNanos / 1000) + " us file writer CPU";
+        }
+    }
+
+    private final String tag;
+    // Shares the level of the logger it was sampled from
+    private final BleLog parent;
+    private volatile int threshold = UNSET;
+
+    private final int perSecond;
+    private long windowStart;
+    private int windowCount;
+    private long windowSuppressed;
+
+    private BleLog(String tag) {
+        this(tag, null, 0);
+    }
+
+    private BleLog(String tag, BleLog parent, int perSecond) {
+        this.tag = tag;
+        this.parent = parent;
+        this.perSecond = perSecond;
+    }
+
+    /**
+     * @return A logger with the same tag and level that writes at most {@code perSecond} records
+     * a second. The next record written after a suppressed one says how many were suppressed.
+     */
+    public BleLog sampled(int perSecond) {
+        if (perSecond <= 0) {
+            throw new IllegalArgumentException("perSecond must be positive: " + perSecond);
+        }
+        return new BleLog(tag, parent != null ? parent : this, perSecond);
+    }
+
+    public String getTag() {
+        return tag;
+    }
+
+    /**
+     * Sets the lowest level this logger writes, or clears it with null so the default applies.
+     */
+    public void setLevel(EventLog.Level level) {
+        (parent != null ? parent : this).threshold = level != null ? level.ordinal() : UNSET;
+    }
+
+    /**
+     * Sets the lowest level of loggers without their own level. Defaults to
+     * {@link EventLog.Level#DEBUG} in debug builds and {@link EventLog.Level#INFO} otherwise.
+     */
+    public static void setDefaultLevel(EventLog.Level level) {
+        defaultThreshold = level.ordinal();
+    }
+
+    /**
+     * Enables measuring the CPU time of each record written, which is on by default.
+     */
+    public static void setCostTracking(boolean enabled) {
+        costTracking = enabled;
+    }
+
+    public static Stats getStats() {
+        return new Stats(records.get(), suppressed.get(), cpuNanos.get(), FileLogger.getWriterCpuNanos());
+    }
+
+    /**
+     * For arguments that are expensive to compute, such as hex dumps.
+     */
+    public boolean isLoggable(EventLog.Level level) {
+        if (!DEBUG_BUILD && level.ordinal() < EventLog.Level.INFO.ordinal()) {
+            return false;
+        }
+        final int own = (parent != null ? parent : this).threshold;
+        return level.ordinal() >= (own != UNSET ? own : defaultThreshold);
+    }
+
+    public void v(String message) {
+        log(EventLog.Level.VERBOSE, message, 0, null, null);
+    }
+
+    public void v(String format, Object a) {
+        log(EventLog.Level.VERBOSE, format, 1, a, null);
+    }
+
+    public void v(String format, Object a, Object b) {
+        log(EventLog.Level.VERBOSE, format, 2, a, b);
+    }
+
+    public void v(String format, long a) {
+        if (isLoggable(EventLog.Level.VERBOSE)) {
+            log(EventLog.Level.VERBOSE, format, 1, a, null);
+        }
+    }
+
+    public void v(String format, long a, Object b) {
+        if (isLoggable(EventLog.Level.VERBOSE)) {
+            log(EventLog.Level.VERBOSE, format, 2, a, b);
+        }
+    }
+
+    public void d(String message) {
+        log(EventLog.Level.DEBUG, message, 0, null, null);
+    }
+
+    public void d(String format, Object a) {
+        log(EventLog.Level.DEBUG, format, 1, a, null);
+    }
+
+    public void d(String format, Object a, Object b) {
+        log(EventLog.Level.DEBUG, format, 2, a, b);
+    }
+
+    public void d(String format, long a) {
+        if (isLoggable(EventLog.Level.DEBUG)) {
+            log(EventLog.Level.DEBUG, format, 1, a, null);
+        }
+    }
+
+    public void d(String format, long a, Object b) {
+        if (isLoggable(EventLog.Level.DEBUG)) {
+            log(EventLog.Level.DEBUG, format, 2, a, b);
+        }
+    }
+
+    public void i(String message) {
+        log(EventLog.Level.INFO, message, 0, null, null);
+    }
+
+    public void i(String format, Object a) {
+        log(EventLog.Level.INFO, format, 1, a, null);
+    }
+
+    public void i(String format, Object a, Object b) {
+        log(EventLog.Level.INFO, format, 2, a, b);
+    }
+
+    public void w(String message) {
+        log(EventLog.Level.WARN, message, 0, null, null);
+    }
+
+    public void w(String format, Object a) {
+        log(EventLog.Level.WARN, format, 1, a, null);
+    }
+
+    public void w(String format, Object a, Object b) {
+        log(EventLog.Level.WARN, format, 2, a, b);
+    }
+
+    public void e(String message) {
+        log(EventLog.Level.ERROR, message, 0, null, null);
+    }
+
+    public void e(String format, Object a) {
+        log(EventLog.Level.ERROR, format, 1, a, null);
+    }
+
+    public void e(String format, Object a, Object b) {
+        log(EventLog.Level.ERROR, format, 2, a, b);
+    }
+
+    private void log(EventLog.Level level, String format, int count, Object a, Object b) {
+        if (!isLoggable(level)) {
+            return;
+        }
+        final long skipped = perSecond > 0 ? sample() : 0;
+        if (skipped < 0) {
+            suppressed.incrementAndGet();
+            return;
+        }
+        final boolean tracking = costTracking;
+        final long start = tracking ? Debug.threadCpuTimeNanos() : 0;
+        String message = count > 0 ? format(format, count, a, b) : format;
+        if (skipped > 0) {
+            message += " (" + skipped + " suppressed)";
+        }
+        Log.println(priority(level), tag, message);
+        records.incrementAndGet();
+        if (tracking) {
+            cpuNanos.addAndGet(Debug.threadCpuTimeNanos() - start);
+        }
+    }
+
+    /**
+     * @return The number of records suppressed since the last one let through, or -1 if this
+     * one is suppressed as well.
+     */
+    private synchronized long sample() {
+        final long now = SystemClock.elapsedRealtime();
+        if (now - windowStart >= SAMPLE_WINDOW_MS) {
+            windowStart = now;
+            windowCount = 0;
+        }
+        if (windowCount >= perSecond) {
+            windowSuppressed++;
+            return -1;
+        }
+        windowCount++;
+        final long skipped = windowSuppressed;
+        windowSuppressed = 0;
+        return skipped;
+    }
+
+    private static String format(String format, int count, Object a, Object b) {
+        final StringBuilder text = new StringBuilder(format.length() + 32);
+        int start = 0;
+        for (int i = 0; i < count; i++) {
+            final int hole = format.indexOf("{}", start);
+            final Object argument = i == 0 ? a : b;
+            if (hole < 0) {
+                // More arguments than holes: append them
+                text.append(format, start, format.length()).append(' ').append(argument);
+                start = format.length();
+                continue;
+            }
+            text.append(format, start, hole).append(argument);
+            start = hole + 2;
+        }
+        return text.append(format, start, format.length()).toString();
+    }
+
+    private static int priority(EventLog.Level level) {
+        switch (level) {
+            case VERBOSE:
+                return Log.VERBOSE;
+            case DEBUG:
+                return Log.DEBUG;
+            case INFO:
+                return Log.INFO;
+            case WARN:
+                return Log.WARN;
+            default:
+                return Log.ERROR;
+        }
+    }
+}
@@ -17,9 +17,6 @@
 package com.ble.demobleapplication;
 
 import static android.bluetooth.BluetoothGatt.GATT_SUCCESS;
-import static android.bluetooth.BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE;
-import static android.bluetooth.BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
-import static android.bluetooth.BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
 import static com.ble.demobleapplication.SampleGattAttributes.isCharacteristicIndicable;
 import static com.ble.demobleapplication.SampleGattAttributes.isCharacteristicNotifiable;
 import static com.ble.demobleapplication.SampleGattAttributes.isCharacteristicReadable;
@@ -35,173 +32,138 @@ import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
-import android.content.BroadcastReceiver;
+import android.bluetooth.BluetoothStatusCodes;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
-import android.os.Looper;
-import android.util.Log;
+import android.os.SystemClock;
 
 import androidx.annotation.NonNull;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.nio.charset.StandardCharsets;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * Service for managing connection and data communication with a GATT server hosted on a
  * given Bluetooth LE device.
  */
 public class BluetoothLeService extends Service {
-    private final static String TAG = BluetoothLeService.class.getSimpleName();
+    private static final BleLog LOG = BleLog.GATT;
+    private static final BleLog LINK_LOG = BleLog.LINK;
+    // Reads, writes and notifications: a bulk read produces hundreds a second
+    private static final BleLog DATA_LOG = BleLog.DATA.sampled(10);
+    // Before API 33 the characteristic has no value until one has been read or received
+    private static final byte[] NO_VALUE = new byte[0];
 
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
+    // Address of the most recently connected device, used by the single-device API
     private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
-    private int mConnectionState = STATE_DISCONNECTED;
 
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
+    // Default cap on simultaneous connections; Android supports a handful of LE links at once
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
 
     public final static String ACTION_GATT_CONNECTED = "com.example.bluetooth.le.ACTION_GATT_CONNECTED";
     public final static String ACTION_GATT_DISCONNECTED = "com.example.bluetooth.le.ACTION_GATT_DISCONNECTED";
     public final static String ACTION_GATT_SERVICES_DISCOVERED = "com.example.bluetooth.le.ACTION_GATT_SERVICES_DISCOVERED";
     public final static String ACTION_DATA_AVAILABLE = "com.example.bluetooth.le.ACTION_DATA_AVAILABLE";
+    public final static String ACTION_APDU_AVAILABLE = "com.example.bluetooth.le.ACTION_APDU_AVAILABLE";
+    public final static String ACTION_DLMS_NOTIFICATION = "com.example.bluetooth.le.ACTION_DLMS_NOTIFICATION";
     public final static String EXTRA_DATA = "com.example.bluetooth.le.EXTRA_DATA";
+    public final static String EXTRA_ADDRESS = "com.example.bluetooth.le.EXTRA_ADDRESS";
     private static UUID SERVICE_UUID = UUID.fromString("ED310001-C889-5D66-AE38-A7A01230635A");
     private static String CLIENT_UUID = "00002902-0000-1000-8000-00805f9b34fb";
-    private static final String byteString = "7EA0210223F193730A81801405020500060205000704000000010804000000017F657E";
+    // Deadline for the future-returning calls that do not take one
+    public static final long DEFAULT_REQUEST_TIMEOUT_MS = 5000;
 
-    public final static UUID UUID_HEART_RATE_MEASUREMENT = UUID.fromString(SampleGattAttributes.HEART_RATE_MEASUREMENT);
-    private boolean isBonded = false;
-    private static Queue<Runnable> commandQueue = new LinkedList<>();
-
-    private static boolean commandQueueBusy;
-    private static int retries = 0;
-
-    static boolean isRetrying;
+    // HDLC addresses of the meter's management logical device and our client
+    private static final int HDLC_CLIENT_ADDRESS = 0x78;
+    private static final int HDLC_SERVER_ADDRESS = 0x91;
+    private static final int HDLC_SERVER_ADDRESS_LENGTH = 2;
 
-    private static final int MAX_TRIES = 5;
-
-    private static Handler bleHandler = new Handler(Looper.getMainLooper());
-    private static BluetoothGattService uart = null;
-    private static BluetoothGattCharacteristic rx = null;
-    private static BluetoothGattCharacteristic tx = null;
-
-    private static byte[] ioBuffer = null;
+    public final static UUID UUID_HEART_RATE_MEASUREMENT = UUID.fromString(SampleGattAttributes.HEART_RATE_MEASUREMENT);
 
-    public final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+    private static final Handler bleHandler = GattThread.getHandler();
+
+    // One session per device address
+    private final Map<String, GattSession> mSessions = new ConcurrentHashMap<>();
+    private int mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+    // Layout of the UART service per device address, kept across connections and restarts
+    private GattCache mGattCache;
+
+    // A meter seen in a scan this recently is advertising and can be connected to directly
+    public static final long SCAN_FRESHNESS_MS = 10000;
+    // Last time each device was seen in a scan, in SystemClock.elapsedRealtime()
+    private final Map<String, Long> mLastSeen = new ConcurrentHashMap<>();
+    private final ConnectMetrics mConnectMetrics = new ConnectMetrics();
+    private boolean mReuseBond = true;
+    private int mIdlePriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+
+    private final GattEventBus mEventBus = new GattEventBus();
+    // Payloads of published data events; a buffer fits the largest HDLC frame
+    private static final int RX_BUFFER_COUNT = 32;
+    private final BufferPool mBufferPool = new BufferPool(RX_BUFFER_COUNT, HdlcFrame.FORMAT_LENGTH_MASK + 2);
+    // Non-null while the ACTION_* broadcasts are enabled
+    private GattEventBus.Subscription mBroadcastSubscription;
+
+    // Registered with the BondStateDispatcher for the address of every session
+    private final BondStateDispatcher.Listener mBondListener = new BondStateDispatcher.Listener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            Log.i(TAG, "INFO: BLE BroadcastReceiver::onReceive()");
-            String action = intent.getAction();
-            final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(mBluetoothDeviceAddress);
-            if (BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(action)) {
-                if (device.getBondState() == BluetoothDevice.BOND_BONDED) {
-                    Log.d(TAG, "BLE SUCCESS: Device Bonded");
-                    Log.d("TAGG", "BLE SUCCESS: Device Bonded");
-                    FileLogger.logToFile(getApplicationContext(), "BLE SUCCESS: Device Bonded");
-                    isBonded = true;
-                    device.connectGatt(BluetoothLeService.this, false, mGattCallback);
-                }else if (device.getBondState() == BluetoothDevice.BOND_NONE) {
-                    Log.d("TAGG", "BLE SUCCESS: Device Bond NONE");
-                    FileLogger.logToFile(getApplicationContext(), "BLE SUCCESS: Device Bond NONE");
-                    if (mBluetoothGatt != null) {
-                        mBluetoothGatt.close();
-                    }
-                    isBonded = false;
-                    mBluetoothGatt = null;
-                    Log.d(TAG, "BLE Trying to create a new connection.");
-                    Log.d("TAGG", "BLE Trying to create a new connection.");
-                    FileLogger.logToFile(getApplicationContext(), "BLE Trying to create a new connection.");
-                    mBluetoothGatt = device.connectGatt(getApplicationContext(), false, mGattCallback);
-                    mConnectionState = STATE_CONNECTING;
-                }
+        public void onBondStateChanged(BluetoothDevice device, int bondState, int previousBondState) {
+            LOG.i("BLE bond state {} -> {}", previousBondState, bondState);
+            final GattSession session = mSessions.get(device.getAddress());
+            if (session == null) {
+                return;
+            }
+            if (bondState == BluetoothDevice.BOND_BONDED) {
+                LOG.i("BLE SUCCESS: Device Bonded");
+                EventLog.log(LogEvent.BONDED, device.getAddress());
+                session.setBonded(true);
+                // Tracked so a late disconnect of the handle used for pairing is told apart
+                session.setGatt(device.connectGatt(BluetoothLeService.this, false, mGattCallback, BluetoothDevice.TRANSPORT_LE, BluetoothDevice.PHY_LE_1M_MASK, bleHandler));
+                session.setConnectionState(GattSession.STATE_CONNECTING);
+            } else if (bondState == BluetoothDevice.BOND_NONE) {
+                LOG.d("BLE Device Bond NONE");
+                EventLog.log(LogEvent.BOND_NONE, device.getAddress());
+                session.close();
+                session.setBonded(false);
+                LOG.d("BLE Trying to create a new connection.");
+                EventLog.log(LogEvent.CONNECTING, device.getAddress());
+                session.setGatt(device.connectGatt(getApplicationContext(), false, mGattCallback, BluetoothDevice.TRANSPORT_LE, BluetoothDevice.PHY_LE_1M_MASK, bleHandler));
+                session.setConnectionState(GattSession.STATE_CONNECTING);
             }
         }
-    };
 
-    private void completedCommand() {
-        Log.d("TAGG", "completedCommand called");
-        //FileLogger.logToFile(getApplicationContext(), "completedCommand called");
-        commandQueueBusy = false;
-        isRetrying = false;
-        commandQueue.poll();
-        nextCommand();
-    }
-
-    private void nextCommand() {
-        Log.d("TAGG", "nextCommand called");
-        //FileLogger.logToFile(getApplicationContext(), "nextCommand called");
-        // If there is still a command being executed then bail out
-        if (commandQueueBusy) {
-            Log.d("TAGG", "commandQueueBusy");
-            //FileLogger.logToFile(getApplicationContext(), "commandQueue is Busy");
-            return;
+        @Override
+        public void onAclConnected(BluetoothDevice device) {
+            LOG.d("BLE ACL connected to {}", device.getAddress());
         }
 
-        // Check if we still have a valid gatt object
-        if (mBluetoothGatt == null) {
-            Log.d("TAGG", String.format("BLE ERROR: GATT is 'null' for peripheral '%s', clearing command queue"));
-            Log.e(TAG, String.format("BLE ERROR: GATT is 'null' for peripheral '%s', clearing command queue"));
-            //FileLogger.logToFile(getApplicationContext(), String.format("BLE ERROR: GATT is 'null' for peripheral '%s', clearing command queue"));
-            commandQueue.clear();
-            commandQueueBusy = false;
-            return;
+        @Override
+        public void onAclDisconnected(BluetoothDevice device) {
+            LOG.d("BLE ACL disconnected from {}", device.getAddress());
         }
+    };
 
-        // Execute the next command in the queue
-        if (commandQueue.size() > 0) {
-            final Runnable bluetoothCommand = commandQueue.peek();
-            commandQueueBusy = true;
-            retries = 0;
-            bleHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        bluetoothCommand.run();
-                        Log.d("TAGG", "bluetoothCommand run");
-                        //FileLogger.logToFile(getApplicationContext(), "bluetoothCommand run");
-
-                    } catch (Exception ex) {
-                        Log.e(TAG, String.format("BLE ERROR: Command exception for device '%s'"), ex);
-                        Log.d("TAGG", String.format("BLE ERROR: Command exception for device '%s'"), ex);
-                        //FileLogger.logToFile(getApplicationContext(), String.format("BLE ERROR: Command exception for device '%s'"));
-                    }
-                }
-            });
-        }
+    private GattSession getSession(BluetoothGatt gatt) {
+        // Every GATT callback resolves its session first, so this guards them all
+        GattThread.assertCurrent();
+        return mSessions.get(gatt.getDevice().getAddress());
     }
 
-    private void retryCommand() {
-        Log.d("TAGG", "retryCommand called");
-        //FileLogger.logToFile(getApplicationContext(), "retryCommand called");
-
-        commandQueueBusy = false;
-        Runnable currentCommand = commandQueue.peek();
-        if (currentCommand != null) {
-            if (retries >= MAX_TRIES) {
-                // Max retries reached, give up on this one and proceed
-                Log.v(TAG, "Max number of tries reached");
-                Log.d("TAGG", "Max number of tries reached");
-                //FileLogger.logToFile(getApplicationContext(), "Max number of tries reached");
-                commandQueue.poll();
-            } else {
-                Log.d("TAGG", "retrying");
-                //FileLogger.logToFile(getApplicationContext(), "retrying");
-                isRetrying = true;
-            }
-        }
-        nextCommand();
+    private GattSession getCurrentSession() {
+        return mBluetoothDeviceAddress != null ? mSessions.get(mBluetoothDeviceAddress) : null;
     }
 
     // Implements callback methods for GATT events that the app cares about.  For example,
@@ -209,102 +171,71 @@ public class BluetoothLeService extends Service {
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            String intentAction;
+            GattEvent.Type intentAction;
+            final GattSession session = getSession(gatt);
+            if (session == null) {
+                // Session was closed while the connection was in progress
+                gatt.close();
+                return;
+            }
+            if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                // Whatever the status: a link lost with 8, 19 or 133 is as gone as a clean
+                // disconnect, and a session left CONNECTING would make connect() a no-op
+                onDisconnected(session, gatt, status);
+                return;
+            }
             if (status == GATT_SUCCESS) {
-                if (isBonded) {
+                if (session.isBonded()) {
                     //isBonded = false;
                     if (newState == BluetoothProfile.STATE_CONNECTED) {
-                        Log.i(TAG, "BLE Connected to GATT server.");
-                        Log.d("TAGG", "BLE Connected to GATT server.");
-                        FileLogger.logToFile(getApplicationContext(), "BLE Connected to GATT server.");
-                        intentAction = ACTION_GATT_CONNECTED;
-                        mConnectionState = STATE_CONNECTED;
-                        broadcastUpdate(intentAction);
-                        //mBluetoothGatt = gatt;
+                        LOG.i("BLE Connected to GATT server.");
+                        EventLog.log(LogEvent.CONNECTED, session.getAddress());
+                        intentAction = GattEvent.Type.CONNECTED;
+                        session.setConnectionState(GattSession.STATE_CONNECTED);
+                        session.setGatt(gatt);
+                        publish(intentAction, session.getAddress());
                         // Attempts to discover services after successful connection.
                         if (status == GATT_SUCCESS) {
-                            Log.i(TAG, "BLE Attempting to start service discovery:");
-                            //Log.d("TAGG", "BLE Attempting to start service discovery");
-                            FileLogger.logToFile(getApplicationContext(), "BLE Attempting to start service discovery");
-
-                            boolean result = commandQueue.add(new Runnable() {
-                                @Override
-                                public void run() {
-                                    if (!mBluetoothGatt.discoverServices()) {
-                                        Log.e(TAG, "BLE ERROR: GATT Service discovery failed");
-                                        Log.d("TAGG", "BLE ERROR: GATT Service discovery failed");
-                                        //FileLogger.logToFile(getApplicationContext(), "BLE ERROR: GATT Service discovery failed");
-                                        completedCommand();
-                                    } else {
-                                        Log.i(TAG, "BLE INFO: Service Discovery Requested");
-                                        Log.d("TAGG", "BLE Service Discovery Requested");
-                                        //FileLogger.logToFile(getApplicationContext(), "BLE Service Discovery Requested");
-                                        retries++;
-                                    }
-                                }
-                            });
-                            if (result) {
-                                Log.d("TAGG", "commandQueue added");
-                                //FileLogger.logToFile(getApplicationContext(), "commandQueue added");
-                                nextCommand();
-                            } else {
-                                Log.d("TAGG", "commandQueue not added");
-                                //FileLogger.logToFile(getApplicationContext(), "commandQueue not added");
-                                Log.e(TAG, "BLE ERROR: Could not enqueue read characteristic command");
-                            }
+                            LOG.d("BLE Attempting to start service discovery");
+                            EventLog.log(LogEvent.DISCOVERY_STARTED, session.getAddress());
+
+                            discoverServices(session);
                         } else {
                             if (status == BluetoothGatt.GATT_READ_NOT_PERMITTED) {
-                                Log.e(TAG, "BLE ERROR: GATT read operation is not permitted");
-                                Log.d("TAGG", "BLE ERROR: GATT read operation is not permitted");
+                                LOG.e("BLE ERROR: GATT read operation is not permitted");
                                 //FileLogger.logToFile(getApplicationContext(), "BLE ERROR: GATT read operation is not permitted");
                             } else {
                                 if (status == BluetoothGatt.GATT_WRITE_NOT_PERMITTED) {
-                                    Log.e(TAG, "BLE ERROR: GATT write operation is not permitted");
-                                    Log.d("TAGG", "BLE ERROR: GATT write operation is not permitted");
+                                    LOG.e("BLE ERROR: GATT write operation is not permitted");
                                     //FileLogger.logToFile(getApplicationContext(), "BLE ERROR: GATT write operation is not permitted");
                                 } else {
                                     if (status == BluetoothGatt.GATT_INSUFFICIENT_AUTHENTICATION) {
-                                        Log.e(TAG, "BLE ERROR: Insufficient authentication for a given operation");
-                                        Log.d("TAGG", "BLE ERROR: Insufficient authentication for a given operation");
+                                        LOG.e("BLE ERROR: Insufficient authentication for a given operation");
                                         //FileLogger.logToFile(getApplicationContext(), "BLE ERROR: Insufficient authentication for a given operation");
                                     } else {
                                         if (status == BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED) {
-                                            Log.e(TAG, "BLE ERROR: The given request is not supported");
-                                            Log.d("TAGG", "BLE ERROR: The given request is not supported");
+                                            LOG.e("BLE ERROR: The given request is not supported");
                                             //FileLogger.logToFile(getApplicationContext(), "BLE ERROR: The given request is not supported");
                                         } else {
-                                            Log.e(TAG, "BLE ERROR: A GATT operation failed");
-                                            Log.d("TAGG", "BLE ERROR: A GATT operation failed");
+                                            LOG.e("BLE ERROR: A GATT operation failed");
                                             //FileLogger.logToFile(getApplicationContext(), "BLE ERROR: A GATT operation failed");
                                         }
                                     }
                                 }
                             }
                         }
-                    } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                        intentAction = ACTION_GATT_DISCONNECTED;
-                        mConnectionState = STATE_DISCONNECTED;
-                        Log.i(TAG, "BLE Disconnected from GATT server.");
-                        Log.d("TAGG", "BLE Disconnected from GATT server.");
-                        FileLogger.logToFile(getApplicationContext(), "BLE Disconnected from GATT server.");
-                        broadcastUpdate(intentAction);
-                        close();
-                        //mBluetoothGatt.close();
-                        //mBluetoothGatt = null;
                     } else if (newState == BluetoothProfile.STATE_CONNECTING) {
-                        Log.i(TAG, "INFO: BLE Connecting");
-                        Log.d("TAGG", "BLE Connecting");
+                        LOG.d("BLE Connecting");
                         //FileLogger.logToFile(getApplicationContext(), "BLE Connecting");
                     } else if (newState == BluetoothProfile.STATE_DISCONNECTING) {
-                        Log.d("TAGG", "BLE Disconnecting");
-                        Log.i(TAG, "INFO: BLE Disconnecting");
+                        LOG.i("BLE Disconnecting");
                         //FileLogger.logToFile(getApplicationContext(), "BLE Disconnecting");
                     }
                 }
 
             } else {
 
-                if (isBonded) retryCommand();
+                if (session.isBonded()) session.retryCommand(status);
 
             }
 
@@ -313,108 +244,127 @@ public class BluetoothLeService extends Service {
 
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            Log.d(TAG, "BLE onServicesDiscovered: status " + status);
+            LOG.d("BLE onServicesDiscovered: status {}", status);
+            final GattSession session = getSession(gatt);
+            if (session == null) {
+                return;
+            }
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                Log.d("TAGG", "BLE SERVICES_DISCOVERED");
+                LOG.d("BLE SERVICES_DISCOVERED");
                 //FileLogger.logToFile(getApplicationContext(), "BLE SERVICES_DISCOVERED");
-                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
-                final List<BluetoothGattService> services = gatt.getServices();
-
+                publish(GattEvent.Type.SERVICES_DISCOVERED, session.getAddress());
                 boolean found = false;
-                //List<BluetoothGattCharacteristic> discoveredCharacteristics = new ArrayList<>();
-                for (BluetoothGattService service : services) {
-
-                    Log.d(TAG, "onServicesDiscovered: " + service.getUuid().toString().toUpperCase());
-                    Log.d(TAG, "onServicesDiscovered: " + SERVICE_UUID.toString());
-                    if (SERVICE_UUID.toString().equals(service.getUuid().toString())) {
-                        Log.d(TAG, "BLE INFO: Service Discovery Finished");
-                        Log.d("TAGG", "BLE SERVICE_UUID FOUND: " + SERVICE_UUID);
-                        //FileLogger.logToFile(getApplicationContext(), "BLE SERVICE_UUID FOUND: " + SERVICE_UUID);
-                        found = true;
-                        //discoveredCharacteristics.addAll(service.getCharacteristics());
-                        uart = service;
-                        break;
+                BluetoothGattService uart = null;
+                BluetoothGattCharacteristic rx = null;
+                BluetoothGattCharacteristic tx = null;
+                // Known meters resolve their UART service straight from the cache instead of walking the database
+                final GattCache.Entry cached = mGattCache.get(session.getAddress());
+                GattCache.Entry validated = null;
+                if (cached != null) {
+                    uart = gatt.getService(cached.getServiceUuid());
+                    rx = cached.findRx(uart);
+                    tx = cached.findTx(uart);
+                    found = uart != null && rx != null && tx != null;
+                    if (found) {
+                        LOG.d("BLE INFO: UART service resolved from cache");
+                        validated = cached;
+                    } else {
+                        mGattCache.invalidate(session.getAddress());
+                        rx = null;
+                        tx = null;
                     }
                 }
 
-                if (found) {
-                    final List<BluetoothGattCharacteristic> characteristics = uart.getCharacteristics();
+                if (!found) {
+                    final List<BluetoothGattService> services = gatt.getServices();
+                    for (BluetoothGattService service : services) {
+
+                        LOG.d("BLE onServicesDiscovered: {}", service.getUuid());
+                        if (SERVICE_UUID.equals(service.getUuid())) {
+                            LOG.d("BLE INFO: Service Discovery Finished");
+                            //FileLogger.logToFile(getApplicationContext(), "BLE SERVICE_UUID FOUND: " + SERVICE_UUID);
+                            found = true;
+                            //discoveredCharacteristics.addAll(service.getCharacteristics());
+                            uart = service;
+                            break;
+                        }
+                    }
 
-                    // Get the read/notify characteristic
+                    if (found) {
+                        final List<BluetoothGattCharacteristic> characteristics = uart.getCharacteristics();
 
-                    for (BluetoothGattCharacteristic characteristic : characteristics) {
-                        int prop = characteristic.getProperties();
+                        // Get the read/notify characteristic
 
-                        if (isCharacteristicNotifiable(characteristic)) {
-                            rx = characteristic;
-                            Log.e(TAG, "BLE SUCCESS: RX Found");
-                            Log.e(TAG, "BLE SUCCESS: Notifiable/Indictable");
-                            Log.d("TAGG", "RX Found(Notifiable/Indictable): " + rx);
-                            //FileLogger.logToFile(getApplicationContext(), "RX Found(Notifiable/Indictable): " + rx);
-                        }
+                        for (BluetoothGattCharacteristic characteristic : characteristics) {
+                            int prop = characteristic.getProperties();
+
+                            if (isCharacteristicNotifiable(characteristic)) {
+                                rx = characteristic;
+                                LOG.d("BLE SUCCESS: RX found, notifiable/indicatable: {}", characteristic.getUuid());
+                                //FileLogger.logToFile(getApplicationContext(), "RX Found(Notifiable/Indictable): " + rx);
+                            }
+
+                            if (isCharacteristicWritable(characteristic)) {
+                                tx = characteristic;
+                                LOG.d("BLE SUCCESS: TX found, writable: {}", characteristic.getUuid());
+                                //FileLogger.logToFile(getApplicationContext(), "TX Found(Writable): " + tx);
+                            }
 
-                        if (isCharacteristicWritable(characteristic)) {
-                            tx = characteristic;
-                            Log.e(TAG, "BLE SUCCESS: TX Found");
-                            Log.e(TAG, "BLE SUCCESS: Writable");
-                            Log.d("TAGG", "TX Found(Writable): " + tx);
-                            //FileLogger.logToFile(getApplicationContext(), "TX Found(Writable): " + tx);
+                            if (isCharacteristicReadable(characteristic)) {
+                                LOG.d("BLE SUCCESS: Readable: {}", characteristic.getUuid());
+                                //FileLogger.logToFile(getApplicationContext(), "Readable: true");
+                            }
                         }
 
-                        if (isCharacteristicReadable(characteristic)) {
-                            Log.e(TAG, "BLE SUCCESS: Readable");
-                            Log.d("TAGG", "Readable: true");
-                            //FileLogger.logToFile(getApplicationContext(), "Readable: true");
+                        if (rx != null && tx != null) {
+                            mGattCache.put(session.getAddress(), uart, rx, tx);
                         }
                     }
+                }
+
+                if (found) {
+                    session.setGatt(gatt);
+                    session.setCharacteristics(uart, rx, tx);
 
                     if (rx != null) {
-                        Log.d(TAG, "BLE INFO: Setting indication on RX possible");
+                        LOG.d("BLE INFO: Setting indication on RX possible");
                         // Setup notifications on RX characteristic changes (i.e. data received).
                         // First call setCharacteristicNotification to enable notification.
                         if (!gatt.setCharacteristicNotification(rx, true)) {
-                            Log.e(TAG, "BLE ERROR: Couldn't set notifications for RX characteristic!");
-                            Log.d("TAGG", "BLE ERROR: Couldn't set notifications for RX characteristic! " + rx);
+                            LOG.e("BLE ERROR: Couldn't set notifications for RX characteristic!");
                             //FileLogger.logToFile(getApplicationContext(), "BLE ERROR: Couldn't set notifications for RX characteristic! " + rx);
                             //errorEvent("ERROR: Couldn't set notifications for RX characteristic!","103");
                         } else {
                             // Next update the RX characteristic's client descriptor to enable notifications.
                             if (rx.getDescriptor(UUID.fromString(CLIENT_UUID)) != null) {
-                                Log.d("TAGG", "CLIENT_UUID " + CLIENT_UUID);
+                                LOG.d("BLE CLIENT_UUID {}", CLIENT_UUID);
                                 //FileLogger.logToFile(getApplicationContext(), "CLIENT_UUID " + CLIENT_UUID);
                                 BluetoothGattDescriptor desc = rx.getDescriptor(UUID.fromString(CLIENT_UUID));
                                 desc.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                                mBluetoothGatt = gatt;
-                                boolean result = commandQueue.add(new Runnable() {
+                                boolean result = session.enqueue(new GattCommand(GattCommand.Type.WRITE_DESCRIPTOR, new Runnable() {
                                     @Override
                                     public void run() {
-                                        if (!mBluetoothGatt.writeDescriptor(desc)) {
-                                            Log.e(TAG, "BLE ERROR: Couldn't write RX client descriptor value!");
-                                            Log.d("TAGG", "BLE ERROR: Couldn't write RX client descriptor value!");
+                                        if (!session.getGatt().writeDescriptor(desc)) {
+                                            LOG.w("BLE WARNING: Couldn't write RX client descriptor value!");
                                             //FileLogger.logToFile(getApplicationContext(), "BLE ERROR: Couldn't write RX client descriptor value!");
-                                            completedCommand();
+                                            session.retryCommand(GattCommand.Type.WRITE_DESCRIPTOR);
                                         } else {
-                                            Log.d(TAG, "BLE SUCCESS: RX Notifications subscribed");
-                                            Log.d("TAGG", "RX Notifications subscribed");
+                                            LOG.d("BLE SUCCESS: RX Notifications subscribed");
                                             //FileLogger.logToFile(getApplicationContext(), "RX Notifications subscribed");
-                                            retries++;
                                         }
                                     }
-                                });
+                                }));
 
                                 if (result) {
-                                    Log.d("TAGG", "commandQueue added");
+                                    LOG.d("BLE commandQueue added");
                                     //FileLogger.logToFile(getApplicationContext(), "commandQueue added");
-                                    nextCommand();
                                 } else {
-                                    Log.e(TAG, "ERROR: Could not enqueue read characteristic command");
-                                    Log.d("TAGG", "BLE ERROR: Could not enqueue read characteristic command");
+                                    LOG.e("BLE ERROR: Could not enqueue RX descriptor write");
                                     //FileLogger.logToFile(getApplicationContext(), "BLE ERROR: Could not enqueue read characteristic command");
                                 }
 
                             } else {
-                                Log.e(TAG, "BLE ERROR: Couldn't get RX client descriptor!");
-                                Log.d("TAGG", "BLE ERROR: Couldn't get RX client descriptor!");
+                                LOG.e("BLE ERROR: Couldn't get RX client descriptor!");
                                 //FileLogger.logToFile(getApplicationContext(), "BLE ERROR: Couldn't get RX client descriptor!");
                             }
                         }
@@ -422,101 +372,125 @@ public class BluetoothLeService extends Service {
 
                     if (tx != null) {
                         if (isCharacteristicIndicable(tx)) {
-                            Log.d(TAG, "BLE INFO: Setting indication on TX possible");
+                            LOG.d("BLE INFO: Setting indication on TX possible");
                             // Setup notifications on TX characteristic changes (i.e. data sent).
                             // First call setCharacteristicIndication to enable indication.
                             if (!gatt.setCharacteristicNotification(tx, true)) {
-                                Log.e(TAG, "BLE ERROR: Couldn't set indications for TX characteristic!");
-                                Log.d("TAGG", "BLE ERROR: Couldn't set indications for TX characteristic!");
+                                LOG.e("BLE ERROR: Couldn't set indications for TX characteristic!");
                                 //FileLogger.logToFile(getApplicationContext(), "BLE ERROR: Couldn't set indications for TX characteristic!");
                                 //errorEvent("ERROR: Couldn't set indications for TX characteristic!","103");
                             } else {
                                 // Next update the TX characteristic's client descriptor to enable indications.
                                 if (tx.getDescriptor(UUID.fromString(CLIENT_UUID)) != null) {
-                                    Log.d("TAGG", "CLIENT_UUID " + CLIENT_UUID);
+                                    LOG.d("BLE CLIENT_UUID {}", CLIENT_UUID);
                                     //FileLogger.logToFile(getApplicationContext(), "CLIENT_UUID " + CLIENT_UUID);
                                     BluetoothGattDescriptor desc = tx.getDescriptor(UUID.fromString(CLIENT_UUID));
                                     desc.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
 
-                                    mBluetoothGatt = gatt;
-                                    boolean result = commandQueue.add(new Runnable() {
+                                    boolean result = session.enqueue(new GattCommand(GattCommand.Type.WRITE_DESCRIPTOR, new Runnable() {
                                         @Override
                                         public void run() {
-                                            if (!mBluetoothGatt.writeDescriptor(desc)) {
-                                                Log.e(TAG, "BLE ERROR: Couldn't write TX client descriptor value!");
-                                                Log.d("TAGG", "BLE ERROR: Couldn't write TX client descriptor value!");
+                                            if (!session.getGatt().writeDescriptor(desc)) {
+                                                LOG.w("BLE WARNING: Couldn't write TX client descriptor value!");
                                                 //FileLogger.logToFile(getApplicationContext(), "BLE ERROR: Couldn't write TX client descriptor value!");
-                                                completedCommand();
+                                                session.retryCommand(GattCommand.Type.WRITE_DESCRIPTOR);
                                             } else {
-                                                Log.d(TAG, "BLE SUCCESS: TX Notifications subscribed");
-                                                Log.d("TAGG", "TX Notifications subscribed");
+                                                LOG.d("BLE SUCCESS: TX Notifications subscribed");
                                                 //FileLogger.logToFile(getApplicationContext(), "TX Notifications subscribed");
-                                                retries++;
                                             }
                                         }
-                                    });
+                                    }));
 
                                     if (result) {
-                                        Log.d("TAGG", "commandQueue added");
+                                        LOG.d("BLE commandQueue added");
                                         //FileLogger.logToFile(getApplicationContext(), "commandQueue added");
-                                        nextCommand();
                                     } else {
-                                        Log.e(TAG, "ERROR: Could not enqueue read characteristic command");
-                                        Log.d("TAGG", "BLE ERROR: Could not enqueue read characteristic command!");
+                                        LOG.e("BLE ERROR: Could not enqueue TX descriptor write");
                                         //FileLogger.logToFile(getApplicationContext(), "BLE ERROR: Could not enqueue read characteristic command!");
                                     }
 
                                 } else {
-                                    Log.e(TAG, "BLE ERROR: Couldn't get TX client descriptor!");
-                                    Log.d("TAGG", "BLE ERROR: Couldn't get TX client descriptor!");
+                                    LOG.e("BLE ERROR: Couldn't get TX client descriptor!");
                                     //FileLogger.logToFile(getApplicationContext(), "BLE ERROR: Couldn't get TX client descriptor!");
                                 }
                             }
                         } else {
-                            Log.e(TAG, "BLE WARNING: Cannot set indication on TX");
-                            Log.d("TAGG", "BLE ERROR: Cannot set indication on TX! " + tx);
+                            LOG.w("BLE WARNING: Cannot set indication on TX");
                             //FileLogger.logToFile(getApplicationContext(), "BLE ERROR: Cannot set indication on TX! " + tx);
                         }
                     }
                 }
 
-                completedCommand();
+                // A bonded server tells us about changes with Service Changed, so a cache hit
+                // is only checked against the Database Hash for servers that are not bonded
+                if (found && (validated == null || !session.isBonded())) {
+                    checkDatabaseHash(session, validated);
+                }
+                session.completedCommand(GattCommand.Type.DISCOVER_SERVICES);
             } else {
-                if (isBonded)
-                    retryCommand();
-                Log.d(TAG, "BLE INFO: onServicesDiscoveonConnectionStateChanged() received: " + status);
+                if (session.isBonded())
+                    session.retryCommand(GattCommand.Type.DISCOVER_SERVICES, status);
+                LOG.w("BLE WARNING: onServicesDiscovered failed, status {}", status);
             }
         }
 
+        @Override
+        public void onServiceChanged(BluetoothGatt gatt) {
+            LOG.d("BLE onServiceChanged");
+            final GattSession session = getSession(gatt);
+            if (session == null) {
+                return;
+            }
+            // The stack has already dropped its copy of the database; ours is stale as well
+            mGattCache.invalidate(session.getAddress());
+            discoverServices(session);
+        }
+
         @Override
         public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            Log.d(TAG, "BLE onCharacteristicRead: characteristic " + characteristic);
-            Log.d(TAG, "BLE onCharacteristicRead: status " + status);
-            Log.d("TAGG", "onCharacteristicRead status " + status);
+            // Only called before API 33, later versions pass the value to the overload below
+            final byte[] value = characteristic.getValue();
+            onCharacteristicRead(gatt, characteristic, value != null ? value : NO_VALUE, status);
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, byte[] value, int status) {
+            DATA_LOG.d("BLE onCharacteristicRead: status {} on {}", status, characteristic.getUuid());
             //FileLogger.logToFile(getApplicationContext(), "onCharacteristicRead status " + status);
+            final GattSession session = getSession(gatt);
             if (status == GATT_SUCCESS) {
-                Log.d("TAGG", "onCharacteristicRead GATT_SUCCESS " + GATT_SUCCESS);
                 //FileLogger.logToFile(getApplicationContext(), "onCharacteristicRead GATT_SUCCESS " + GATT_SUCCESS);
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+                publish(GattEvent.Type.DATA_AVAILABLE, gatt.getDevice().getAddress(), characteristic.getUuid(),
+                        mBufferPool.copyOf(value, 0, value.length));
+                if (session != null && session.isAwaiting(GattCommand.Type.READ_CHARACTERISTIC, characteristic.getUuid())) {
+                    session.completedCommand(GattCommand.Type.READ_CHARACTERISTIC, characteristic.getUuid(), value);
+                }
+            } else if (session != null && session.isAwaiting(GattCommand.Type.READ_CHARACTERISTIC, characteristic.getUuid())) {
+                session.retryCommand(GattCommand.Type.READ_CHARACTERISTIC, characteristic.getUuid(), status);
             }
         }
 
         @Override
         public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
             super.onCharacteristicWrite(gatt, characteristic, status);
-            Log.d("TAGG", "onCharacteristicWrite status " + status);
+            DATA_LOG.d("BLE onCharacteristicWrite: status {} on {}", status, characteristic.getUuid());
             //FileLogger.logToFile(getApplicationContext(), "onCharacteristicWrite status " + status);
+            final GattSession session = getSession(gatt);
+            if (session == null) {
+                return;
+            }
+            if (characteristic == session.getTx() && session.onTxWriteCompleted(status)) {
+                // Pipelined writes are flow controlled by the writer, not the command queue
+                return;
+            }
             if (status == GATT_SUCCESS) {
-                Log.d(TAG, "BLE INFO: onCharacteristicWrite Success");
-                Log.d("TAGG", "onCharacteristicWrite GATT_SUCCESS " + GATT_SUCCESS);
                 //FileLogger.logToFile(getApplicationContext(), "onCharacteristicWrite GATT_SUCCESS " + GATT_SUCCESS);
-                completedCommand();
+                session.completedCommand(GattCommand.Type.WRITE_CHARACTERISTIC);
 
             } else {
-                Log.e(TAG, "BLE ERROR: onCharacteristicWrite failed");
-                Log.d("TAGG", "BLE ERROR: onCharacteristicWrite failed");
+                LOG.w("BLE WARNING: onCharacteristicWrite failed, status {}", status);
                 //FileLogger.logToFile(getApplicationContext(), "BLE ERROR: onCharacteristicWrite failed");
-                retryCommand();
+                session.retryCommand(GattCommand.Type.WRITE_CHARACTERISTIC, status);
 
             }
         }
@@ -524,46 +498,44 @@ public class BluetoothLeService extends Service {
         @Override
         public void onDescriptorRead(@NonNull BluetoothGatt gatt, @NonNull BluetoothGattDescriptor descriptor, int status, @NonNull byte[] value) {
             super.onDescriptorRead(gatt, descriptor, status, value);
-            Log.d(TAG, "BLE INFO: onDescriptorRead status" + status);
+            LOG.d("BLE onDescriptorRead: status {}", status);
         }
 
         @Override
         public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
             super.onDescriptorWrite(gatt, descriptor, status);
+            final GattSession session = getSession(gatt);
+            if (session == null) {
+                return;
+            }
             if (status == GATT_SUCCESS) {
-                //mBluetoothGatt = gatt;
-                boolean result = commandQueue.add(new Runnable() {
+                boolean result = session.enqueue(new GattCommand(GattCommand.Type.REQUEST_MTU, new Runnable() {
                     @Override
                     public void run() {
-                        if (!mBluetoothGatt.requestMtu(517)) {
-                            Log.e(TAG, "BLE ERROR: Couldn't equest MTU!");
-                            Log.d("TAGG", "BLE ERROR: Couldn't request MTU! 517");
+                        if (!session.getGatt().requestMtu(517)) {
+                            LOG.w("BLE WARNING: Couldn't request MTU!");
                             //FileLogger.logToFile(getApplicationContext(), "BLE ERROR: Couldn't request MTU! 517");
-                            completedCommand();
+                            session.retryCommand(GattCommand.Type.REQUEST_MTU);
                         } else {
-                            Log.d(TAG, "BLE SUCCESS: MTU Requested Successfully!");
-                            Log.d("TAGG", "MTU Requested Successfully");
+                            LOG.d("BLE SUCCESS: MTU Requested Successfully!");
                             //FileLogger.logToFile(getApplicationContext(), "MTU Requested Successfully");
-                            retries++;
                         }
                     }
-                });
+                }));
 
                 if (result) {
-                    Log.d("TAGG", "commandQueue added");
+                    LOG.d("BLE commandQueue added");
                     //FileLogger.logToFile(getApplicationContext(), "commandQueue added");
-                    nextCommand();
                 } else {
-                    Log.e(TAG, "BLE ERROR: Could not enqueue read characteristic command");
-                    Log.d("TAGG", "BLE ERROR: Could not enqueue read characteristic command!");
+                    LOG.e("BLE ERROR: Could not enqueue MTU request");
                     //FileLogger.logToFile(getApplicationContext(), "BLE ERROR: Could not enqueue read characteristic command!");
                 }
 
-                completedCommand();
+                session.completedCommand(GattCommand.Type.WRITE_DESCRIPTOR);
 
             } else {
 
-                if (isBonded) retryCommand();
+                if (session.isBonded()) session.retryCommand(GattCommand.Type.WRITE_DESCRIPTOR, status);
 
             }
         }
@@ -571,124 +543,457 @@ public class BluetoothLeService extends Service {
         @Override
         public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
             super.onMtuChanged(gatt, mtu, status);
-            Log.d(TAG, "BLE SUCCESS: Negotiated MTU " + mtu);
-            Log.d("TAGG", "Negotiated MTU: " + mtu);
+            LOG.d("BLE SUCCESS: Negotiated MTU {}", mtu);
             //FileLogger.logToFile(getApplicationContext(), "Negotiated MTU: " + mtu);
+            final GattSession session = getSession(gatt);
+            if (session == null) {
+                return;
+            }
+            EventLog.log(LogEvent.MTU_CHANGED, session.getAddress(), mtu, status);
             if (status == GATT_SUCCESS) {
-                //send(SampleGattAttributes.hexStringToByteArray(byteString));
-                Log.d("TAGG", "onMtuChanged GATT_SUCCESS " + GATT_SUCCESS);
                 //FileLogger.logToFile(getApplicationContext(),  "onMtuChanged GATT_SUCCESS " + GATT_SUCCESS);
-                completedCommand();
+                session.setMtu(mtu);
+                final int path = session.getConnectPath();
+                final long elapsed = session.finishConnect();
+                if (elapsed >= 0) {
+                    mConnectMetrics.record(path, elapsed);
+                    LOG.d("BLE Ready after {} ms via " + ConnectMetrics.getPathName(path) + " path: {}", elapsed, mConnectMetrics);
+                }
+                // Last setup stage: connection priority and PHY follow the traffic from here on
+                session.getLinkTuner().attach(gatt);
+                // Open the HDLC link as soon as frames can be exchanged, as AndroidNativeBluetooth does
+                session.getHdlcLink().connect();
+                session.completedCommand(GattCommand.Type.REQUEST_MTU);
                 //deviceConnected(mac_address_str);
             } else {
 
-                if (isBonded) retryCommand();
+                if (session.isBonded()) session.retryCommand(GattCommand.Type.REQUEST_MTU, status);
 
             }
         }
 
+        @Override
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            final GattSession session = getSession(gatt);
+            if (session != null) {
+                session.getLinkTuner().onPhyUpdate(txPhy, rxPhy, status);
+            }
+        }
+
+        // Hidden in BluetoothGattCallback, so no @Override; called on API 26+ whenever the
+        // connection parameters change
+        public void onConnectionUpdated(BluetoothGatt gatt, int interval, int latency, int timeout, int status) {
+            final GattSession session = getSession(gatt);
+            if (session != null) {
+                session.getLinkTuner().onConnectionUpdated(interval, latency, timeout, status);
+            }
+        }
+
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            Log.d(TAG, "BLE onCharacteristicChanged: characteristic " + characteristic);
-            Log.d("TAGG", "onCharacteristicChanged " + characteristic);
+            // Only called before API 33. The value is read from the characteristic at once, on the
+            // GATT thread, before the next notification can replace it
+            final byte[] value = characteristic.getValue();
+            onCharacteristicChanged(gatt, characteristic, value != null ? value : NO_VALUE);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, byte[] value) {
             //FileLogger.logToFile(getApplicationContext(),  "onCharacteristicChanged " + characteristic);
 
-            ioBuffer = characteristic.getValue();
-            String byteArrayToStr = new String(ioBuffer, StandardCharsets.US_ASCII);
-            Log.d(TAG, "BLE Received data of length " + byteArrayToStr.length());
-            Log.d("TAGG", "BLE Received data " + byteArrayToStr);
-            //FileLogger.logToFile(getApplicationContext(),  "BLE Received data " + byteArrayToStr);
-            Log.d("TAGG", "BLE Received data length" + byteArrayToStr.length());
-            //FileLogger.logToFile(getApplicationContext(),  "BLE Received data length" + byteArrayToStr.length());
-            ioBuffer = null;
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-            completedCommand();
+            final GattSession session = getSession(gatt);
+            if (session == null) {
+                return;
+            }
+            DATA_LOG.d("BLE Received {} bytes on {}", value.length, characteristic.getUuid());
+            EventLog.log(LogEvent.NOTIFICATION, session.getAddress(), value.length);
+            session.getLinkTuner().onTraffic(value.length, false);
+            if (characteristic == session.getRx()) {
+                // Responses may span several notifications; frames are broadcast once complete
+                session.getHdlcDecoder().feed(value, 0, value.length);
+            } else {
+                publish(GattEvent.Type.DATA_AVAILABLE, session.getAddress(), characteristic.getUuid(),
+                        mBufferPool.copyOf(value, 0, value.length));
+            }
         }
     };
 
-    private void broadcastUpdate(final String action) {
-        final Intent intent = new Intent(action);
-        sendBroadcast(intent);
+    private void publish(final GattEvent.Type type, final String address) {
+        mEventBus.publish(new GattEvent(type, address));
     }
 
-    private void broadcastUpdate(final String action, final BluetoothGattCharacteristic characteristic) {
-        final Intent intent = new Intent(action);
+    private void publish(final GattEvent.Type type, final String address, final UUID characteristic, final byte[] data) {
+        mEventBus.publish(new GattEvent(type, address, characteristic, data));
+    }
 
-        // This is special handling for the Heart Rate Measurement profile.  Data parsing is
-        // carried out as per profile specifications:
-        // http://developer.bluetooth.org/gatt/characteristics/Pages/CharacteristicViewer.aspx?u=org.bluetooth.characteristic.heart_rate_measurement.xml
-        if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            int flag = characteristic.getProperties();
-            int format = -1;
-            if ((flag & 0x01) != 0) {
-                format = BluetoothGattCharacteristic.FORMAT_UINT16;
-                Log.d(TAG, "BLE Heart rate format UINT16.");
-            } else {
-                format = BluetoothGattCharacteristic.FORMAT_UINT8;
-                Log.d(TAG, "BLE Heart rate format UINT8.");
-            }
-            final int heartRate = characteristic.getIntValue(format, 1);
-            Log.d(TAG, String.format("BLE Received heart rate: %d", heartRate));
-            intent.putExtra(EXTRA_DATA, String.valueOf(heartRate));
-        } else {
-            // For all other profiles, writes the data formatted in HEX.
-            final byte[] data = characteristic.getValue();
-            if (data != null && data.length > 0) {
-                final StringBuilder stringBuilder = new StringBuilder(data.length);
-                for (byte byteChar : data)
-                    stringBuilder.append(String.format("%02X ", byteChar));
-                intent.putExtra(EXTRA_DATA, stringBuilder.toString());
-            }
+    /**
+     * Publishes a pooled payload; the subscriptions that queued the event hold their own
+     * references, so ours is released here.
+     */
+    private void publish(final GattEvent.Type type, final String address, final UUID characteristic, final BufferPool.Lease data) {
+        final GattEvent event = new GattEvent(type, address, characteristic, data);
+        mEventBus.publish(event);
+        event.release();
+    }
+
+    /**
+     * @return The pool data event payloads are taken from, for its exhaustion and allocation
+     * counters.
+     */
+    public BufferPool getBufferPool() {
+        return mBufferPool;
+    }
+
+    /**
+     * @return The bus every connection, discovery and data event of this service is published on.
+     */
+    public GattEventBus getEventBus() {
+        return mEventBus;
+    }
+
+    /**
+     * Also sends the {@code ACTION_*} system broadcasts for every event, for receivers outside
+     * the process. Off by default; in-process consumers subscribe to {@link #getEventBus()}.
+     */
+    public void setBroadcastsEnabled(boolean enabled) {
+        if (enabled && mBroadcastSubscription == null) {
+            mBroadcastSubscription = mEventBus.subscribe(new GattEventBroadcaster(this), bleHandler);
+        } else if (!enabled && mBroadcastSubscription != null) {
+            mEventBus.unsubscribe(mBroadcastSubscription);
+            mBroadcastSubscription = null;
         }
-        sendBroadcast(intent);
     }
 
     public void send(final byte[] dataHexFormat) {
-        ioBuffer = null;
-        if (mBluetoothGatt == null || uart == null || rx == null || tx == null) {
+        send(mBluetoothDeviceAddress, dataHexFormat);
+    }
+
+    /**
+     * Sends a payload over the TX characteristic of the given device's session.
+     *
+     * @param address       The device address of the destination device.
+     * @param dataHexFormat The payload to write.
+     */
+    public void send(final String address, final byte[] dataHexFormat) {
+        send(address, dataHexFormat, GattCommand.Lane.INTERACTIVE);
+    }
+
+    /**
+     * Sends a payload in the given scheduling lane. Use {@link GattCommand.Lane#BULK} for long
+     * transfers such as load profile reads so that short requests are not queued behind them.
+     *
+     * @param address       The device address of the destination device.
+     * @param dataHexFormat The payload to write.
+     * @param lane          The lane the write is scheduled in.
+     */
+    public void send(final String address, final byte[] dataHexFormat, final GattCommand.Lane lane) {
+        final GattSession session = address != null ? mSessions.get(address) : null;
+        if (session == null || !session.isReady()) {
             return;
         }
+        final BluetoothGattCharacteristic tx = session.getTx();
 
-        Log.d(TAG, "BLE INFO: send() via " + tx.getUuid().toString().toUpperCase());
-        Log.d(TAG, "BLE INFO: send() via " + new String(dataHexFormat, StandardCharsets.UTF_8));
+        DATA_LOG.d("BLE INFO: send() {} bytes via {}", dataHexFormat.length, tx.getUuid());
+        if (DATA_LOG.isLoggable(EventLog.Level.VERBOSE)) {
+            DATA_LOG.v("BLE INFO: send() payload {}", HexCodec.toHex(dataHexFormat));
+        }
 
         if (!isCharacteristicWritable(tx)) {
-            Log.e(TAG, "BLE ERROR: NO WRITE POSSIBLE");
+            LOG.e("BLE ERROR: NO WRITE POSSIBLE");
             return;
         }
 
         if (!isCharacteristicReadable(tx)) {
-            Log.e(TAG, "BLE ERROR: NO READ POSSIBLE");
+            LOG.w("BLE WARNING: NO READ POSSIBLE");
         }
 
-        if ((tx.getProperties() & PROPERTY_WRITE_NO_RESPONSE) != 0) {
-            tx.setWriteType(WRITE_TYPE_NO_RESPONSE);
-        } else {
-            tx.setWriteType(WRITE_TYPE_DEFAULT);
+        if (!session.send(dataHexFormat, lane)) {
+            LOG.e("BLE ERROR: Could not queue {} bytes for sending", dataHexFormat.length);
+        }
+    }
+
+    /**
+     * Opens the HDLC link to the given device, negotiating windows larger than one frame so
+     * several I-frames can be in flight. The link is opened once when the MTU is set; this
+     * opens it again after it was closed.
+     *
+     * @return False if the device is not connected or the link is already open.
+     */
+    public boolean connectHdlc(final String address) {
+        final GattSession session = address != null ? mSessions.get(address) : null;
+        if (session == null || !session.isReady() || session.getHdlcLink() == null) {
+            return false;
+        }
+        return session.getHdlcLink().connect();
+    }
+
+    /**
+     * Sends a DLMS request APDU over the HDLC link, segmented to the negotiated maximum
+     * information field. The response is broadcast with {@link #ACTION_APDU_AVAILABLE}.
+     *
+     * @return False if the HDLC link to the device is not open.
+     */
+    public boolean sendApdu(final String address, final byte[] apdu) {
+        final GattSession session = address != null ? mSessions.get(address) : null;
+        if (session == null || session.getHdlcLink() == null
+                || session.getHdlcLink().getState() != HdlcLink.STATE_CONNECTED) {
+            return false;
+        }
+        requestApdu(address, apdu, DEFAULT_REQUEST_TIMEOUT_MS).thenAccept(new Consumer<byte[]>() {
+            @Override
+            public void accept(byte[] response) {
+                publish(GattEvent.Type.APDU_AVAILABLE, address, null, response);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Sends a DLMS request APDU (without LLC header) and completes with the response that
+     * carries the same invoke-id, see {@link DlmsTransactions}. Several requests may be in
+     * flight at once. Event and data notifications are broadcast separately with
+     * {@link #ACTION_DLMS_NOTIFICATION}.
+     */
+    public CompletableFuture<byte[]> requestApdu(final String address, final byte[] apdu, long timeoutMs) {
+        final GattSession session = address != null ? mSessions.get(address) : null;
+        if (session == null || session.getDlmsTransactions() == null) {
+            return failedFuture(new GattException("no HDLC link to " + address));
         }
+        return session.getDlmsTransactions().request(apdu, timeoutMs);
+    }
 
-        tx.setValue(dataHexFormat);
+    /**
+     * Reads a characteristic of the current device. See {@link #read(String, UUID, long)}.
+     */
+    public CompletableFuture<byte[]> read(final UUID uuid) {
+        return read(mBluetoothDeviceAddress, uuid, DEFAULT_REQUEST_TIMEOUT_MS);
+    }
 
-        boolean result = commandQueue.add(new Runnable() {
+    /**
+     * Queues a read of the characteristic with the given UUID.
+     * <p>
+     * The future completes on the GATT thread with the value from {@code onCharacteristicRead},
+     * or exceptionally with a {@link GattException} if the read fails or a
+     * {@link TimeoutException} after {@code timeoutMs}. Cancelling it before the read has started
+     * removes it from the queue. Use the {@code *Async} variants with a main thread executor to
+     * continue on the UI.
+     */
+    public CompletableFuture<byte[]> read(final String address, final UUID uuid, long timeoutMs) {
+        final GattSession session = address != null ? mSessions.get(address) : null;
+        final BluetoothGattCharacteristic characteristic = findCharacteristic(session, uuid);
+        if (characteristic == null) {
+            return failedFuture(new GattException("characteristic " + uuid + " not available on " + address));
+        }
+        return read(session, characteristic, timeoutMs);
+    }
+
+    private static CompletableFuture<byte[]> read(final GattSession session, final BluetoothGattCharacteristic characteristic,
+                                                  long timeoutMs) {
+        final UUID uuid = characteristic.getUuid();
+        final GattCommand command = new GattCommand(GattCommand.Type.READ_CHARACTERISTIC, new Runnable() {
             @Override
             public void run() {
-                if (!mBluetoothGatt.writeCharacteristic(tx)) {
-                    Log.e(TAG, "BLE ERROR: GATT write failed");
-                    completedCommand();
-                } else {
-                    Log.d(TAG, "BLE INFO: write Requested");
-                    retries++;
+                final BluetoothGatt gatt = session.getGatt();
+                if (gatt == null || !gatt.readCharacteristic(characteristic)) {
+                    LOG.w("BLE WARNING: readCharacteristic failed for {}", uuid);
+                    session.retryCommand(GattCommand.Type.READ_CHARACTERISTIC, uuid, RetryPolicy.STATUS_UNKNOWN);
+                }
+            }
+        }).setTarget(uuid);
+        return enqueueWithTimeout(session, command, command.getResult(), timeoutMs);
+    }
+
+    /**
+     * Writes to a characteristic of the current device. See {@link #write(String, UUID, byte[], long)}.
+     */
+    public CompletableFuture<byte[]> write(final UUID uuid, final byte[] value) {
+        return write(mBluetoothDeviceAddress, uuid, value, DEFAULT_REQUEST_TIMEOUT_MS);
+    }
+
+    /**
+     * Queues a write with response to the characteristic with the given UUID. The future
+     * completes with null once {@code onCharacteristicWrite} reports success; failures, timeouts
+     * and cancellation behave as for {@link #read(String, UUID, long)}.
+     */
+    public CompletableFuture<byte[]> write(final String address, final UUID uuid, final byte[] value, long timeoutMs) {
+        final GattSession session = address != null ? mSessions.get(address) : null;
+        final BluetoothGattCharacteristic characteristic = findCharacteristic(session, uuid);
+        if (characteristic == null) {
+            return failedFuture(new GattException("characteristic " + uuid + " not available on " + address));
+        }
+        final byte[] payload = value.clone();
+        final GattCommand command = new GattCommand(GattCommand.Type.WRITE_CHARACTERISTIC, new Runnable() {
+            @Override
+            public void run() {
+                final BluetoothGatt gatt = session.getGatt();
+                if (gatt == null || PipelinedWriter.writeCharacteristic(gatt, characteristic, payload, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT) != BluetoothStatusCodes.SUCCESS) {
+                    LOG.w("BLE WARNING: writeCharacteristic failed for {}", uuid);
+                    session.retryCommand(GattCommand.Type.WRITE_CHARACTERISTIC);
                 }
             }
         });
+        return enqueueWithTimeout(session, command, command.getResult(), timeoutMs);
+    }
 
-        if (result) {
-            nextCommand();
-        } else {
-            Log.e(TAG, "ERROR: Could not enqueue read characteristic command");
+    /**
+     * Sends a frame to the current device. See {@link #request(String, byte[], long)}.
+     */
+    public CompletableFuture<byte[]> request(final byte[] frame) {
+        return request(mBluetoothDeviceAddress, frame, DEFAULT_REQUEST_TIMEOUT_MS);
+    }
+
+    /**
+     * Sends a frame over TX and completes with the next complete HDLC frame received on RX,
+     * including its flags. Requests are answered in the order they were sent.
+     */
+    public CompletableFuture<byte[]> request(final String address, final byte[] frame, long timeoutMs) {
+        final GattSession session = address != null ? mSessions.get(address) : null;
+        if (session == null || !session.isReady()) {
+            return failedFuture(new GattException("not connected to " + address));
+        }
+        final CompletableFuture<byte[]> response = session.expectResponse();
+        if (!session.send(frame)) {
+            response.completeExceptionally(new GattException("could not queue request for " + address));
+            return response;
         }
+        return withTimeout(response, timeoutMs);
+    }
 
-        //gatt.writeCharacteristic(tx, dataHexFormat, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+    /**
+     * Requests an MTU on the current device. See {@link #requestMtu(String, int, long)}.
+     */
+    public CompletableFuture<Integer> requestMtu(final int mtu) {
+        return requestMtu(mBluetoothDeviceAddress, mtu, DEFAULT_REQUEST_TIMEOUT_MS);
+    }
+
+    /**
+     * Queues an MTU exchange and completes with the MTU the peripheral agreed to.
+     */
+    public CompletableFuture<Integer> requestMtu(final String address, final int mtu, long timeoutMs) {
+        final GattSession session = address != null ? mSessions.get(address) : null;
+        if (session == null || session.getGatt() == null) {
+            return failedFuture(new GattException("not connected to " + address));
+        }
+        final GattCommand command = new GattCommand(GattCommand.Type.REQUEST_MTU, new Runnable() {
+            @Override
+            public void run() {
+                final BluetoothGatt gatt = session.getGatt();
+                if (gatt == null || !gatt.requestMtu(mtu)) {
+                    LOG.w("BLE WARNING: requestMtu failed");
+                    session.retryCommand(GattCommand.Type.REQUEST_MTU);
+                }
+            }
+        });
+        // onMtuChanged stores the MTU on the session before completing the command
+        final CompletableFuture<Integer> result = command.getResult().thenApply(new Function<byte[], Integer>() {
+            @Override
+            public Integer apply(byte[] ignored) {
+                return session.getMtu();
+            }
+        });
+        return enqueueWithTimeout(session, command, result, timeoutMs);
+    }
+
+    private static BluetoothGattCharacteristic findCharacteristic(GattSession session, UUID uuid) {
+        final BluetoothGatt gatt = session != null ? session.getGatt() : null;
+        if (gatt == null || gatt.getServices() == null) {
+            return null;
+        }
+        for (BluetoothGattService service : gatt.getServices()) {
+            BluetoothGattCharacteristic characteristic = service.getCharacteristic(uuid);
+            if (characteristic != null) {
+                return characteristic;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Queues a command and returns {@code result}, a future derived from the command's own
+     * future. Cancelling or timing out {@code result} also cancels the command.
+     */
+    private static <T> CompletableFuture<T> enqueueWithTimeout(GattSession session, final GattCommand command,
+                                                               CompletableFuture<T> result, long timeoutMs) {
+        if (result != command.getResult()) {
+            result.whenComplete(new BiConsumer<T, Throwable>() {
+                @Override
+                public void accept(T value, Throwable error) {
+                    if (error != null) {
+                        command.getResult().cancel(false);
+                    }
+                }
+            });
+        }
+        if (!session.enqueue(command)) {
+            result.completeExceptionally(new GattException("could not queue " + command));
+            return result;
+        }
+        return withTimeout(result, timeoutMs);
+    }
+
+    private static <T> CompletableFuture<T> withTimeout(final CompletableFuture<T> future, final long timeoutMs) {
+        final Runnable timeout = new Runnable() {
+            @Override
+            public void run() {
+                future.completeExceptionally(new TimeoutException("no response within " + timeoutMs + " ms"));
+            }
+        };
+        bleHandler.postDelayed(timeout, timeoutMs);
+        future.whenComplete(new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(T value, Throwable error) {
+                bleHandler.removeCallbacks(timeout);
+            }
+        });
+        return future;
+    }
+
+    private static <T> CompletableFuture<T> failedFuture(Throwable error) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(error);
+        return future;
+    }
+
+    /**
+     * @return Throughput of the last pipelined write burst to the current device in bytes per
+     * second, or 0 if TX does not support write-without-response.
+     */
+    public long getWriteBytesPerSec() {
+        final GattSession session = getCurrentSession();
+        return session != null ? session.getPipelinedWriter().getLastBytesPerSec() : 0;
+    }
+
+    /**
+     * Sets how many devices may be connected at the same time. Connects beyond the cap are
+     * refused until an existing session is closed.
+     */
+    public void setMaxConnections(int maxConnections) {
+        mMaxConnections = Math.max(1, maxConnections);
+    }
+
+    public int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    /**
+     * Sets the connection priority sessions go back to when no bulk transfer is running,
+     * {@link BluetoothGatt#CONNECTION_PRIORITY_BALANCED} (the default) or
+     * {@link BluetoothGatt#CONNECTION_PRIORITY_LOW_POWER}.
+     */
+    public void setIdlePriority(int priority) {
+        mIdlePriority = priority;
+        for (GattSession session : mSessions.values()) {
+            session.getLinkTuner().setIdlePriority(priority);
+        }
+    }
+
+    /**
+     * @return The connection priority and PHY state of the session for {@code address}, or null
+     * if there is none.
+     */
+    public LinkTuner getLinkTuner(String address) {
+        final GattSession session = mSessions.get(address);
+        return session != null ? session.getLinkTuner() : null;
     }
 
     public class LocalBinder extends Binder {
@@ -708,7 +1013,6 @@ public class BluetoothLeService extends Service {
         // such that resources are cleaned up properly.  In this particular example, close() is
         // invoked when the UI is disconnected from the Service.
         close();
-        unregisterReceiver(mReceiver);
         return super.onUnbind(intent);
     }
 
@@ -725,17 +1029,20 @@ public class BluetoothLeService extends Service {
         if (mBluetoothManager == null) {
             mBluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
             if (mBluetoothManager == null) {
-                Log.e(TAG, "BLE Unable to initialize BluetoothManager.");
+                LOG.e("BLE Unable to initialize BluetoothManager.");
                 return false;
             }
         }
 
         mBluetoothAdapter = mBluetoothManager.getAdapter();
         if (mBluetoothAdapter == null) {
-            Log.e(TAG, "BLE Unable to obtain a BluetoothAdapter.");
+            LOG.e("BLE Unable to obtain a BluetoothAdapter.");
             return false;
         }
 
+        if (mGattCache == null) {
+            mGattCache = new GattCache(getApplicationContext());
+        }
         return true;
     }
 
@@ -750,9 +1057,8 @@ public class BluetoothLeService extends Service {
      */
     public boolean connect(final String address) {
         if (mBluetoothAdapter == null || address == null) {
-            Log.d("TAGG", "BLE BluetoothAdapter not initialized");
             //FileLogger.logToFile(getApplicationContext(),  "BLE ERROR: BluetoothAdapter not initialized");
-            Log.w(TAG, "BLE BluetoothAdapter not initialized or unspecified address.");
+            LOG.w("BLE BluetoothAdapter not initialized or unspecified address.");
             return false;
         }
 
@@ -769,19 +1075,86 @@ public class BluetoothLeService extends Service {
 
         final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
         if (device == null) {
-            Log.d("TAGG", "BLE Device not found.  Unable to connect.");
             //FileLogger.logToFile(getApplicationContext(),  "BLE ERROR: Device not found.  Unable to connect.");
-            Log.w(TAG, "BLE Device not found.  Unable to connect.");
+            LOG.w("BLE Device not found.  Unable to connect.");
             return false;
         }
-        if (device != null) {
-            IntentFilter filter = new IntentFilter();
-            filter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
-            registerReceiver(mReceiver, filter);
-            Log.d("TAGG", "BroadcastReceiver Registered");
-            //FileLogger.logToFile(getApplicationContext(),  "BLE BroadcastReceiver Registered");
-            removeBond(device);
-            mBluetoothDeviceAddress = address;
+
+        GattSession session = mSessions.get(address);
+        if (session == null) {
+            if (mSessions.size() >= mMaxConnections) {
+                LOG.w("BLE Connection limit of {} reached.  Unable to connect.", mMaxConnections);
+                return false;
+            }
+            session = new GattSession(device, bleHandler);
+            session.getLinkTuner().setUse2MPhy(mBluetoothAdapter.isLe2MPhySupported());
+            session.getLinkTuner().setIdlePriority(mIdlePriority);
+            session.getHdlcDecoder().addFrameListener(new HdlcDecoder.FrameListener() {
+                @Override
+                public void onFrame(HdlcFrame frame) {
+                    final GattSession session = mSessions.get(address);
+                    final BluetoothGattCharacteristic rx = session != null ? session.getRx() : null;
+                    publish(GattEvent.Type.DATA_AVAILABLE, address, rx != null ? rx.getUuid() : null,
+                            mBufferPool.copyOf(frame.getBuffer(), frame.getOffset(), frame.getLength()));
+                    // UI frames carry unsolicited data and never answer a request
+                    if (session != null && !(frame.isUnnumbered() && frame.getCommand() == HdlcFrame.CONTROL_UI)) {
+                        session.onResponse(frame);
+                    }
+                }
+            });
+            final GattSession hdlcSession = session;
+            final HdlcLink link = new HdlcLink(HDLC_CLIENT_ADDRESS, HDLC_SERVER_ADDRESS, HDLC_SERVER_ADDRESS_LENGTH, new HdlcLink.Sink() {
+                @Override
+                public boolean send(byte[] frame) {
+                    return hdlcSession.send(frame);
+                }
+            }, bleHandler);
+            final DlmsTransactions transactions = new DlmsTransactions(link, bleHandler);
+            transactions.setNotificationListener(new DlmsTransactions.NotificationListener() {
+                @Override
+                public void onNotification(byte[] apdu) {
+                    publish(GattEvent.Type.DLMS_NOTIFICATION, address, null, apdu);
+                }
+            });
+            link.setListener(new HdlcLink.Listener() {
+                @Override
+                public void onConnected(HdlcLink.Parameters parameters) {
+                    LINK_LOG.i("BLE HDLC link established with {}: {}", address, parameters);
+                }
+
+                @Override
+                public void onApdu(byte[] apdu) {
+                    transactions.onApdu(apdu);
+                }
+
+                @Override
+                public void onDisconnected() {
+                    LINK_LOG.i("BLE HDLC link closed with {}", address);
+                    transactions.reset();
+                }
+            });
+            session.setHdlcLink(link);
+            session.setDlmsTransactions(transactions);
+            mSessions.put(address, session);
+        }
+
+        BondStateDispatcher.getInstance(this).register(address, mBondListener);
+        mBluetoothDeviceAddress = address;
+
+        if (session.getConnectionState() != GattSession.STATE_DISCONNECTED) {
+            LOG.d("BLE Already connecting or connected to {}", address);
+            return true;
+        }
+        if (mReuseBond && device.getBondState() == BluetoothDevice.BOND_BONDED) {
+            // Reuse the bond: no unpair/pair round trip, and the stack's attribute cache survives
+            final Long lastSeen = mLastSeen.get(address);
+            final boolean fresh = lastSeen != null && SystemClock.elapsedRealtime() - lastSeen <= SCAN_FRESHNESS_MS;
+            session.setBonded(true);
+            connectGatt(session, fresh ? ConnectMetrics.PATH_DIRECT : ConnectMetrics.PATH_AUTO);
+        } else {
+            session.startConnect(ConnectMetrics.PATH_REPAIR);
+            session.setConnectionState(GattSession.STATE_CONNECTING);
+            removeBond(session);
         }
 
         // We want to directly connect to the device, so we are setting the autoConnect
@@ -791,38 +1164,158 @@ public class BluetoothLeService extends Service {
         return true;
     }
 
-    private void removeBond(BluetoothDevice device) {
+    /**
+     * Queues service discovery, whose result arrives in {@code onServicesDiscovered}.
+     */
+    private void discoverServices(final GattSession session) {
+        boolean result = session.enqueue(new GattCommand(GattCommand.Type.DISCOVER_SERVICES, new Runnable() {
+            @Override
+            public void run() {
+                if (!session.getGatt().discoverServices()) {
+                    LOG.w("BLE WARNING: GATT Service discovery failed");
+                    //FileLogger.logToFile(getApplicationContext(), "BLE ERROR: GATT Service discovery failed");
+                    session.retryCommand(GattCommand.Type.DISCOVER_SERVICES);
+                } else {
+                    LOG.d("BLE INFO: Service Discovery Requested");
+                    //FileLogger.logToFile(getApplicationContext(), "BLE Service Discovery Requested");
+                }
+            }
+        }));
+        if (result) {
+            LOG.d("BLE commandQueue added");
+            //FileLogger.logToFile(getApplicationContext(), "commandQueue added");
+        } else {
+            //FileLogger.logToFile(getApplicationContext(), "commandQueue not added");
+            LOG.e("BLE ERROR: Could not enqueue service discovery");
+        }
+    }
+
+    /**
+     * Reads the server's Database Hash, if it has one, and checks it against the one cached for
+     * {@code cached}. A new entry just records the hash. A different hash means the database
+     * changed since the entry was made without us seeing Service Changed, so the entry and the
+     * stack's own cache are dropped and services are discovered again.
+     */
+    private void checkDatabaseHash(final GattSession session, final GattCache.Entry cached) {
+        final BluetoothGatt gatt = session.getGatt();
+        final BluetoothGattService generic = gatt.getService(GattCache.GENERIC_ATTRIBUTE_SERVICE_UUID);
+        if (generic == null || generic.getCharacteristic(GattCache.DATABASE_HASH_UUID) == null) {
+            return;
+        }
+        final String address = session.getAddress();
+        read(address, GattCache.DATABASE_HASH_UUID, DEFAULT_REQUEST_TIMEOUT_MS).thenAccept(new Consumer<byte[]>() {
+            @Override
+            public void accept(byte[] databaseHash) {
+                if (cached == null || cached.getDatabaseHash() == null) {
+                    mGattCache.setDatabaseHash(address, databaseHash);
+                } else if (!GattCache.isCurrent(cached, databaseHash)) {
+                    LOG.w("BLE WARNING: Database Hash of {} changed, discovering services again", address);
+                    mGattCache.invalidate(address);
+                    refreshDeviceCache(gatt);
+                    discoverServices(session);
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops the Bluetooth stack's own copy of the remote database through the hidden
+     * {@code BluetoothGatt.refresh()}, so the next discovery goes to the server.
+     */
+    private static void refreshDeviceCache(BluetoothGatt gatt) {
+        try {
+            Method method = gatt.getClass().getMethod("refresh", (Class[]) null);
+            boolean result = (boolean) method.invoke(gatt, (Object[]) null);
+            LOG.d("BLE GATT refresh {}", result);
+        } catch (Exception e) {
+            LOG.e("BLE ERROR: GATT refresh failed: {}", e);
+        }
+    }
+
+    /**
+     * Connects to a bonded device. A direct connection fails after about 30 s if the device does
+     * not answer, so it is only used when a scan has just seen the device; otherwise the stack
+     * connects in the background whenever the device starts advertising.
+     */
+    private void connectGatt(GattSession session, int path) {
+        LOG.d("BLE Connecting to {} via {} path", session.getAddress(), ConnectMetrics.getPathName(path));
+        session.startConnect(path);
+        session.setGatt(session.getDevice().connectGatt(getApplicationContext(), path == ConnectMetrics.PATH_AUTO, mGattCallback,
+                BluetoothDevice.TRANSPORT_LE, BluetoothDevice.PHY_LE_1M_MASK, bleHandler));
+        session.setConnectionState(GattSession.STATE_CONNECTING);
+    }
+
+    /**
+     * Ends the session of a device whose link went down: its queued commands and pending
+     * responses fail, DISCONNECTED is published and the next {@link #connect(String)} starts
+     * over.
+     */
+    private void onDisconnected(GattSession session, BluetoothGatt gatt, int status) {
+        final BluetoothGatt current = session.getGatt();
+        if (current != null && current != gatt) {
+            // A handle the session has already replaced, e.g. the one used for pairing
+            gatt.close();
+            return;
+        }
+        if (!session.isBonded() && gatt.getDevice().getBondState() == BluetoothDevice.BOND_BONDING) {
+            // Pairing goes on without this link; the bond listener reconnects once it is done
+            LOG.d("BLE Disconnected from {} while bonding, status {}", session.getAddress(), status);
+            return;
+        }
+        LOG.i("BLE Disconnected from GATT server, status {}", status);
+        EventLog.log(LogEvent.DISCONNECTED, session.getAddress(), status);
+        publish(GattEvent.Type.DISCONNECTED, session.getAddress());
+        close(session.getAddress());
+        if (current == null) {
+            // Not yet handed to the session, so closing the session did not close it
+            gatt.close();
+        }
+    }
+
+    /**
+     * Records that a device was seen in a scan, so the next {@link #connect(String)} to it may
+     * connect directly instead of in the background.
+     *
+     * @param elapsedRealtime When it was seen, in {@link SystemClock#elapsedRealtime()}.
+     */
+    public void onDeviceSeen(final String address, long elapsedRealtime) {
+        mLastSeen.put(address, elapsedRealtime);
+    }
+
+    /**
+     * With {@code reuseBond} (the default) {@link #connect(String)} keeps an existing bond. Without
+     * it every connection removes the bond and pairs again.
+     */
+    public void setReuseBond(boolean reuseBond) {
+        mReuseBond = reuseBond;
+    }
+
+    public ConnectMetrics getConnectMetrics() {
+        return mConnectMetrics;
+    }
+
+    private void removeBond(GattSession session) {
+        final BluetoothDevice device = session.getDevice();
         Method method = null;
 
         try {
             method = device.getClass().getMethod("removeBond", (Class[]) null);
             boolean result = (boolean) method.invoke(device, (Object[]) null);
-            isBonded = false;
-            Log.v("RemoveBond Status", " " + result);
-            Log.d("TAGG", "Remove bond " + result);
+            session.setBonded(false);
+            LOG.d("BLE Remove bond {}", result);
             //FileLogger.logToFile(getApplicationContext(),  "BLE Remove bond " + result);
 
             if (!result) {
 
-                if (mBluetoothGatt != null) {
-                    mBluetoothGatt.close();
-                }
-                isBonded = false;
-                mBluetoothGatt = null;
-                Log.d(TAG, "BLE Trying to create a new connection.");
-                Log.d("TAGG", "BLE Trying to create a new connection.");
+                session.close();
+                session.setBonded(false);
+                LOG.d("BLE Trying to create a new connection.");
                 //FileLogger.logToFile(getApplicationContext(),  "BLE Trying to create a new connection.");
-                mBluetoothGatt = device.connectGatt(getApplicationContext(), false, mGattCallback);
-                mConnectionState = STATE_CONNECTING;
+                session.setGatt(device.connectGatt(getApplicationContext(), false, mGattCallback, BluetoothDevice.TRANSPORT_LE, BluetoothDevice.PHY_LE_1M_MASK, bleHandler));
+                session.setConnectionState(GattSession.STATE_CONNECTING);
             }
-        } catch (NoSuchMethodException e) {
-            Log.v("error : ", "NoSuchMethodException");
-            throw new RuntimeException(e);
-        } catch (InvocationTargetException e) {
-            Log.v("error : ", "InvocationTargetException");
-            throw new RuntimeException(e);
-        } catch (IllegalAccessException e) {
-            Log.v("error : ", "IllegalAccessException");
+        } catch (NoSuchMethodException | InvocationTargetException | IllegalAccessException e) {
+            LOG.e("BLE ERROR: removeBond failed: {}", e);
             throw new RuntimeException(e);
         }
     }
@@ -834,16 +1327,26 @@ public class BluetoothLeService extends Service {
      * callback.
      */
     public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BLE BluetoothAdapter not initialized");
+        disconnect(mBluetoothDeviceAddress);
+    }
+
+    /**
+     * Disconnects the given device. See {@link #disconnect()}.
+     *
+     * @param address The device address of the device to disconnect.
+     */
+    public void disconnect(final String address) {
+        final GattSession session = address != null ? mSessions.get(address) : null;
+        if (mBluetoothAdapter == null || session == null || session.getGatt() == null) {
+            LOG.w("BLE BluetoothAdapter not initialized");
             return;
         }
 
-        mBluetoothGatt.disconnect();
+        session.getGatt().disconnect();
         //mBluetoothGatt.close();
         //close();
         //mBluetoothGatt = null;
-//        String intentAction = ACTION_GATT_DISCONNECTED;
+//        String intentAction = GattEvent.Type.DISCONNECTED;
 //        mConnectionState = STATE_DISCONNECTED;
 //        Log.i(TAG, "BLE Disconnected from GATT server.");
 //        broadcastUpdate(intentAction);
@@ -854,44 +1357,65 @@ public class BluetoothLeService extends Service {
      * released properly.
      */
     public void close() {
-        if (mBluetoothGatt == null) {
-            return;
+        final BondStateDispatcher dispatcher = BondStateDispatcher.getInstance(this);
+        for (GattSession session : mSessions.values()) {
+            dispatcher.unregister(session.getAddress(), mBondListener);
+            session.close();
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
+        mSessions.clear();
     }
 
     /**
-     * Request a read on a given {@code BluetoothGattCharacteristic}. The read result is reported
-     * asynchronously through the {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
-     * callback.
+     * Releases the session of a single device so its connection slot can be reused.
+     *
+     * @param address The device address of the session to close.
+     */
+    public void close(final String address) {
+        final GattSession session = address != null ? mSessions.remove(address) : null;
+        if (session != null) {
+            BondStateDispatcher.getInstance(this).unregister(address, mBondListener);
+            session.close();
+        }
+    }
+
+    /**
+     * Request a read on a given {@code BluetoothGattCharacteristic}. The read is queued behind
+     * the session's other commands and its value is published as
+     * {@link GattEvent.Type#DATA_AVAILABLE}; use {@link #read(String, UUID, long)} to wait for it.
      *
      * @param characteristic The characteristic to read from.
      */
-    public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BLE BluetoothAdapter not initialized");
+    public void readCharacteristic(final BluetoothGattCharacteristic characteristic) {
+        final GattSession session = getCurrentSession();
+        if (mBluetoothAdapter == null || session == null || session.getGatt() == null) {
+            LOG.w("BLE BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.readCharacteristic(characteristic);
+        read(session, characteristic, DEFAULT_REQUEST_TIMEOUT_MS).whenComplete(new BiConsumer<byte[], Throwable>() {
+            @Override
+            public void accept(byte[] value, Throwable error) {
+                if (error != null) {
+                    LOG.w("BLE WARNING: read of {} failed: {}", characteristic.getUuid(), error);
+                }
+            }
+        });
     }
 
     public void writeCharacteristic(BluetoothGattCharacteristic characteristic, String data) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BLE BluetoothAdapter not initialized");
+        if (mBluetoothAdapter == null || getCurrentSession() == null) {
+            LOG.w("BLE BluetoothAdapter not initialized");
             return;
         }
-        send(hexStringToByteArray(data));
-        //mBluetoothGatt.writeCharacteristic(tx, hexStringToByteArray(data), BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
-    }
-
-    private byte[] hexStringToByteArray(String s) {
-        int len = s.length();
-        byte[] data = new byte[len / 2];
-        for (int i = 0; i < len; i += 2) {
-            data[i / 2] = (byte) ((Character.digit(s.charAt(i), 16) << 4) + Character.digit(s.charAt(i + 1), 16));
+        final byte[] payload;
+        try {
+            // Typed by the user, so spaces, colons and a 0x prefix are accepted
+            payload = HexCodec.decode(data, HexCodec.Mode.LENIENT);
+        } catch (IllegalArgumentException e) {
+            LOG.w("BLE WARNING: {}", e.getMessage());
+            return;
         }
-        return data;
+        send(payload);
+        //mBluetoothGatt.writeCharacteristic(tx, hexStringToByteArray(data), BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
     }
 
     /**
@@ -901,17 +1425,19 @@ public class BluetoothLeService extends Service {
      * @param enabled        If true, enable notification.  False otherwise.
      */
     public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enabled) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
+        final GattSession session = getCurrentSession();
+        final BluetoothGatt gatt = session != null ? session.getGatt() : null;
+        if (mBluetoothAdapter == null || gatt == null) {
+            LOG.w("BLE BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
+        gatt.setCharacteristicNotification(characteristic, enabled);
 
         // This is specific to Heart Rate Measurement.
         if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
             BluetoothGattDescriptor descriptor = characteristic.getDescriptor(UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
             descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
+            gatt.writeDescriptor(descriptor);
         }
     }
 
@@ -922,8 +1448,9 @@ public class BluetoothLeService extends Service {
      * @return A {@code List} of supported services.
      */
     public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null) return null;
+        final GattSession session = getCurrentSession();
+        if (session == null || session.getGatt() == null) return null;
 
-        return mBluetoothGatt.getServices();
+        return session.getGatt().getServices();
     }
 }
@@ -0,0 +1,100 @@
+package com.ble.demobleapplication;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The one bond-state and ACL receiver of the process.
+ * <p>
+ * It is registered once, on the application context, and delivers broadcasts on the GATT thread
+ * ({@link GattThread}) where the session state lives. Listeners are indexed by device address, so
+ * every broadcast is a single map lookup and only reaches the session of the device it is about.
+ * The bond state is taken from the broadcast extras instead of asking the device again.
+ */
+public class BondStateDispatcher extends BroadcastReceiver {
+    private final static String TAG = BondStateDispatcher.class.getSimpleName();
+
+    public interface Listener {
+        void onBondStateChanged(BluetoothDevice device, int bondState, int previousBondState);
+
+        void onAclConnected(BluetoothDevice device);
+
+        void onAclDisconnected(BluetoothDevice device);
+    }
+
+    private static BondStateDispatcher instance;
+
+    private final ConcurrentHashMap<String, Listener> listeners = new ConcurrentHashMap<>();
+    private final AtomicLong unrouted = new AtomicLong();
+
+    private BondStateDispatcher() {
+    }
+
+    /**
+     * @return The dispatcher, registering it on the application context the first time.
+     */
+    public static synchronized BondStateDispatcher getInstance(Context context) {
+        if (instance == null) {
+            instance = new BondStateDispatcher();
+            IntentFilter filter = new IntentFilter();
+            filter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+            filter.addAction(BluetoothDevice.ACTION_ACL_CONNECTED);
+            filter.addAction(BluetoothDevice.ACTION_ACL_DISCONNECTED);
+            context.getApplicationContext().registerReceiver(instance, filter, null, GattThread.getHandler());
+            Log.d(TAG, "BLE bond state dispatcher registered");
+        }
+        return instance;
+    }
+
+    /**
+     * Routes the events of {@code address} to {@code listener}, replacing any previous listener
+     * for that address.
+     */
+    public void register(String address, Listener listener) {
+        listeners.put(address, listener);
+    }
+
+    /**
+     * Stops routing events of {@code address}, unless another listener has taken it over since.
+     */
+    public void unregister(String address, Listener listener) {
+        listeners.remove(address, listener);
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        final BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+        if (device == null) {
+            return;
+        }
+        final Listener listener = listeners.get(device.getAddress());
+        if (listener == null) {
+            unrouted.incrementAndGet();
+            return;
+        }
+        final String action = intent.getAction();
+        if (BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(action)) {
+            listener.onBondStateChanged(device,
+                    intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, BluetoothDevice.BOND_NONE),
+                    intent.getIntExtra(BluetoothDevice.EXTRA_PREVIOUS_BOND_STATE, BluetoothDevice.BOND_NONE));
+        } else if (BluetoothDevice.ACTION_ACL_CONNECTED.equals(action)) {
+            listener.onAclConnected(device);
+        } else if (BluetoothDevice.ACTION_ACL_DISCONNECTED.equals(action)) {
+            listener.onAclDisconnected(device);
+        }
+    }
+
+    /**
+     * @return The number of broadcasts about devices no session has registered for.
+     */
+    public long getUnroutedCount() {
+        return unrouted.get();
+    }
+}
@@ -0,0 +1,164 @@
+package com.ble.demobleapplication;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed set of equally sized byte buffers, handed out as reference-counted {@link Lease}s, so
+ * received payloads can travel from the GATT callback to their consumers without allocating a
+ * new array for every notification.
+ * <p>
+ * A lease starts with one reference, owned by whoever acquired it. Every additional holder calls
+ * {@link Lease#retain()} and every holder calls {@link Lease#release()} when done; the buffer
+ * returns to the pool with the last release. When all buffers are out, or a payload is larger
+ * than a buffer, an unpooled lease with a fresh array is handed out instead, so data is never
+ * dropped; both cases are counted.
+ */
+public class BufferPool {
+
+    public static final class Lease {
+        private final BufferPool pool;
+        private final byte[] array;
+        private int length;
+        private final AtomicInteger references = new AtomicInteger();
+
+        private Lease(BufferPool pool, byte[] array) {
+            this.pool = pool;
+            this.array = array;
+        }
+
+        /**
+         * @return The backing array. Only the first {@link #length()} bytes belong to the lease.
+         */
+        public byte[] array() {
+            return array;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public Lease retain() {
+            references.incrementAndGet();
+            return this;
+        }
+
+        public void release() {
+            int remaining = references.decrementAndGet();
+            if (remaining == 0) {
+                if (pool != null) {
+                    pool.recycle(this);
+                }
+            } else if (remaining < 0) {
+                throw new IllegalStateException("lease released more often than retained");
+            }
+        }
+    }
+
+    private final int bufferSize;
+    private final Lease[] free;
+    private int freeCount;
+
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+    private final AtomicLong oversize = new AtomicLong();
+    private int peakInUse = 0;
+
+    /**
+     * @param count      Number of buffers, all allocated up front.
+     * @param bufferSize Size of every buffer, the largest payload served from the pool.
+     */
+    public BufferPool(int count, int bufferSize) {
+        this.bufferSize = bufferSize;
+        free = new Lease[count];
+        for (int i = 0; i < count; i++) {
+            free[i] = new Lease(this, new byte[bufferSize]);
+        }
+        freeCount = count;
+    }
+
+    /**
+     * @return A lease of {@code length} bytes with one reference; its contents are undefined.
+     */
+    public Lease acquire(int length) {
+        acquired.incrementAndGet();
+        Lease lease = null;
+        if (length > bufferSize) {
+            oversize.incrementAndGet();
+        } else {
+            synchronized (this) {
+                if (freeCount > 0) {
+                    lease = free[--freeCount];
+                    free[freeCount] = null;
+                    peakInUse = Math.max(peakInUse, free.length - freeCount);
+                }
+            }
+            if (lease == null) {
+                exhausted.incrementAndGet();
+            }
+        }
+        if (lease == null) {
+            lease = new Lease(null, new byte[length]);
+        }
+        lease.length = length;
+        lease.references.set(1);
+        return lease;
+    }
+
+    /**
+     * @return A lease holding a copy of {@code length} bytes of {@code data}.
+     */
+    public Lease copyOf(byte[] data, int offset, int length) {
+        Lease lease = acquire(length);
+        System.arraycopy(data, offset, lease.array, 0, length);
+        return lease;
+    }
+
+    private synchronized void recycle(Lease lease) {
+        free[freeCount++] = lease;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public synchronized int getInUse() {
+        return free.length - freeCount;
+    }
+
+    public synchronized int getPeakInUse() {
+        return peakInUse;
+    }
+
+    public long getAcquiredCount() {
+        return acquired.get();
+    }
+
+    /**
+     * @return How often the pool was empty and a buffer had to be allocated.
+     */
+    public long getExhaustedCount() {
+        return exhausted.get();
+    }
+
+    /**
+     * @return How often a payload did not fit a pooled buffer and one had to be allocated.
+     */
+    public long getOversizeCount() {
+        return oversize.get();
+    }
+
+    /**
+     * @return All buffers allocated after construction.
+     */
+    public long getAllocationCount() {
+        return exhausted.get() + oversize.get();
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool{size=" + bufferSize + ", buffers=" + free.length + ", inUse=" + getInUse()
+                + ", peak=" + getPeakInUse() + ", acquired=" + getAcquiredCount()
+                + ", exhausted=" + getExhaustedCount() + ", oversize=" + getOversizeCount() + "}";
+    }
+}
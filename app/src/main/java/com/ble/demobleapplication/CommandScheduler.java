@@ -0,0 +1,121 @@
+package com.ble.demobleapplication;
+
+import java.util.ArrayDeque;
+
+/**
+ * Holds the pending commands of a {@link GattSession} in one FIFO per
+ * {@link GattCommand.Lane} and decides which one runs next.
+ * <p>
+ * In {@link Mode#STRICT} mode the highest priority non-empty lane always wins, so a CCCD write
+ * or a short DLMS request never waits for more than the bulk write already in flight. In
+ * {@link Mode#WEIGHTED} mode each lane gets a number of turns per round in proportion to its
+ * weight, so bulk traffic keeps moving even while the other lanes are busy.
+ */
+public class CommandScheduler {
+
+    public enum Mode {
+        STRICT,
+        WEIGHTED
+    }
+
+    // Turns per round for CONTROL, INTERACTIVE and BULK in weighted mode
+    private static final int[] DEFAULT_WEIGHTS = {8, 4, 1};
+
+    private final ArrayDeque<GattCommand>[] lanes;
+    private final int[] weights = DEFAULT_WEIGHTS.clone();
+    private final int[] credits = DEFAULT_WEIGHTS.clone();
+    private Mode mode = Mode.STRICT;
+
+    @SuppressWarnings("unchecked")
+    public CommandScheduler() {
+        lanes = new ArrayDeque[GattCommand.Lane.values().length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ArrayDeque<>();
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Sets the number of turns a lane gets per round in weighted mode. Weights below 1 are
+     * treated as 1 so no lane can starve.
+     */
+    public void setWeight(GattCommand.Lane lane, int weight) {
+        weights[lane.ordinal()] = Math.max(1, weight);
+        credits[lane.ordinal()] = Math.min(credits[lane.ordinal()], weights[lane.ordinal()]);
+    }
+
+    public boolean add(GattCommand command) {
+        return lanes[command.getLane().ordinal()].add(command);
+    }
+
+    public boolean remove(GattCommand command) {
+        return lanes[command.getLane().ordinal()].remove(command);
+    }
+
+    /**
+     * Removes and returns the command that should run next, or null if every lane is empty.
+     */
+    public GattCommand next() {
+        if (mode == Mode.STRICT) {
+            for (ArrayDeque<GattCommand> lane : lanes) {
+                if (!lane.isEmpty()) {
+                    return lane.poll();
+                }
+            }
+            return null;
+        }
+
+        GattCommand command = nextWithCredit();
+        if (command == null && !isEmpty()) {
+            // Every busy lane has used its turns for this round: start a new one
+            System.arraycopy(weights, 0, credits, 0, weights.length);
+            command = nextWithCredit();
+        }
+        return command;
+    }
+
+    private GattCommand nextWithCredit() {
+        for (int i = 0; i < lanes.length; i++) {
+            if (!lanes[i].isEmpty() && credits[i] > 0) {
+                credits[i]--;
+                return lanes[i].poll();
+            }
+        }
+        return null;
+    }
+
+    public boolean isEmpty() {
+        for (ArrayDeque<GattCommand> lane : lanes) {
+            if (!lane.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int size() {
+        int size = 0;
+        for (ArrayDeque<GattCommand> lane : lanes) {
+            size += lane.size();
+        }
+        return size;
+    }
+
+    public int size(GattCommand.Lane lane) {
+        return lanes[lane.ordinal()].size();
+    }
+
+    public void clear() {
+        for (ArrayDeque<GattCommand> lane : lanes) {
+            lane.clear();
+        }
+        System.arraycopy(weights, 0, credits, 0, weights.length);
+    }
+}
@@ -0,0 +1,78 @@
+package com.ble.demobleapplication;
+
+import java.util.Locale;
+
+/**
+ * Time from {@code connect()} until a session is ready (services resolved, notifications
+ * enabled and MTU negotiated), kept separately for every connect path so the paths can be
+ * compared.
+ */
+public class ConnectMetrics {
+
+    /**
+     * Bond removed and the meter paired again before connecting.
+     */
+    public static final int PATH_REPAIR = 0;
+    /**
+     * Existing bond, meter seen in a recent scan, direct connection.
+     */
+    public static final int PATH_DIRECT = 1;
+    /**
+     * Existing bond, meter not seen recently, background connection with autoConnect.
+     */
+    public static final int PATH_AUTO = 2;
+
+    private static final String[] PATH_NAMES = {"repair", "direct", "auto"};
+
+    private final long[] counts = new long[PATH_NAMES.length];
+    private final long[] totalMs = new long[PATH_NAMES.length];
+    private final long[] minMs = new long[PATH_NAMES.length];
+    private final long[] maxMs = new long[PATH_NAMES.length];
+
+    public synchronized void record(int path, long elapsedMs) {
+        if (counts[path] == 0 || elapsedMs < minMs[path]) {
+            minMs[path] = elapsedMs;
+        }
+        if (elapsedMs > maxMs[path]) {
+            maxMs[path] = elapsedMs;
+        }
+        counts[path]++;
+        totalMs[path] += elapsedMs;
+    }
+
+    public synchronized long getCount(int path) {
+        return counts[path];
+    }
+
+    /**
+     * @return The mean time to ready of {@code path} in milliseconds, or -1 if it was never used.
+     */
+    public synchronized long getMeanMs(int path) {
+        return counts[path] > 0 ? totalMs[path] / counts[path] : -1;
+    }
+
+    public synchronized long getMinMs(int path) {
+        return counts[path] > 0 ? minMs[path] : -1;
+    }
+
+    public synchronized long getMaxMs(int path) {
+        return counts[path] > 0 ? maxMs[path] : -1;
+    }
+
+    public static String getPathName(int path) {
+        return PATH_NAMES[path];
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int path = 0; path < PATH_NAMES.length; path++) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(String.format(Locale.US, "%s n=%d mean=%d min=%d max=%d ms", PATH_NAMES[path],
+                    counts[path], getMeanMs(path), getMinMs(path), getMaxMs(path)));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,130 @@
+package com.ble.demobleapplication;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * CRC-16/X.25, the frame check sequence used for the HDLC HCS and FCS (IEC 62056-46, RFC 1662).
+ * <p>
+ * The static methods compute a checksum in one call. An instance can be updated incrementally,
+ * e.g. one notification at a time, and yields the same value as the one-shot methods over the
+ * concatenated input. Inputs of eight bytes or more are processed slice-by-8, i.e. eight bytes
+ * per step using eight precomputed tables; shorter inputs and the tail use the single table.
+ */
+public class Crc16 implements Checksum {
+
+    private static final int POLYNOMIAL = 0x8408;
+    private static final int INITIAL = 0xFFFF;
+
+    // TABLES[0] is the classic byte-at-a-time table, TABLES[k] advances a byte k positions further
+    private static final int[][] TABLES = new int[8][256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLES[0][i] = crc;
+        }
+        for (int k = 1; k < TABLES.length; k++) {
+            for (int i = 0; i < 256; i++) {
+                int previous = TABLES[k - 1][i];
+                TABLES[k][i] = (previous >>> 8) ^ TABLES[0][previous & 0xFF];
+            }
+        }
+    }
+
+    private int crc = INITIAL;
+
+    /**
+     * @return The FCS of {@code length} bytes, using slice-by-8 where possible.
+     */
+    public static int fcs(byte[] data, int offset, int length) {
+        return ~sliceBy8(INITIAL, data, offset, length) & 0xFFFF;
+    }
+
+    /**
+     * @return The FCS of the remaining bytes of {@code buffer}. The position is not changed.
+     */
+    public static int fcs(ByteBuffer buffer) {
+        return ~update(INITIAL, buffer.duplicate()) & 0xFFFF;
+    }
+
+    /**
+     * @return The FCS of {@code length} bytes, one table lookup per byte.
+     */
+    public static int fcsBytewise(byte[] data, int offset, int length) {
+        return ~bytewise(INITIAL, data, offset, length) & 0xFFFF;
+    }
+
+    private static int bytewise(int crc, byte[] data, int offset, int length) {
+        final int[] table = TABLES[0];
+        for (int i = offset, end = offset + length; i < end; i++) {
+            crc = (crc >>> 8) ^ table[(crc ^ data[i]) & 0xFF];
+        }
+        return crc;
+    }
+
+    private static int sliceBy8(int crc, byte[] data, int offset, int length) {
+        final int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+        final int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+        int i = offset;
+        for (int end = offset + (length & ~7); i < end; i += 8) {
+            crc = t7[(data[i] ^ crc) & 0xFF]
+                    ^ t6[(data[i + 1] ^ (crc >>> 8)) & 0xFF]
+                    ^ t5[data[i + 2] & 0xFF]
+                    ^ t4[data[i + 3] & 0xFF]
+                    ^ t3[data[i + 4] & 0xFF]
+                    ^ t2[data[i + 5] & 0xFF]
+                    ^ t1[data[i + 6] & 0xFF]
+                    ^ t0[data[i + 7] & 0xFF];
+        }
+        return bytewise(crc, data, i, length & 7);
+    }
+
+    private static int update(int crc, ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            int position = buffer.position();
+            crc = sliceBy8(crc, buffer.array(), buffer.arrayOffset() + position, buffer.remaining());
+            buffer.position(buffer.limit());
+            return crc;
+        }
+        final int[] table = TABLES[0];
+        while (buffer.hasRemaining()) {
+            crc = (crc >>> 8) ^ table[(crc ^ buffer.get()) & 0xFF];
+        }
+        return crc;
+    }
+
+    @Override
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xFF];
+    }
+
+    @Override
+    public void update(byte[] data, int offset, int length) {
+        crc = sliceBy8(crc, data, offset, length);
+    }
+
+    public void update(byte[] data) {
+        update(data, 0, data.length);
+    }
+
+    /**
+     * Adds the remaining bytes of {@code buffer} and advances its position to the limit.
+     */
+    public void update(ByteBuffer buffer) {
+        crc = update(crc, buffer);
+    }
+
+    @Override
+    public long getValue() {
+        return ~crc & 0xFFFF;
+    }
+
+    @Override
+    public void reset() {
+        crc = INITIAL;
+    }
+}
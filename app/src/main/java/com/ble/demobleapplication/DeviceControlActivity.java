@@ -19,16 +19,14 @@ package com.ble.demobleapplication;
 import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -60,11 +58,14 @@ public class DeviceControlActivity extends AppCompatActivity {
 
     public static final String EXTRAS_DEVICE_NAME = "DEVICE_NAME";
     public static final String EXTRAS_DEVICE_ADDRESS = "DEVICE_ADDRESS";
+    public static final String EXTRAS_DEVICE_SEEN_AT = "DEVICE_SEEN_AT";
 
     private TextView mConnectionState;
     private TextView mDataField;
     private String mDeviceName;
     private String mDeviceAddress;
+    private long mDeviceSeenAt;
+    private GattEventBus.Subscription mGattEventSubscription;
     private ExpandableListView mGattServicesList;
     private BluetoothLeService mBluetoothLeService;
     private ArrayList<ArrayList<BluetoothGattCharacteristic>> mGattCharacteristics =
@@ -86,6 +87,11 @@ public class DeviceControlActivity extends AppCompatActivity {
                 finish();
             }
             Log.e(TAG, "BLE onServiceConnected ");
+            mGattEventSubscription = mBluetoothLeService.getEventBus().subscribe(mGattEventSubscriber,
+                    new Handler(Looper.getMainLooper()), mDeviceAddress, null, GattEventBus.DEFAULT_CAPACITY);
+            if (mDeviceSeenAt > 0) {
+                mBluetoothLeService.onDeviceSeen(mDeviceAddress, mDeviceSeenAt);
+            }
             // Automatically connects to the device upon successful start-up initialization.
             //mBluetoothLeService.connect(mDeviceAddress);
         }
@@ -93,38 +99,48 @@ public class DeviceControlActivity extends AppCompatActivity {
         @Override
         public void onServiceDisconnected(ComponentName componentName) {
             Log.e(TAG, "BLE onServiceDisconnected ");
+            mGattEventSubscription = null;
             mBluetoothLeService = null;
         }
     };
 
-    // Handles various events fired by the Service.
-    // ACTION_GATT_CONNECTED: connected to a GATT server.
-    // ACTION_GATT_DISCONNECTED: disconnected from a GATT server.
-    // ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.
-    // ACTION_DATA_AVAILABLE: received data from the device.  This can be a result of read
-    //                        or notification operations.
-    private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
+    // Handles the events the Service publishes on its event bus for this device.
+    // CONNECTED: connected to a GATT server.
+    // DISCONNECTED: disconnected from a GATT server.
+    // SERVICES_DISCOVERED: discovered GATT services.
+    // DATA_AVAILABLE: received data from the device.  This can be a result of read
+    //                 or notification operations.
+    private final GattEventBus.Subscriber mGattEventSubscriber = new GattEventBus.Subscriber() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            Log.e(TAG, "BLE onReceive: action"+action );
-            if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
-                Log.d("TAGG", "Device CONNECTED");
-                mConnected = true;
-                updateConnectionState(R.string.connected);
-                invalidateOptionsMenu();
-            } else if (BluetoothLeService.ACTION_GATT_DISCONNECTED.equals(action)) {
-                Log.d("TAGG", "Device DISCONNECTED");
-                mConnected = false;
-                updateConnectionState(R.string.disconnected);
-                invalidateOptionsMenu();
-                clearUI();
-            } else if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
-                Log.d("TAGG", "Device DISCOVERED");
-                // Show all the supported services and characteristics on the user interface.
-                displayGattServices(mBluetoothLeService.getSupportedGattServices());
-            } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
-                displayData(intent.getStringExtra(BluetoothLeService.EXTRA_DATA));
+        public void onEvent(GattEvent event) {
+            BleLog.GATT.v("BLE onEvent: {}", event);
+            switch (event.getType()) {
+                case CONNECTED:
+                    Log.d("TAGG", "Device CONNECTED");
+                    mConnected = true;
+                    updateConnectionState(R.string.connected);
+                    invalidateOptionsMenu();
+                    break;
+                case DISCONNECTED:
+                    Log.d("TAGG", "Device DISCONNECTED");
+                    mConnected = false;
+                    updateConnectionState(R.string.disconnected);
+                    invalidateOptionsMenu();
+                    clearUI();
+                    break;
+                case SERVICES_DISCOVERED:
+                    Log.d("TAGG", "Device DISCOVERED");
+                    // Show all the supported services and characteristics on the user interface.
+                    if (mBluetoothLeService != null) {
+                        displayGattServices(mBluetoothLeService.getSupportedGattServices());
+                    }
+                    break;
+                case DATA_AVAILABLE:
+                    final byte[] data = event.getData();
+                    displayData(HexCodec.toHex(data, 0, event.getLength(), ' '));
+                    break;
+                default:
+                    break;
             }
         }
     };
@@ -245,6 +261,7 @@ public class DeviceControlActivity extends AppCompatActivity {
         final Intent intent = getIntent();
         mDeviceName = intent.getStringExtra(EXTRAS_DEVICE_NAME);
         mDeviceAddress = intent.getStringExtra(EXTRAS_DEVICE_ADDRESS);
+        mDeviceSeenAt = intent.getLongExtra(EXTRAS_DEVICE_SEEN_AT, 0);
 
         // Sets up UI references.
         ((TextView) findViewById(R.id.device_address)).setText(mDeviceAddress);
@@ -262,22 +279,18 @@ public class DeviceControlActivity extends AppCompatActivity {
     @Override
     protected void onResume() {
         super.onResume();
-        registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
         if (mBluetoothLeService != null) {
             final boolean result = mBluetoothLeService.connect(mDeviceAddress);
             Log.d(TAG, "BLE Connect request result=" + result);
         }
     }
 
-    @Override
-    protected void onPause() {
-        super.onPause();
-        unregisterReceiver(mGattUpdateReceiver);
-    }
-
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.getEventBus().unsubscribe(mGattEventSubscription);
+        }
         unbindService(mServiceConnection);
         mBluetoothLeService = null;
     }
@@ -384,13 +397,4 @@ public class DeviceControlActivity extends AppCompatActivity {
         );
         mGattServicesList.setAdapter(gattServiceAdapter);
     }
-
-    private static IntentFilter makeGattUpdateIntentFilter() {
-        final IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_CONNECTED);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
-        intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
-        return intentFilter;
-    }
 }
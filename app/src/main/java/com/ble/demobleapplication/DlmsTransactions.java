@@ -0,0 +1,297 @@
+package com.ble.demobleapplication;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+/**
+ * Matches DLMS responses to their requests on one {@link HdlcLink}, so several requests can be
+ * in flight and unsolicited notifications cannot be taken for a response.
+ * <p>
+ * GET, SET and ACTION requests are given a free invoke-id (0-15) before they are sent and are
+ * answered by the response with the same tag and invoke-id. Requests without an invoke-id
+ * (AARQ, RLRQ and ciphered APDUs) are answered in order by the first response with the
+ * matching tag; an exception-response answers the oldest outstanding request. Event and data
+ * notifications go to the {@link NotificationListener} instead.
+ */
+public class DlmsTransactions {
+    private final static String TAG = DlmsTransactions.class.getSimpleName();
+
+    // LLC header in front of every APDU (IEC 62056-46 8.1): DSAP, SSAP for request or response, quality
+    private static final int LLC_DSAP = 0xE6;
+    private static final int LLC_SSAP_REQUEST = 0xE6;
+    private static final int LLC_SSAP_RESPONSE = 0xE7;
+    private static final int LLC_HEADER_LENGTH = 3;
+
+    // xDLMS APDU tags
+    private static final int AARQ = 0x60;
+    private static final int AARE = 0x61;
+    private static final int RLRQ = 0x62;
+    private static final int RLRE = 0x63;
+    private static final int DATA_NOTIFICATION = 0x0F;
+    private static final int GET_REQUEST = 0xC0;
+    private static final int SET_REQUEST = 0xC1;
+    private static final int EVENT_NOTIFICATION_REQUEST = 0xC2;
+    private static final int ACTION_REQUEST = 0xC3;
+    private static final int GET_RESPONSE = 0xC4;
+    private static final int SET_RESPONSE = 0xC5;
+    private static final int ACTION_RESPONSE = 0xC7;
+    private static final int EXCEPTION_RESPONSE = 0xD8;
+
+    // The invoke-id sits in the low nibble of the third byte: tag, request type, invoke-id-and-priority
+    private static final int INVOKE_ID_OFFSET = 2;
+    private static final int INVOKE_IDS = 16;
+
+    public interface NotificationListener {
+        /**
+         * Called for event-notification-request and data-notification APDUs, without the LLC
+         * header.
+         */
+        void onNotification(byte[] apdu);
+    }
+
+    private static class Transaction {
+        final int responseTag;
+        final int invokeId;
+        final CompletableFuture<byte[]> response = new CompletableFuture<>();
+        Runnable timeout;
+
+        Transaction(int responseTag, int invokeId) {
+            this.responseTag = responseTag;
+            this.invokeId = invokeId;
+        }
+    }
+
+    private final HdlcLink link;
+    private final Handler handler;
+    private NotificationListener notificationListener;
+
+    private final Transaction[] byInvokeId = new Transaction[INVOKE_IDS];
+    // Outstanding requests in the order they were sent, with or without an invoke-id
+    private final ArrayDeque<Transaction> outstanding = new ArrayDeque<>();
+    private int nextInvokeId = 0;
+
+    private long notifications = 0;
+    private long unmatchedResponses = 0;
+
+    public DlmsTransactions(HdlcLink link, Handler handler) {
+        this.link = link;
+        this.handler = handler;
+    }
+
+    public synchronized void setNotificationListener(NotificationListener notificationListener) {
+        this.notificationListener = notificationListener;
+    }
+
+    /**
+     * Sends a request APDU (without LLC header) and completes with its response APDU.
+     * <p>
+     * For GET, SET and ACTION requests the invoke-id in the APDU is replaced with a free one.
+     * The future fails if all sixteen invoke-ids are in use, if the link is not connected or
+     * after {@code timeoutMs}. Cancelling it frees the invoke-id; a response that arrives
+     * later is counted as unmatched.
+     */
+    public CompletableFuture<byte[]> request(byte[] apdu, long timeoutMs) {
+        int tag = apdu.length > 0 ? apdu[0] & 0xFF : -1;
+        int responseTag = responseTag(tag);
+        if (responseTag < 0) {
+            return failed(new IllegalArgumentException("not a DLMS request: tag " + tag));
+        }
+
+        byte[] info = new byte[LLC_HEADER_LENGTH + apdu.length];
+        info[0] = (byte) LLC_DSAP;
+        info[1] = (byte) LLC_SSAP_REQUEST;
+        System.arraycopy(apdu, 0, info, LLC_HEADER_LENGTH, apdu.length);
+
+        final Transaction transaction;
+        synchronized (this) {
+            int invokeId = -1;
+            if (hasInvokeId(tag) && apdu.length > INVOKE_ID_OFFSET) {
+                invokeId = allocateInvokeId();
+                if (invokeId < 0) {
+                    return failed(new GattException("all " + INVOKE_IDS + " invoke-ids are in use"));
+                }
+                int position = LLC_HEADER_LENGTH + INVOKE_ID_OFFSET;
+                info[position] = (byte) ((info[position] & 0xF0) | invokeId);
+            }
+
+            transaction = new Transaction(responseTag, invokeId);
+            if (invokeId >= 0) {
+                byInvokeId[invokeId] = transaction;
+            }
+            outstanding.add(transaction);
+        }
+        transaction.response.whenComplete(new BiConsumer<byte[], Throwable>() {
+            @Override
+            public void accept(byte[] value, Throwable error) {
+                release(transaction);
+            }
+        });
+
+        final long deadline = timeoutMs;
+        transaction.timeout = new Runnable() {
+            @Override
+            public void run() {
+                transaction.response.completeExceptionally(new TimeoutException("no DLMS response within " + deadline + " ms"));
+            }
+        };
+        handler.postDelayed(transaction.timeout, timeoutMs);
+
+        // Outside the lock: the link delivers responses to onApdu() while holding its own lock
+        if (!link.sendApdu(info)) {
+            transaction.response.completeExceptionally(new GattException("HDLC link not connected"));
+        }
+        return transaction.response;
+    }
+
+    /**
+     * Routes an APDU received from the server, with or without LLC header, to the request it
+     * answers or to the notification listener.
+     */
+    public void onApdu(byte[] info) {
+        int offset = 0;
+        if (info.length >= LLC_HEADER_LENGTH && (info[0] & 0xFF) == LLC_DSAP
+                && ((info[1] & 0xFF) == LLC_SSAP_RESPONSE || (info[1] & 0xFF) == LLC_SSAP_REQUEST)) {
+            offset = LLC_HEADER_LENGTH;
+        }
+        if (info.length <= offset) {
+            return;
+        }
+        final byte[] apdu = offset == 0 ? info : Arrays.copyOfRange(info, offset, info.length);
+        int tag = apdu[0] & 0xFF;
+
+        if (tag == EVENT_NOTIFICATION_REQUEST || tag == DATA_NOTIFICATION) {
+            NotificationListener listener;
+            synchronized (this) {
+                notifications++;
+                listener = notificationListener;
+            }
+            if (listener != null) {
+                listener.onNotification(apdu);
+            }
+            return;
+        }
+
+        Transaction transaction;
+        synchronized (this) {
+            transaction = match(tag, apdu);
+            if (transaction == null) {
+                unmatchedResponses++;
+                Log.w(TAG, "BLE WARNING: DLMS response with tag 0x" + Integer.toHexString(tag) + " matches no request");
+                return;
+            }
+            release(transaction);
+        }
+        // Completed from the handler so continuations do not run inside the link's callback
+        final CompletableFuture<byte[]> response = transaction.response;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                response.complete(apdu);
+            }
+        });
+    }
+
+    private Transaction match(int tag, byte[] apdu) {
+        if (hasInvokeId(requestTag(tag)) && apdu.length > INVOKE_ID_OFFSET) {
+            Transaction transaction = byInvokeId[apdu[INVOKE_ID_OFFSET] & 0x0F];
+            return transaction != null && transaction.responseTag == tag ? transaction : null;
+        }
+        for (Transaction transaction : outstanding) {
+            if (transaction.responseTag == tag || tag == EXCEPTION_RESPONSE) {
+                return transaction;
+            }
+        }
+        return null;
+    }
+
+    private synchronized void release(Transaction transaction) {
+        handler.removeCallbacks(transaction.timeout);
+        if (transaction.invokeId >= 0 && byInvokeId[transaction.invokeId] == transaction) {
+            byInvokeId[transaction.invokeId] = null;
+        }
+        outstanding.remove(transaction);
+    }
+
+    private int allocateInvokeId() {
+        for (int i = 0; i < INVOKE_IDS; i++) {
+            int invokeId = (nextInvokeId + i) % INVOKE_IDS;
+            if (byInvokeId[invokeId] == null) {
+                nextInvokeId = (invokeId + 1) % INVOKE_IDS;
+                return invokeId;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Fails every outstanding request, e.g. when the link goes down.
+     */
+    public void reset() {
+        ArrayDeque<Transaction> failed;
+        synchronized (this) {
+            failed = new ArrayDeque<>(outstanding);
+        }
+        for (Transaction transaction : failed) {
+            transaction.response.completeExceptionally(new GattException("HDLC link closed"));
+        }
+    }
+
+    public synchronized int getOutstanding() {
+        return outstanding.size();
+    }
+
+    public synchronized long getNotificationCount() {
+        return notifications;
+    }
+
+    public synchronized long getUnmatchedResponseCount() {
+        return unmatchedResponses;
+    }
+
+    private static boolean hasInvokeId(int requestTag) {
+        return requestTag == GET_REQUEST || requestTag == SET_REQUEST || requestTag == ACTION_REQUEST;
+    }
+
+    /**
+     * @return The tag of the response that answers a request, or -1 if {@code tag} is not a
+     * request. Ciphered requests (glo- and ded-) map to their ciphered responses.
+     */
+    private static int responseTag(int tag) {
+        switch (tag) {
+            case AARQ:
+                return AARE;
+            case RLRQ:
+                return RLRE;
+            case GET_REQUEST:
+            case SET_REQUEST:
+            case ACTION_REQUEST:
+                // Global ciphered 0xC8/0xC9/0xCB and dedicated ciphered 0xD0/0xD1/0xD3 as well
+            case 0xC8:
+            case 0xC9:
+            case 0xCB:
+            case 0xD0:
+            case 0xD1:
+            case 0xD3:
+                return tag + 4;
+            default:
+                return -1;
+        }
+    }
+
+    private static int requestTag(int responseTag) {
+        return responseTag == GET_RESPONSE || responseTag == SET_RESPONSE || responseTag == ACTION_RESPONSE
+                ? responseTag - 4 : -1;
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable error) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(error);
+        return future;
+    }
+}
@@ -0,0 +1,164 @@
+package com.ble.demobleapplication;
+
+import android.os.SystemClock;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Structured log: records a {@link LogEvent} id, the monotonic time, the device and typed
+ * arguments in a compact binary form, and leaves formatting to {@link LogDecoder}.
+ * <p>
+ * Arguments are passed as they are, not as a message built by the caller, and there is an
+ * overload per argument shape instead of varargs, so an event below the current level costs one
+ * comparison and allocates nothing. Enabled events are handed to {@link FileLogger}, which
+ * stores them as binary frames in {@link FileLogger.Mode#RING} and as formatted lines otherwise.
+ * <p>
+ * Payload layout: event id (2 bytes), {@link SystemClock#elapsedRealtimeNanos()} (8), device key
+ * (8, the address as a 48 bit number, 0 for none), argument count (1), then per argument a type
+ * byte followed by a long (8) or a UTF-8 string with a 2 byte length.
+ */
+public final class EventLog {
+
+    public enum Level {
+        VERBOSE,
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR
+    }
+
+    static final byte TYPE_LONG = 'J';
+    static final byte TYPE_STRING = 'S';
+    static final int HEADER_SIZE = 19;
+    private static final int MAX_STRING_BYTES = 0xFFFF;
+
+    private static volatile int threshold = Level.INFO.ordinal();
+
+    private EventLog() {
+    }
+
+    /**
+     * Sets the lowest level that is recorded. Defaults to {@link Level#INFO}.
+     */
+    public static void setLevel(Level level) {
+        threshold = level.ordinal();
+    }
+
+    public static boolean isEnabled(LogEvent event) {
+        return event.getLevel().ordinal() >= threshold;
+    }
+
+    public static void log(LogEvent event) {
+        log(event, null);
+    }
+
+    public static void log(LogEvent event, String device) {
+        if (!isEnabled(event)) {
+            return;
+        }
+        FileLogger.logEvent(header(event, device, 0, 0));
+    }
+
+    public static void log(LogEvent event, String device, long a) {
+        if (!isEnabled(event)) {
+            return;
+        }
+        final byte[] payload = header(event, device, 1, 9);
+        putLong(payload, HEADER_SIZE, a);
+        FileLogger.logEvent(payload);
+    }
+
+    public static void log(LogEvent event, String device, long a, long b) {
+        if (!isEnabled(event)) {
+            return;
+        }
+        final byte[] payload = header(event, device, 2, 18);
+        putLong(payload, putLong(payload, HEADER_SIZE, a), b);
+        FileLogger.logEvent(payload);
+    }
+
+    public static void log(LogEvent event, String device, String s) {
+        if (!isEnabled(event)) {
+            return;
+        }
+        final byte[] bytes = utf8(s);
+        final byte[] payload = header(event, device, 1, 3 + bytes.length);
+        putString(payload, HEADER_SIZE, bytes);
+        FileLogger.logEvent(payload);
+    }
+
+    public static void log(LogEvent event, String device, long a, String s) {
+        if (!isEnabled(event)) {
+            return;
+        }
+        final byte[] bytes = utf8(s);
+        final byte[] payload = header(event, device, 2, 9 + 3 + bytes.length);
+        putString(payload, putLong(payload, HEADER_SIZE, a), bytes);
+        FileLogger.logEvent(payload);
+    }
+
+    private static byte[] header(LogEvent event, String device, int count, int argumentBytes) {
+        final byte[] payload = new byte[HEADER_SIZE + argumentBytes];
+        payload[0] = (byte) (event.getId() >> 8);
+        payload[1] = (byte) event.getId();
+        writeLong(payload, 2, SystemClock.elapsedRealtimeNanos());
+        writeLong(payload, 10, deviceKey(device));
+        payload[18] = (byte) count;
+        return payload;
+    }
+
+    private static int putLong(byte[] payload, int position, long value) {
+        payload[position] = TYPE_LONG;
+        writeLong(payload, position + 1, value);
+        return position + 9;
+    }
+
+    private static int putString(byte[] payload, int position, byte[] bytes) {
+        payload[position] = TYPE_STRING;
+        payload[position + 1] = (byte) (bytes.length >> 8);
+        payload[position + 2] = (byte) bytes.length;
+        System.arraycopy(bytes, 0, payload, position + 3, bytes.length);
+        return position + 3 + bytes.length;
+    }
+
+    private static void writeLong(byte[] payload, int position, long value) {
+        for (int i = 7; i >= 0; i--) {
+            payload[position + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static byte[] utf8(String s) {
+        final byte[] bytes = String.valueOf(s).getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= MAX_STRING_BYTES) {
+            return bytes;
+        }
+        final byte[] cut = new byte[MAX_STRING_BYTES];
+        System.arraycopy(bytes, 0, cut, 0, cut.length);
+        return cut;
+    }
+
+    /**
+     * @return A device address such as {@code AA:BB:CC:DD:EE:FF} as a number, or 0 for null or
+     * anything that is not an address.
+     */
+    static long deviceKey(String address) {
+        if (address == null) {
+            return 0;
+        }
+        long key = 0;
+        int digits = 0;
+        for (int i = 0; i < address.length(); i++) {
+            final char c = address.charAt(i);
+            if (c == ':') {
+                continue;
+            }
+            final int value = Character.digit(c, 16);
+            if (value < 0 || ++digits > 12) {
+                return 0;
+            }
+            key = (key << 4) | value;
+        }
+        return digits == 12 ? key : 0;
+    }
+}
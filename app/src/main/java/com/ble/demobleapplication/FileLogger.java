@@ -1,111 +1,601 @@
 package com.ble.demobleapplication;
 
 import android.content.Context;
+import android.os.Debug;
 import android.os.Environment;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.io.BufferedWriter;
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
-import java.util.logging.FileHandler;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Created by Chandan Jana on 19-02-2024.
  * Company name: Mindteck
  * Email: chandan.jana@mindteck.com
+ * <p>
+ * Asynchronous log file. {@link #logToFile(Context, String)} only puts a record into a bounded,
+ * lock-free ring, so it is safe to call from GATT callbacks and the main thread. A single writer
+ * thread formats the records into a buffer and appends the buffer to one long-lived channel when
+ * it is full, when its oldest record is {@link #FLUSH_INTERVAL_MS} old or on {@link #flush()}.
+ * When the ring is full a record is dropped or the caller waits, see {@link OverflowPolicy}.
+ * <p>
+ * In {@link Mode#RING} the records go to a fixed-size {@link MappedLogFile} instead of the
+ * growing text file: each one is copied into the mapping with its time, and the text is only
+ * formatted when the file is read back with {@link #readRing()}.
+ * <p>
+ * {@link EventLog} events are queued the same way as binary payloads. The ring file stores them
+ * as they are; the text file gets them formatted by {@link LogDecoder} on the writer thread.
+ * <p>
+ * In {@link Mode#APPEND} the text file is rotated once it reaches {@link #DEFAULT_SEGMENT_BYTES}
+ * or its first record is {@link #DEFAULT_SEGMENT_AGE_MS} old. Closed segments are numbered,
+ * compressed and expired by {@link LogSegments}, whose index {@link #findSegments(long, long)}
+ * searches.
  */
 public class FileLogger {
     private static final String TAG = "FileLogger";
-    private static final String LOG_FILE_NAME = "csa_app_log.txt";
+    private static final String LOG_DIR = "CSA";
+    private static final String LOG_BASE_NAME = "csa_app_log";
+    private static final String LOG_FILE_NAME = LOG_BASE_NAME + ".txt";
+    private static final String RING_FILE_NAME = LOG_BASE_NAME + ".ring";
 
-    public static FileHandler logger = null;
-    private static String filename = "csa_app_log.txt";
+    public enum Mode {
+        // Append formatted lines to the text file
+        APPEND,
+        // Overwrite the oldest records of a fixed-size memory-mapped file
+        RING
+    }
+
+    public enum OverflowPolicy {
+        // Count the record as dropped and return at once
+        DROP,
+        // Wait for the writer to make room; the writer thread itself never waits
+        BLOCK
+    }
+
+    public static final int RING_CAPACITY = 4096;
+    // Bytes buffered before they are written
+    public static final int FLUSH_SIZE = 32 * 1024;
+    public static final long FLUSH_INTERVAL_MS = 500;
+    public static final int DEFAULT_RING_SIZE = 4 * 1024 * 1024;
+    // Longer messages are cut in RING mode
+    public static final int RING_RECORD_MAX = 4096;
+    public static final long DEFAULT_SEGMENT_BYTES = 1024 * 1024;
+    public static final long DEFAULT_SEGMENT_AGE_MS = 60 * 60 * 1000;
+
+    // Wait before trying to open the file again after it could not be opened
+    private static final long REOPEN_DELAY_MS = 5000;
+    private static final long BLOCK_PARK_NANOS = 100_000;
+
+    private static final class Record {
+        final long timeMillis;
+        final String message;
+        // EventLog payload, in which case message is null
+        final byte[] event;
+
+        Record(long timeMillis, String message, byte[] event) {
+            this.timeMillis = timeMillis;
+            this.message = message;
+            this.event = event;
+        }
+    }
 
-    static boolean isExternalStorageAvailable = false;
-    static boolean isExternalStorageWriteable = false;
-    static String state = Environment.getExternalStorageState();
+    private static final BoundedMpscQueue<Record> ring = new BoundedMpscQueue<>(RING_CAPACITY);
+    private static volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP;
+    private static volatile Mode mode = Mode.APPEND;
+    private static volatile int ringSize = DEFAULT_RING_SIZE;
+    private static volatile long maxSegmentBytes = DEFAULT_SEGMENT_BYTES;
+    private static volatile long maxSegmentAgeMs = DEFAULT_SEGMENT_AGE_MS;
+    private static long maxTotalBytes = LogSegments.DEFAULT_MAX_TOTAL_BYTES;
+    private static long maxAgeMs = LogSegments.DEFAULT_MAX_AGE_MS;
+    // Closed segments of the text file, once the log directory is available
+    private static LogSegments segments;
 
+    private static Thread writerThread;
+    // Set by the writer while it waits for records, cleared by whoever wakes it
+    private static final AtomicBoolean sleeping = new AtomicBoolean(false);
+    private static volatile boolean flushRequested = false;
+
+    private static final AtomicLong logged = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final AtomicLong blocked = new AtomicLong();
+    // Updated by the writer only
+    private static volatile long written = 0;
+    private static volatile long discarded = 0;
+    private static volatile long flushes = 0;
+    private static volatile long flushNanosTotal = 0;
+    private static volatile long lastFlushNanos = 0;
+    private static volatile long maxFlushNanos = 0;
+    private static volatile long writerCpuNanos = 0;
+
+    /**
+     * Queues {@code message} for the log file with the current time.
+     */
     public static void logToFile(Context context, String message) {
-        /*try {
-            File logFile = getLogFile(context);
-            if (logFile != null) {
-                FileOutputStream fos = new FileOutputStream(logFile, true);
-                String logMessage = getFormattedLogMessage(message);
-                fos.write(logMessage.getBytes());
-                fos.close();
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "Error writing to log file: " + e.getMessage());
-        }*/
-
-        if (Environment.MEDIA_MOUNTED.equals(state)) {
-            Log.d("TAGG", "Media for read and write");
-            // We can read and write the media
-            isExternalStorageAvailable = isExternalStorageWriteable = true;
-        } else if (Environment.MEDIA_MOUNTED_READ_ONLY.equals(state)) {
-            Log.d("TAGG", "Media for read not to write");
-            // We can only read the media
-            isExternalStorageAvailable = true;
-            isExternalStorageWriteable = false;
-        } else {
-            // Something else is wrong. It may be one of many other states, but all we need
-            //  to know is we can neither read nor write
-            Log.d("TAGG", "Media neither read nor write");
-            isExternalStorageAvailable = isExternalStorageWriteable = false;
-        }
-        File dir = new File(Environment.getExternalStorageDirectory() + "/CSA");
-        if (Environment.MEDIA_MOUNTED.equals(state)) {
-            if (!dir.exists()) {
-                Log.d("TAGG", "Dir created " + dir.getPath());
-                dir.mkdirs();
-            }
-
-            File logFile = new File(Environment.getExternalStorageDirectory() + "/CSA/" + filename);
-
-            if (!logFile.exists()) {
+        enqueue(new Record(System.currentTimeMillis(), message, null));
+    }
+
+    /**
+     * Queues an encoded {@link EventLog} event with the current time.
+     */
+    static void logEvent(byte[] payload) {
+        enqueue(new Record(System.currentTimeMillis(), null, payload));
+    }
+
+    private static void enqueue(Record record) {
+        final Thread writer = startWriter();
+        while (!ring.offer(record)) {
+            if (overflowPolicy == OverflowPolicy.DROP || Thread.currentThread() == writer) {
+                dropped.incrementAndGet();
+                return;
+            }
+            blocked.incrementAndGet();
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(BLOCK_PARK_NANOS);
+        }
+        logged.incrementAndGet();
+        if (sleeping.compareAndSet(true, false)) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Asks the writer to write everything buffered so far without waiting for the flush interval.
+     * Does not wait for the write.
+     */
+    public static void flush() {
+        flushRequested = true;
+        sleeping.set(false);
+        LockSupport.unpark(startWriter());
+    }
+
+    public static void setOverflowPolicy(OverflowPolicy policy) {
+        overflowPolicy = policy;
+    }
+
+    public static OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Switches between the text file and the ring file. Records already queued go to the new
+     * destination.
+     */
+    public static void setMode(Mode mode) {
+        FileLogger.mode = mode;
+        flush();
+    }
+
+    public static Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Sets the size of the ring file in bytes. Takes effect when the ring file is next opened;
+     * a file of another size is started over.
+     */
+    public static void setRingSize(int size) {
+        ringSize = size;
+    }
+
+    /**
+     * Sets when the text file is closed as a segment and a new one started.
+     */
+    public static void setRotation(long maxSegmentBytes, long maxSegmentAgeMs) {
+        FileLogger.maxSegmentBytes = maxSegmentBytes;
+        FileLogger.maxSegmentAgeMs = maxSegmentAgeMs;
+    }
+
+    /**
+     * Sets the total size and age closed segments are kept within, see
+     * {@link LogSegments#setRetention(long, long)}.
+     */
+    public static synchronized void setRetention(long maxTotalBytes, long maxAgeMs) {
+        FileLogger.maxTotalBytes = maxTotalBytes;
+        FileLogger.maxAgeMs = maxAgeMs;
+        if (segments != null) {
+            segments.setRetention(maxTotalBytes, maxAgeMs);
+        }
+    }
+
+    /**
+     * @return The closed segments holding records between {@code fromMillis} and
+     * {@code toMillis}, oldest first; newer records are in the active text file.
+     */
+    public static List<File> findSegments(long fromMillis, long toMillis) {
+        final LogSegments segments = segments();
+        return segments != null ? segments.find(fromMillis, toMillis) : new ArrayList<File>();
+    }
+
+    private static synchronized LogSegments segments() {
+        if (segments == null) {
+            final File dir = logDir();
+            if (dir != null) {
+                segments = new LogSegments(dir, LOG_BASE_NAME);
+                segments.setRetention(maxTotalBytes, maxAgeMs);
+            }
+        }
+        return segments;
+    }
+
+    private static File logDir() {
+        if (!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+            return null;
+        }
+        final File dir = new File(Environment.getExternalStorageDirectory(), LOG_DIR);
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.e(TAG, "Failed to create directory for logs " + dir.getPath());
+            return null;
+        }
+        return dir;
+    }
+
+    public static File getRingFile() {
+        return new File(new File(Environment.getExternalStorageDirectory(), LOG_DIR), RING_FILE_NAME);
+    }
+
+    /**
+     * @return The records of the ring file, oldest first. May be called while logging, in which
+     * case the newest records may be missing.
+     */
+    public static List<MappedLogFile.Entry> readRing() throws IOException {
+        return MappedLogFile.read(getRingFile());
+    }
+
+    private static synchronized Thread startWriter() {
+        if (writerThread == null) {
+            writerThread = new Thread(new Writer(), "FileLogger");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+        return writerThread;
+    }
+
+    /**
+     * @return Records accepted into the ring.
+     */
+    public static long getLoggedCount() {
+        return logged.get();
+    }
+
+    /**
+     * @return Records dropped because the ring was full.
+     */
+    public static long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return How often a caller had to wait for room under {@link OverflowPolicy#BLOCK}.
+     */
+    public static long getBlockedCount() {
+        return blocked.get();
+    }
+
+    /**
+     * @return Records written to the file.
+     */
+    public static long getWrittenCount() {
+        return written;
+    }
+
+    /**
+     * @return Records lost because the file could not be opened or written.
+     */
+    public static long getDiscardedCount() {
+        return discarded;
+    }
+
+    public static long getFlushCount() {
+        return flushes;
+    }
+
+    /**
+     * @return Time the last batch took to reach the channel, in nanoseconds.
+     */
+    public static long getLastFlushNanos() {
+        return lastFlushNanos;
+    }
+
+    public static long getMaxFlushNanos() {
+        return maxFlushNanos;
+    }
+
+    public static long getMeanFlushNanos() {
+        final long count = flushes;
+        return count > 0 ? flushNanosTotal / count : 0;
+    }
+
+    /**
+     * @return CPU time the writer thread has used, as of the last time it went idle.
+     */
+    public static long getWriterCpuNanos() {
+        return writerCpuNanos;
+    }
+
+    /**
+     * Drains the ring on its own thread. Everything here is confined to that thread.
+     */
+    private static final class Writer implements Runnable {
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(FLUSH_SIZE);
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss:SSS", Locale.getDefault());
+        private final Date date = new Date();
+        private final StringBuilder line = new StringBuilder(256);
+        private final ByteBuffer ringRecord = ByteBuffer.allocate(RING_RECORD_MAX);
+
+        private Mode current = Mode.APPEND;
+        private FileChannel channel;
+        private MappedLogFile ringFile;
+        private long reopenAt = 0;
+        // Records in the buffer and when the first of them was added
+        private int buffered = 0;
+        private long firstBufferedAt = 0;
+        // The active text file: bytes and time of its first and last record, -1 if none
+        private File activeFile;
+        private long segmentBytes = 0;
+        private long segmentFirstMillis = -1;
+        private long segmentLastMillis = -1;
+        // When the age of the active file is counted from, restarted after a failed rotation
+        private long segmentClockMillis = -1;
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            while (true) {
+                final boolean flushNow = flushRequested;
+                flushRequested = false;
+                if (mode != current) {
+                    switchMode(mode);
+                }
+
+                Record record;
+                while ((record = ring.poll()) != null) {
+                    append(record);
+                }
+
+                if (flushNow && ringFile != null) {
+                    ringFile.force();
+                }
+                if (buffered > 0 && (flushNow || SystemClock.uptimeMillis() - firstBufferedAt >= FLUSH_INTERVAL_MS)) {
+                    write();
+                }
+
+                writerCpuNanos = Debug.threadCpuTimeNanos();
+                // Check the ring again after announcing the sleep, so a record offered in
+                // between is either seen here or wakes us up
+                sleeping.set(true);
+                if (ring.isEmpty() && !flushRequested) {
+                    if (buffered > 0) {
+                        final long waitMs = firstBufferedAt + FLUSH_INTERVAL_MS - SystemClock.uptimeMillis();
+                        LockSupport.parkNanos(Math.max(1, waitMs) * 1_000_000L);
+                    } else {
+                        LockSupport.park();
+                    }
+                }
+                sleeping.set(false);
+            }
+        }
+
+        private void switchMode(Mode next) {
+            if (buffered > 0) {
+                write();
+            }
+            close();
+            current = next;
+            reopenAt = 0;
+        }
+
+        private void append(Record record) {
+            if (current == Mode.RING) {
+                appendRing(record);
+                return;
+            }
+            if (segmentFirstMillis < 0) {
+                segmentFirstMillis = record.timeMillis;
+            }
+            if (segmentClockMillis < 0) {
+                segmentClockMillis = record.timeMillis;
+            }
+            segmentLastMillis = record.timeMillis;
+            date.setTime(record.timeMillis);
+            line.setLength(0);
+            line.append('[').append(dateFormat.format(date)).append("] ");
+            if (record.event != null) {
+                line.append(LogDecoder.format(record.event, 0, record.event.length));
+            } else {
+                line.append(record.message);
+            }
+            line.append('\n');
+            final CharBuffer chars = CharBuffer.wrap(line);
+            // A record that does not fit is split: the full buffer is written first, without
+            // rotating, so the record stays in one segment
+            while (encoder.encode(chars, buffer, true).isOverflow()) {
+                writeBuffer();
+            }
+            encoder.reset();
+            if (buffered == 0) {
+                firstBufferedAt = SystemClock.uptimeMillis();
+            }
+            buffered++;
+            if (segmentBytes + buffer.position() >= maxSegmentBytes) {
+                // Rotate at this record boundary
+                write();
+            }
+        }
+
+        private void appendRing(Record record) {
+            final MappedLogFile ringFile = openRing();
+            if (ringFile == null) {
+                discarded++;
+                return;
+            }
+            if (record.event != null) {
+                ringFile.appendEvent(record.timeMillis, record.event);
+                written++;
+                return;
+            }
+            ringRecord.clear();
+            // Cut at RING_RECORD_MAX: an overflow just leaves the part that fitted
+            encoder.encode(CharBuffer.wrap(record.message), ringRecord, true);
+            encoder.reset();
+            ringFile.append(record.timeMillis, ringRecord.array(), 0, ringRecord.position());
+            written++;
+        }
+
+        private void write() {
+            writeBuffer();
+            if (channel != null && (segmentBytes >= maxSegmentBytes
+                    || (segmentClockMillis >= 0 && System.currentTimeMillis() - segmentClockMillis >= maxSegmentAgeMs))) {
+                rotate();
+            }
+        }
+
+        private void writeBuffer() {
+            buffer.flip();
+            final long start = SystemClock.elapsedRealtimeNanos();
+            final FileChannel channel = open();
+            if (channel != null) {
                 try {
-                    logFile.createNewFile();
-                    Log.d("TAGG", "File created " + logFile.getPath());
+                    segmentBytes += buffer.remaining();
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    written += buffered;
                 } catch (IOException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                    Log.d("TAGG", "File not created " + e.getMessage());
+                    Log.e(TAG, "Error writing to log file: " + e.getMessage());
+                    discarded += buffered;
+                    close();
                 }
+            } else {
+                discarded += buffered;
             }
-            try {
-                //BufferedWriter for performance, true to set append to file flag
-                BufferedWriter buf = new BufferedWriter(new FileWriter(logFile, true));
+            final long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+            flushes++;
+            flushNanosTotal += elapsed;
+            lastFlushNanos = elapsed;
+            maxFlushNanos = Math.max(maxFlushNanos, elapsed);
+            buffer.clear();
+            buffered = 0;
+        }
 
-                buf.write(getFormattedLogMessage(message) + "\r\n");
-                //buf.append(message);
-                buf.newLine();
-                buf.flush();
-                buf.close();
-            } catch (IOException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+        private void rotate() {
+            final LogSegments segments = segments();
+            closeChannel();
+            if (segments != null && segments.close(activeFile, segmentFirstMillis, segmentLastMillis)) {
+                segmentFirstMillis = -1;
+                segmentLastMillis = -1;
+                segmentClockMillis = -1;
+                segmentBytes = 0;
+                return;
             }
+            // The records stay in the active file. Reopen it now and start its size and age over,
+            // so the rename is tried again a segment later rather than on every flush
+            open();
+            segmentBytes = 0;
+            segmentClockMillis = System.currentTimeMillis();
         }
-    }
 
-    private static File getLogFile(Context context) {
-        File logsDir = new File(context.getExternalFilesDir(null), "logs");
-        if (!logsDir.exists()) {
-            if (!logsDir.mkdirs()) {
-                Log.e(TAG, "Failed to create directory for logs");
-                return null;
+        private FileChannel open() {
+            if (channel != null || SystemClock.uptimeMillis() < reopenAt) {
+                return channel;
             }
+            final File dir = logDir();
+            if (dir != null) {
+                try {
+                    activeFile = new File(dir, LOG_FILE_NAME);
+                    channel = new FileOutputStream(activeFile, true).getChannel();
+                    segmentBytes = channel.size();
+                    if (segmentBytes > 0) {
+                        // Left by an earlier run or a failed rotation
+                        segmentFirstMillis = firstMillis(activeFile);
+                        if (segmentClockMillis < 0) {
+                            segmentClockMillis = segmentFirstMillis;
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Error opening log file: " + e.getMessage());
+                }
+            }
+            if (channel == null) {
+                reopenAt = SystemClock.uptimeMillis() + REOPEN_DELAY_MS;
+            }
+            return channel;
         }
-        return new File(logsDir, LOG_FILE_NAME);
-    }
 
-    private static String getFormattedLogMessage(String message) {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss:SSS", Locale.getDefault());
-        String timestamp = sdf.format(new Date());
-        return "[" + timestamp + "] " + message + "\n";
+        private MappedLogFile openRing() {
+            if (ringFile != null || SystemClock.uptimeMillis() < reopenAt) {
+                return ringFile;
+            }
+            final File dir = logDir();
+            if (dir != null) {
+                try {
+                    ringFile = new MappedLogFile(new File(dir, RING_FILE_NAME), ringSize);
+                } catch (IOException | IllegalArgumentException e) {
+                    Log.e(TAG, "Error opening log ring: " + e.getMessage());
+                }
+            }
+            if (ringFile == null) {
+                reopenAt = SystemClock.uptimeMillis() + REOPEN_DELAY_MS;
+            }
+            return ringFile;
+        }
+
+        /**
+         * @return The time of the first line of a text file, or its modification time if the
+         * line has no timestamp.
+         */
+        private long firstMillis(File file) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                final String first = reader.readLine();
+                if (first != null && first.startsWith("[") && first.indexOf(']') > 1) {
+                    return dateFormat.parse(first.substring(1, first.indexOf(']'))).getTime();
+                }
+            } catch (IOException | ParseException ignored) {
+            }
+            return file.lastModified();
+        }
+
+        private void close() {
+            closeChannel();
+            if (ringFile != null) {
+                try {
+                    ringFile.close();
+                } catch (IOException ignored) {
+                }
+                ringFile = null;
+            }
+        }
+
+        private void closeChannel() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+                channel = null;
+            }
+        }
     }
 }
@@ -0,0 +1,216 @@
+package com.ble.demobleapplication;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Persistent cache of the UART service layout of every meter we have connected to, keyed by
+ * device address.
+ * <p>
+ * An entry records the service UUID and the UUID, instance id (attribute handle) and properties
+ * of the RX and TX characteristics, so a reconnect can resolve them directly instead of walking
+ * the whole database. Service discovery itself still runs on every connection, as Android only
+ * fills in the services after it, so the cache saves the walk and not a round trip. It also keeps
+ * the server's Database Hash (Bluetooth Core 5.1, 0x2B2A) when the server has one. An entry is
+ * dropped when the server sends Service Changed, when its hash no longer matches or when the
+ * cached characteristics cannot be found again.
+ * <p>
+ * Entries are decoded once and then kept in memory.
+ */
+public class GattCache {
+    private final static String TAG = GattCache.class.getSimpleName();
+
+    public static final UUID GENERIC_ATTRIBUTE_SERVICE_UUID = UUID.fromString("00001801-0000-1000-8000-00805f9b34fb");
+    public static final UUID DATABASE_HASH_UUID = UUID.fromString("00002b2a-0000-1000-8000-00805f9b34fb");
+
+    private static final String PREFERENCES_NAME = "gatt_cache";
+    // Bump when the stored format changes, older entries are then ignored
+    private static final String VERSION = "1";
+    private static final String SEPARATOR = ";";
+
+    public static class Entry {
+        final UUID serviceUuid;
+        final UUID rxUuid;
+        final int rxInstanceId;
+        final int rxProperties;
+        final UUID txUuid;
+        final int txInstanceId;
+        final int txProperties;
+        byte[] databaseHash;
+
+        Entry(UUID serviceUuid, UUID rxUuid, int rxInstanceId, int rxProperties,
+              UUID txUuid, int txInstanceId, int txProperties, byte[] databaseHash) {
+            this.serviceUuid = serviceUuid;
+            this.rxUuid = rxUuid;
+            this.rxInstanceId = rxInstanceId;
+            this.rxProperties = rxProperties;
+            this.txUuid = txUuid;
+            this.txInstanceId = txInstanceId;
+            this.txProperties = txProperties;
+            this.databaseHash = databaseHash;
+        }
+
+        public UUID getServiceUuid() {
+            return serviceUuid;
+        }
+
+        /**
+         * @return The cached RX characteristic in {@code service}, or null if it is no longer
+         * there with the same handle and properties.
+         */
+        public BluetoothGattCharacteristic findRx(BluetoothGattService service) {
+            return find(service, rxUuid, rxInstanceId, rxProperties);
+        }
+
+        /**
+         * @return The cached TX characteristic in {@code service}, or null if it is no longer
+         * there with the same handle and properties.
+         */
+        public BluetoothGattCharacteristic findTx(BluetoothGattService service) {
+            return find(service, txUuid, txInstanceId, txProperties);
+        }
+
+        public byte[] getDatabaseHash() {
+            return databaseHash;
+        }
+
+        private String encode() {
+            return VERSION + SEPARATOR + serviceUuid
+                    + SEPARATOR + rxUuid + SEPARATOR + rxInstanceId + SEPARATOR + rxProperties
+                    + SEPARATOR + txUuid + SEPARATOR + txInstanceId + SEPARATOR + txProperties
+                    + SEPARATOR + (databaseHash != null ? HexCodec.toHex(databaseHash) : "");
+        }
+
+        private static Entry decode(String value) {
+            String[] fields = value.split(SEPARATOR, -1);
+            if (fields.length != 9 || !VERSION.equals(fields[0])) {
+                return null;
+            }
+            try {
+                return new Entry(UUID.fromString(fields[1]),
+                        UUID.fromString(fields[2]), Integer.parseInt(fields[3]), Integer.parseInt(fields[4]),
+                        UUID.fromString(fields[5]), Integer.parseInt(fields[6]), Integer.parseInt(fields[7]),
+                        fields[8].isEmpty() ? null : HexCodec.decode(fields[8], HexCodec.Mode.STRICT));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    private final SharedPreferences preferences;
+    // Decoded entries by address, null for an address known to have none
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    private long hits = 0;
+    private long misses = 0;
+    private long invalidations = 0;
+
+    public GattCache(Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return The entry for {@code address}, or null if there is none.
+     */
+    public synchronized Entry get(String address) {
+        Entry entry = load(address);
+        if (entry != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return entry;
+    }
+
+    /**
+     * Stores the layout found by a full walk of the database. The Database Hash of a previous
+     * entry is not kept, it is read again for the new layout.
+     */
+    public synchronized Entry put(String address, BluetoothGattService service,
+                                  BluetoothGattCharacteristic rx, BluetoothGattCharacteristic tx) {
+        Entry entry = new Entry(service.getUuid(),
+                rx.getUuid(), rx.getInstanceId(), rx.getProperties(),
+                tx.getUuid(), tx.getInstanceId(), tx.getProperties(), null);
+        entries.put(address, entry);
+        preferences.edit().putString(address, entry.encode()).apply();
+        return entry;
+    }
+
+    /**
+     * Records the server's Database Hash for an existing entry.
+     */
+    public synchronized void setDatabaseHash(String address, byte[] databaseHash) {
+        Entry entry = load(address);
+        if (entry != null) {
+            entry.databaseHash = databaseHash.clone();
+            preferences.edit().putString(address, entry.encode()).apply();
+        }
+    }
+
+    /**
+     * Drops the entry for {@code address}, so the next connection walks the database again.
+     */
+    public synchronized void invalidate(String address) {
+        if (preferences.getString(address, null) != null) {
+            Log.d(TAG, "BLE GATT cache invalidated for " + address);
+            invalidations++;
+            preferences.edit().remove(address).apply();
+        }
+        entries.put(address, null);
+    }
+
+    private Entry load(String address) {
+        if (entries.containsKey(address)) {
+            return entries.get(address);
+        }
+        String value = preferences.getString(address, null);
+        Entry entry = value != null ? Entry.decode(value) : null;
+        entries.put(address, entry);
+        return entry;
+    }
+
+    /**
+     * @return True if {@code databaseHash} is the one cached for {@code entry}. An entry without
+     * a hash matches nothing, so the caller stores the one it has read.
+     */
+    public static boolean isCurrent(Entry entry, byte[] databaseHash) {
+        return entry.databaseHash != null && Arrays.equals(entry.databaseHash, databaseHash);
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    private static BluetoothGattCharacteristic find(BluetoothGattService service, UUID uuid, int instanceId, int properties) {
+        if (service == null) {
+            return null;
+        }
+        List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
+        if (characteristics == null) {
+            return null;
+        }
+        for (BluetoothGattCharacteristic characteristic : characteristics) {
+            if (characteristic.getInstanceId() == instanceId && uuid.equals(characteristic.getUuid())) {
+                return characteristic.getProperties() == properties ? characteristic : null;
+            }
+        }
+        return null;
+    }
+}
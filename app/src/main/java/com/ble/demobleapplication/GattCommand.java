@@ -0,0 +1,151 @@
+package com.ble.demobleapplication;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A single operation in a {@link GattSession} command queue. Besides the action itself, a
+ * command carries the lane it is scheduled in, the deadline by which its GATT callback must
+ * arrive, what the watchdog should do if it does not, and a future for its result.
+ */
+public class GattCommand {
+
+    public enum Type {
+        DISCOVER_SERVICES(5000, Lane.CONTROL),
+        WRITE_DESCRIPTOR(1000, Lane.CONTROL),
+        REQUEST_MTU(1000, Lane.CONTROL),
+        WRITE_CHARACTERISTIC(1000, Lane.INTERACTIVE),
+        READ_CHARACTERISTIC(1000, Lane.INTERACTIVE);
+
+        private final long defaultTimeoutMs;
+        private final Lane defaultLane;
+
+        Type(long defaultTimeoutMs, Lane defaultLane) {
+            this.defaultTimeoutMs = defaultTimeoutMs;
+            this.defaultLane = defaultLane;
+        }
+
+        public long getDefaultTimeoutMs() {
+            return defaultTimeoutMs;
+        }
+
+        public Lane getDefaultLane() {
+            return defaultLane;
+        }
+    }
+
+    /**
+     * Scheduling lanes, highest priority first. See {@link CommandScheduler}.
+     */
+    public enum Lane {
+        // Link setup: service discovery, CCCD writes, MTU requests
+        CONTROL,
+        // Short request/response frames that a user or protocol is waiting on
+        INTERACTIVE,
+        // Long transfers such as load profile downloads
+        BULK
+    }
+
+    public enum TimeoutPolicy {
+        // Run the command again until the session's retry limit is reached, then fail it
+        RETRY,
+        // Fail the command straight away and move on to the next one
+        DROP
+    }
+
+    public interface FailureListener {
+        void onFailed(GattCommand command, String reason);
+    }
+
+    private final Type type;
+    private final Runnable action;
+    private long timeoutMs;
+    private Lane lane;
+    private TimeoutPolicy timeoutPolicy = TimeoutPolicy.RETRY;
+    private FailureListener failureListener;
+    private UUID target;
+    private final CompletableFuture<byte[]> result = new CompletableFuture<>();
+
+    public GattCommand(Type type, Runnable action) {
+        this.type = type;
+        this.action = action;
+        this.timeoutMs = type.getDefaultTimeoutMs();
+        this.lane = type.getDefaultLane();
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public long getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    public GattCommand setTimeoutMs(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+        return this;
+    }
+
+    public Lane getLane() {
+        return lane;
+    }
+
+    public GattCommand setLane(Lane lane) {
+        this.lane = lane;
+        return this;
+    }
+
+    public TimeoutPolicy getTimeoutPolicy() {
+        return timeoutPolicy;
+    }
+
+    public GattCommand setTimeoutPolicy(TimeoutPolicy timeoutPolicy) {
+        this.timeoutPolicy = timeoutPolicy;
+        return this;
+    }
+
+    /**
+     * @return The characteristic the command reads or writes, or null if it is not tied to one.
+     */
+    public UUID getTarget() {
+        return target;
+    }
+
+    /**
+     * Ties the command to a characteristic, so only a callback for that characteristic completes
+     * it.
+     */
+    public GattCommand setTarget(UUID target) {
+        this.target = target;
+        return this;
+    }
+
+    public GattCommand setFailureListener(FailureListener failureListener) {
+        this.failureListener = failureListener;
+        return this;
+    }
+
+    /**
+     * @return Completes with the value from the GATT callback (or null if it has none), or
+     * exceptionally with a {@link GattException} if the command fails. Cancelling it removes the
+     * command from the queue if it has not started yet.
+     */
+    public CompletableFuture<byte[]> getResult() {
+        return result;
+    }
+
+    void run() {
+        action.run();
+    }
+
+    void fail(String reason) {
+        if (failureListener != null) {
+            failureListener.onFailed(this, reason);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return type.name();
+    }
+}
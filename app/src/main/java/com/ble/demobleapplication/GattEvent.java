@@ -0,0 +1,119 @@
+package com.ble.demobleapplication;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * An event published on the {@link GattEventBus}: what happened, on which device and, for data,
+ * on which characteristic, with the raw payload.
+ * <p>
+ * The payload array is owned by the event once it is published and is shared by all
+ * subscribers, so it must not be modified. Use {@link #asByteBuffer()} for a read-only view.
+ * <p>
+ * The payload may be a {@link BufferPool.Lease}, in which case the array can be longer than
+ * {@link #getLength()} and goes back to the pool once every subscriber has seen the event. A
+ * subscriber that keeps the payload beyond {@link GattEventBus.Subscriber#onEvent(GattEvent)}
+ * calls {@link #retain()} and later {@link #release()}, or copies it.
+ */
+public final class GattEvent {
+
+    public enum Type {
+        CONNECTED,
+        DISCONNECTED,
+        SERVICES_DISCOVERED,
+        // A characteristic value or a complete HDLC frame from RX
+        DATA_AVAILABLE,
+        // A DLMS response APDU
+        APDU_AVAILABLE,
+        // A DLMS event or data notification APDU
+        DLMS_NOTIFICATION
+    }
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final Type type;
+    private final String address;
+    private final UUID characteristic;
+    private final byte[] data;
+    private final int length;
+    private final BufferPool.Lease lease;
+
+    public GattEvent(Type type, String address) {
+        this(type, address, null, (byte[]) null);
+    }
+
+    /**
+     * @param characteristic The characteristic the data came from, or null if it is not tied to
+     *                       one.
+     * @param data           The payload, handed over to the event; null for none.
+     */
+    public GattEvent(Type type, String address, UUID characteristic, byte[] data) {
+        this.type = type;
+        this.address = address;
+        this.characteristic = characteristic;
+        this.data = data != null ? data : EMPTY;
+        this.length = this.data.length;
+        this.lease = null;
+    }
+
+    /**
+     * @param lease The payload; the event takes over the caller's reference.
+     */
+    public GattEvent(Type type, String address, UUID characteristic, BufferPool.Lease lease) {
+        this.type = type;
+        this.address = address;
+        this.characteristic = characteristic;
+        this.data = lease.array();
+        this.length = lease.length();
+        this.lease = lease;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public UUID getCharacteristic() {
+        return characteristic;
+    }
+
+    /**
+     * @return The array holding the payload in its first {@link #getLength()} bytes. Shared with
+     * other subscribers, do not modify.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(data, 0, length).asReadOnlyBuffer();
+    }
+
+    /**
+     * Keeps a pooled payload valid until the matching {@link #release()}.
+     */
+    public GattEvent retain() {
+        if (lease != null) {
+            lease.retain();
+        }
+        return this;
+    }
+
+    public void release() {
+        if (lease != null) {
+            lease.release();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + address + (characteristic != null ? " " + characteristic : "") + " (" + length + " bytes)";
+    }
+}
@@ -0,0 +1,53 @@
+package com.ble.demobleapplication;
+
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Compatibility sink that turns {@link GattEvent}s back into the system broadcasts
+ * {@link BluetoothLeService} used to send, for receivers outside the process. Enable it with
+ * {@link BluetoothLeService#setBroadcastsEnabled(boolean)}.
+ */
+public class GattEventBroadcaster implements GattEventBus.Subscriber {
+
+    private final Context context;
+
+    public GattEventBroadcaster(Context context) {
+        this.context = context;
+    }
+
+    @Override
+    public void onEvent(GattEvent event) {
+        final Intent intent = new Intent(action(event.getType()));
+        intent.putExtra(BluetoothLeService.EXTRA_ADDRESS, event.getAddress());
+        final byte[] data = event.getData();
+        final int length = event.getLength();
+        if (BluetoothLeService.UUID_HEART_RATE_MEASUREMENT.equals(event.getCharacteristic()) && length >= 2) {
+            // Heart Rate Measurement: flags, then the value as UINT8 or, with flag bit 0, UINT16
+            final int heartRate = (data[0] & 0x01) != 0 && length >= 3
+                    ? (data[1] & 0xFF) | ((data[2] & 0xFF) << 8) : data[1] & 0xFF;
+            intent.putExtra(BluetoothLeService.EXTRA_DATA, String.valueOf(heartRate));
+        } else if (length > 0) {
+            intent.putExtra(BluetoothLeService.EXTRA_DATA, HexCodec.toHex(data, 0, length, ' '));
+        }
+        context.sendBroadcast(intent);
+    }
+
+    private static String action(GattEvent.Type type) {
+        switch (type) {
+            case CONNECTED:
+                return BluetoothLeService.ACTION_GATT_CONNECTED;
+            case DISCONNECTED:
+                return BluetoothLeService.ACTION_GATT_DISCONNECTED;
+            case SERVICES_DISCOVERED:
+                return BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED;
+            case APDU_AVAILABLE:
+                return BluetoothLeService.ACTION_APDU_AVAILABLE;
+            case DLMS_NOTIFICATION:
+                return BluetoothLeService.ACTION_DLMS_NOTIFICATION;
+            case DATA_AVAILABLE:
+            default:
+                return BluetoothLeService.ACTION_DATA_AVAILABLE;
+        }
+    }
+}
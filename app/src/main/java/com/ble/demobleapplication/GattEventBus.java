@@ -0,0 +1,142 @@
+package com.ble.demobleapplication;
+
+import android.os.Handler;
+
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process publish/subscribe for {@link GattEvent}s, replacing system broadcasts for
+ * consumers in the same process.
+ * <p>
+ * Every subscription has its own bounded, lock-free queue and is drained on the subscriber's
+ * {@link Handler}. Publishing never blocks the GATT thread: if a subscriber falls behind, its
+ * queue fills up and further events for it are dropped and counted, while other subscribers
+ * are not affected. A drain is posted only when the queue goes from idle to busy, so a burst
+ * of notifications costs one message on the subscriber's thread. Subscriptions may be limited
+ * to one device address and one characteristic. Pooled payloads are released once every
+ * subscription that received the event has handled it.
+ */
+public class GattEventBus {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    public interface Subscriber {
+        /**
+         * Called on the subscription's handler, in publishing order.
+         */
+        void onEvent(GattEvent event);
+    }
+
+    public static final class Subscription {
+        private final Subscriber subscriber;
+        private final Handler handler;
+        private final String address;
+        private final UUID characteristic;
+        private final BoundedMpscQueue<GattEvent> queue;
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private final AtomicLong delivered = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private volatile boolean active = true;
+
+        private final Runnable drain = new Runnable() {
+            @Override
+            public void run() {
+                // Cleared first: an event offered after the last poll posts a new drain
+                scheduled.set(false);
+                GattEvent event;
+                while ((event = queue.poll()) != null) {
+                    try {
+                        if (active) {
+                            delivered.incrementAndGet();
+                            subscriber.onEvent(event);
+                        }
+                    } finally {
+                        // The reference taken for this subscription in publish()
+                        event.release();
+                    }
+                }
+            }
+        };
+
+        Subscription(Subscriber subscriber, Handler handler, String address, UUID characteristic, int capacity) {
+            this.subscriber = subscriber;
+            this.handler = handler;
+            this.address = address;
+            this.characteristic = characteristic;
+            this.queue = new BoundedMpscQueue<>(capacity);
+        }
+
+        boolean matches(GattEvent event) {
+            return (address == null || address.equals(event.getAddress()))
+                    && (characteristic == null || characteristic.equals(event.getCharacteristic()));
+        }
+
+        boolean offer(GattEvent event) {
+            if (!queue.offer(event)) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            if (scheduled.compareAndSet(false, true)) {
+                handler.post(drain);
+            }
+            return true;
+        }
+
+        public long getDelivered() {
+            return delivered.get();
+        }
+
+        public long getDropped() {
+            return dropped.get();
+        }
+    }
+
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    /**
+     * Subscribes to every event with the default queue capacity.
+     */
+    public Subscription subscribe(Subscriber subscriber, Handler handler) {
+        return subscribe(subscriber, handler, null, null, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param address        Only events of this device, or null for all devices.
+     * @param characteristic Only events of this characteristic, or null for all events.
+     * @param capacity       Events that may wait for the handler before newer ones are dropped,
+     *                       rounded up to a power of two.
+     */
+    public Subscription subscribe(Subscriber subscriber, Handler handler, String address, UUID characteristic, int capacity) {
+        Subscription subscription = new Subscription(subscriber, handler, address, characteristic, capacity);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * Stops delivery to a subscription, including events already queued for it.
+     */
+    public void unsubscribe(Subscription subscription) {
+        if (subscription != null) {
+            subscription.active = false;
+            subscriptions.remove(subscription);
+        }
+    }
+
+    /**
+     * Queues {@code event} for every matching subscription. Each queued copy holds its own
+     * reference to a pooled payload, so the publisher releases its reference afterwards.
+     */
+    public void publish(GattEvent event) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.matches(event)) {
+                event.retain();
+                if (!subscription.offer(event)) {
+                    event.release();
+                }
+            }
+        }
+    }
+}
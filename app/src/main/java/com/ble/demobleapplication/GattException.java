@@ -0,0 +1,27 @@
+package com.ble.demobleapplication;
+
+/**
+ * Completes a GATT future exceptionally when its command cannot be carried out.
+ */
+public class GattException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+
+    public GattException(String message) {
+        this(message, RetryPolicy.STATUS_UNKNOWN);
+    }
+
+    public GattException(String message, int status) {
+        super(message);
+        this.status = status;
+    }
+
+    /**
+     * @return The last GATT status seen for the command, or {@link RetryPolicy#STATUS_UNKNOWN}.
+     */
+    public int getStatus() {
+        return status;
+    }
+}
@@ -0,0 +1,780 @@
+package com.ble.demobleapplication;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothStatusCodes;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/**
+ * State for one connected peripheral: its GATT handle, the resolved UART service and RX/TX
+ * characteristics, the negotiated MTU and the serialised, lane-scheduled GATT command queue
+ * with its retry bookkeeping. One session exists per device address, so several peripherals can be driven
+ * at the same time without sharing a queue.
+ */
+public class GattSession {
+    private final static String TAG = GattSession.class.getSimpleName();
+
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+
+    // Default ATT MTU before any exchange has taken place
+    public static final int DEFAULT_MTU = 23;
+
+    // Retry budget: every retry spends a token, every completed command earns a fraction back
+    private static final double MAX_RETRY_TOKENS = 10;
+    private static final double RETRY_TOKENS_PER_SUCCESS = 0.2;
+
+    private final String address;
+    private final BluetoothDevice device;
+    private final Handler bleHandler;
+
+    // Pending commands by lane, and the command that has been started and not yet completed
+    private final CommandScheduler commandQueue = new CommandScheduler();
+    private GattCommand currentCommand;
+    private boolean commandQueueBusy;
+    private int retries = 0;
+    private boolean isRetrying;
+    private RetryPolicy retryPolicy = new BackoffRetryPolicy();
+    private long retryDelayMs = 0;
+    private boolean backingOff = false;
+    private double retryTokens = MAX_RETRY_TOKENS;
+
+    // Runs the command at the head of the queue again once its backoff delay has passed
+    private final Runnable retry = new Runnable() {
+        @Override
+        public void run() {
+            onRetryDelayElapsed();
+        }
+    };
+
+    // Fires if the callback for the command at the head of the queue does not arrive in time
+    private final Runnable watchdog = new Runnable() {
+        @Override
+        public void run() {
+            onCommandTimeout();
+        }
+    };
+    private final int[] timeoutCounts = new int[GattCommand.Type.values().length];
+    // successCounts[n] counts commands that completed on attempt n + 1
+    private int[] successCounts = new int[retryPolicy.getMaxAttempts()];
+    private int failureCount = 0;
+
+    private BluetoothGatt gatt;
+    private BluetoothGattService uart = null;
+    private BluetoothGattCharacteristic rx = null;
+    private BluetoothGattCharacteristic tx = null;
+    private int connectionState = STATE_DISCONNECTED;
+    private boolean bonded = false;
+    // ConnectMetrics path of the connection attempt being timed, -1 once it is ready
+    private int connectPath = -1;
+    private long connectStartedAt = 0;
+
+    // Splits writes to the negotiated MTU
+    private final MtuTransport transport = new MtuTransport();
+    // Reassembles RX notifications into checked HDLC frames
+    private final HdlcDecoder hdlcDecoder = new HdlcDecoder();
+    // Callers of request() waiting for the next complete RX frame, oldest first
+    private final ArrayDeque<CompletableFuture<byte[]>> pendingResponses = new ArrayDeque<>();
+
+    // HDLC data link on top of the UART characteristics, if the owner has set one up
+    private volatile HdlcLink hdlcLink;
+    // Pending DLMS requests on that link
+    private volatile DlmsTransactions dlmsTransactions;
+
+    // Keeps several write-without-response packets in flight when TX supports it
+    private final PipelinedWriter pipelinedWriter;
+    private volatile boolean pipelinedWrites = false;
+
+    // Connection priority and PHY for the current traffic
+    private final LinkTuner linkTuner;
+
+    public GattSession(BluetoothDevice device, Handler bleHandler) {
+        this.address = device.getAddress();
+        this.device = device;
+        this.bleHandler = bleHandler;
+        this.pipelinedWriter = new PipelinedWriter(bleHandler);
+        this.pipelinedWriter.setListener(new PipelinedWriter.Listener() {
+            @Override
+            public void onDrained(long bytes, long bytesPerSec) {
+            }
+
+            @Override
+            public void onWriteFailed(byte[] payload, int status) {
+                onPipelinedWriteFailed(status);
+            }
+        });
+        this.linkTuner = new LinkTuner(address, bleHandler);
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public BluetoothDevice getDevice() {
+        return device;
+    }
+
+    public synchronized BluetoothGatt getGatt() {
+        return gatt;
+    }
+
+    public synchronized void setGatt(BluetoothGatt gatt) {
+        this.gatt = gatt;
+    }
+
+    public BluetoothGattService getUart() {
+        return uart;
+    }
+
+    public BluetoothGattCharacteristic getRx() {
+        return rx;
+    }
+
+    public BluetoothGattCharacteristic getTx() {
+        return tx;
+    }
+
+    /**
+     * Records the resolved UART service and its RX/TX characteristics. If TX supports
+     * write-without-response, sends are routed through the pipelined writer.
+     */
+    public void setCharacteristics(BluetoothGattService uart, BluetoothGattCharacteristic rx, BluetoothGattCharacteristic tx) {
+        this.uart = uart;
+        this.rx = rx;
+        this.tx = tx;
+        pipelinedWrites = tx != null && (tx.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0;
+        if (pipelinedWrites) {
+            pipelinedWriter.attach(gatt, tx);
+        }
+    }
+
+    public boolean isReady() {
+        return gatt != null && uart != null && rx != null && tx != null;
+    }
+
+    public int getMtu() {
+        return transport.getMtu();
+    }
+
+    public void setMtu(int mtu) {
+        transport.setMtu(mtu);
+    }
+
+    public MtuTransport getTransport() {
+        return transport;
+    }
+
+    public HdlcDecoder getHdlcDecoder() {
+        return hdlcDecoder;
+    }
+
+    public HdlcLink getHdlcLink() {
+        return hdlcLink;
+    }
+
+    public DlmsTransactions getDlmsTransactions() {
+        return dlmsTransactions;
+    }
+
+    public void setDlmsTransactions(DlmsTransactions dlmsTransactions) {
+        this.dlmsTransactions = dlmsTransactions;
+    }
+
+    /**
+     * Attaches an HDLC link that receives the frames decoded from RX.
+     */
+    public void setHdlcLink(HdlcLink hdlcLink) {
+        if (this.hdlcLink != null) {
+            hdlcDecoder.removeFrameListener(this.hdlcLink);
+        }
+        this.hdlcLink = hdlcLink;
+        if (hdlcLink != null) {
+            hdlcDecoder.addFrameListener(hdlcLink);
+        }
+    }
+
+    public int getConnectionState() {
+        return connectionState;
+    }
+
+    public void setConnectionState(int connectionState) {
+        this.connectionState = connectionState;
+    }
+
+    public boolean isBonded() {
+        return bonded;
+    }
+
+    public void setBonded(boolean bonded) {
+        this.bonded = bonded;
+    }
+
+    /**
+     * Starts timing a connection attempt made through {@code path}, see {@link ConnectMetrics}.
+     */
+    public void startConnect(int path) {
+        connectPath = path;
+        connectStartedAt = SystemClock.elapsedRealtime();
+    }
+
+    public int getConnectPath() {
+        return connectPath;
+    }
+
+    /**
+     * Stops timing the connection attempt.
+     *
+     * @return The milliseconds since {@link #startConnect(int)}, or -1 if no attempt was timed.
+     */
+    public long finishConnect() {
+        if (connectPath < 0) {
+            return -1;
+        }
+        connectPath = -1;
+        return SystemClock.elapsedRealtime() - connectStartedAt;
+    }
+
+    public PipelinedWriter getPipelinedWriter() {
+        return pipelinedWriter;
+    }
+
+    public boolean isPipelinedWrites() {
+        return pipelinedWrites;
+    }
+
+    public LinkTuner getLinkTuner() {
+        return linkTuner;
+    }
+
+    /**
+     * Adds a command to this session's queue and starts it if the queue is idle.
+     *
+     * @return False if the command could not be queued.
+     */
+    public synchronized boolean enqueue(final GattCommand command) {
+        boolean result = commandQueue.add(command);
+        if (result) {
+            command.getResult().whenComplete(new BiConsumer<byte[], Throwable>() {
+                @Override
+                public void accept(byte[] value, Throwable error) {
+                    if (error != null) {
+                        // Cancelled or timed out by the caller: drop it if it has not started
+                        abandon(command);
+                    }
+                }
+            });
+            nextCommand();
+        }
+        return result;
+    }
+
+    private synchronized void abandon(GattCommand command) {
+        if (command != currentCommand) {
+            commandQueue.remove(command);
+        }
+    }
+
+    /**
+     * Completes the command at the head of the queue, whatever its type, with the value from
+     * its GATT callback.
+     */
+    public synchronized void completedCommand(byte[] value) {
+        bleHandler.removeCallbacks(watchdog);
+        if (commandQueueBusy && currentCommand != null && !backingOff) {
+            deliver(currentCommand, value);
+            successCounts[Math.min(retries, successCounts.length) - 1]++;
+            retryTokens = Math.min(MAX_RETRY_TOKENS, retryTokens + RETRY_TOKENS_PER_SUCCESS);
+        }
+        bleHandler.removeCallbacks(retry);
+        backingOff = false;
+        commandQueueBusy = false;
+        isRetrying = false;
+        currentCommand = null;
+        nextCommand();
+    }
+
+    /**
+     * Completes the command at the head of the queue if it is of the given type. A callback that
+     * arrives after the watchdog has already given up on its command is ignored, so it cannot
+     * complete the command queued behind it.
+     */
+    public synchronized void completedCommand(GattCommand.Type type) {
+        completedCommand(type, null);
+    }
+
+    public synchronized void completedCommand(GattCommand.Type type, byte[] value) {
+        completedCommand(type, null, value);
+    }
+
+    /**
+     * Completes the command at the head of the queue if it is of the given type and, when it is
+     * tied to a characteristic, the callback is for {@code target}. A read the command queue
+     * did not issue cannot complete a queued read of another characteristic.
+     */
+    public synchronized void completedCommand(GattCommand.Type type, UUID target, byte[] value) {
+        if (!isCurrent(type, target)) {
+            Log.w(TAG, "BLE WARNING: ignoring late " + type + " completion for " + address);
+            return;
+        }
+        completedCommand(value);
+    }
+
+    /**
+     * @return True if a command of the given type has been started and is waiting for its
+     * callback.
+     */
+    public synchronized boolean isAwaiting(GattCommand.Type type) {
+        return isCurrent(type, null);
+    }
+
+    /**
+     * @return True if a command of the given type for {@code target} has been started and is
+     * waiting for its callback.
+     */
+    public synchronized boolean isAwaiting(GattCommand.Type type, UUID target) {
+        return isCurrent(type, target);
+    }
+
+    // Futures are completed from the handler so that callers' continuations never run while
+    // this session is locked
+    private void deliver(final GattCommand command, final byte[] value) {
+        bleHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                command.getResult().complete(value);
+            }
+        });
+    }
+
+    private void failCommand(final GattCommand command, String reason, int status) {
+        failureCount++;
+        command.fail(reason);
+        final GattException exception = new GattException(command + " failed for " + address + ": " + reason, status);
+        bleHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                command.getResult().completeExceptionally(exception);
+            }
+        });
+    }
+
+    private void failAll(String reason) {
+        GattCommand command = currentCommand;
+        currentCommand = null;
+        if (command != null) {
+            failCommand(command, reason, RetryPolicy.STATUS_UNKNOWN);
+        }
+        while ((command = commandQueue.next()) != null) {
+            failCommand(command, reason, RetryPolicy.STATUS_UNKNOWN);
+        }
+        commandQueue.clear();
+    }
+
+    public synchronized void retryCommand(GattCommand.Type type) {
+        retryCommand(type, RetryPolicy.STATUS_UNKNOWN);
+    }
+
+    /**
+     * Retries the command at the head of the queue if it is of the given type, unless the GATT
+     * status is permanent, the policy's attempt limit is reached or the retry budget is spent.
+     */
+    public synchronized void retryCommand(GattCommand.Type type, int status) {
+        retryCommand(type, null, status);
+    }
+
+    /**
+     * As {@link #retryCommand(GattCommand.Type, int)}, but only for the command tied to
+     * {@code target}.
+     */
+    public synchronized void retryCommand(GattCommand.Type type, UUID target, int status) {
+        if (!isCurrent(type, target)) {
+            Log.w(TAG, "BLE WARNING: ignoring late " + type + " failure for " + address);
+            return;
+        }
+        retryCommand(status);
+    }
+
+    public synchronized void retryCommand() {
+        retryCommand(RetryPolicy.STATUS_UNKNOWN);
+    }
+
+    /**
+     * Retries the command at the head of the queue, whatever its type. Used for link level
+     * failures that are not tied to one operation.
+     */
+    public synchronized void retryCommand(int status) {
+        bleHandler.removeCallbacks(watchdog);
+        GattCommand command = currentCommand;
+        if (backingOff) {
+            // Already waiting to run it again: restarting it here as well would send it twice
+            return;
+        }
+        if (command == null) {
+            commandQueueBusy = false;
+            nextCommand();
+            return;
+        }
+
+        String reason = null;
+        if (!retryPolicy.isRetryable(status)) {
+            reason = "permanent GATT status " + status;
+        } else if (retries >= retryPolicy.getMaxAttempts()) {
+            reason = "max retries reached";
+        } else if (retryTokens < 1) {
+            reason = "retry budget exhausted";
+        }
+
+        if (reason != null) {
+            // Give up on this one and proceed
+            Log.v(TAG, "Not retrying " + command + " for " + address + ": " + reason);
+            commandQueueBusy = false;
+            currentCommand = null;
+            isRetrying = false;
+            failCommand(command, reason, status);
+            nextCommand();
+            return;
+        }
+
+        // Keep the queue busy while waiting so nothing overtakes the command being retried
+        retryTokens -= 1;
+        retryDelayMs = retryPolicy.getDelayMs(retries, retryDelayMs);
+        isRetrying = true;
+        backingOff = true;
+        Log.d(TAG, "BLE retrying " + command + " for " + address + " in " + retryDelayMs + " ms");
+        bleHandler.postDelayed(retry, retryDelayMs);
+    }
+
+    private synchronized void onRetryDelayElapsed() {
+        if (!backingOff) {
+            return;
+        }
+        backingOff = false;
+        commandQueueBusy = false;
+        nextCommand();
+    }
+
+    /**
+     * Replaces the retry policy. Success counts are reset if the attempt limit changes.
+     */
+    public synchronized void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        if (successCounts.length != retryPolicy.getMaxAttempts()) {
+            successCounts = new int[retryPolicy.getMaxAttempts()];
+        }
+    }
+
+    /**
+     * @return How many commands completed on the given attempt, starting at 1.
+     */
+    public synchronized int getSuccessCount(int attempt) {
+        return attempt >= 1 && attempt <= successCounts.length ? successCounts[attempt - 1] : 0;
+    }
+
+    /**
+     * @return How many commands were given up on after a permanent error, too many attempts or
+     * with the retry budget spent.
+     */
+    public synchronized int getFailureCount() {
+        return failureCount;
+    }
+
+    public synchronized double getRetryTokens() {
+        return retryTokens;
+    }
+
+    /**
+     * @return How many commands of the given type have timed out on this session.
+     */
+    public synchronized int getTimeoutCount(GattCommand.Type type) {
+        return timeoutCounts[type.ordinal()];
+    }
+
+    public synchronized int getTimeoutCount() {
+        int total = 0;
+        for (int count : timeoutCounts) {
+            total += count;
+        }
+        return total;
+    }
+
+    // A null target matches any command of the type
+    private boolean isCurrent(GattCommand.Type type, UUID target) {
+        if (!commandQueueBusy || backingOff || currentCommand == null || currentCommand.getType() != type) {
+            return false;
+        }
+        return target == null || currentCommand.getTarget() == null || target.equals(currentCommand.getTarget());
+    }
+
+    /**
+     * Chooses between strict priority and weighted dequeue across the command lanes.
+     */
+    public synchronized void setSchedulingMode(CommandScheduler.Mode mode) {
+        commandQueue.setMode(mode);
+    }
+
+    public synchronized void setLaneWeight(GattCommand.Lane lane, int weight) {
+        commandQueue.setWeight(lane, weight);
+    }
+
+    private synchronized void onCommandTimeout() {
+        GattCommand command = currentCommand;
+        if (!commandQueueBusy || backingOff || command == null) {
+            return;
+        }
+
+        timeoutCounts[command.getType().ordinal()]++;
+        Log.w(TAG, "BLE WARNING: " + command + " timed out after " + command.getTimeoutMs()
+                + " ms for " + address + " (timeouts: " + timeoutCounts[command.getType().ordinal()] + ")");
+
+        if (command.getTimeoutPolicy() == GattCommand.TimeoutPolicy.RETRY) {
+            retryCommand(command.getType());
+        } else {
+            commandQueueBusy = false;
+            isRetrying = false;
+            currentCommand = null;
+            failCommand(command, "timed out", RetryPolicy.STATUS_UNKNOWN);
+            nextCommand();
+        }
+    }
+
+    private void nextCommand() {
+        // If there is still a command being executed then bail out
+        if (commandQueueBusy) {
+            return;
+        }
+
+        // Check if we still have a valid gatt object
+        if (gatt == null) {
+            Log.e(TAG, String.format("BLE ERROR: GATT is 'null' for peripheral '%s', clearing command queue", address));
+            failAll("not connected");
+            commandQueueBusy = false;
+            return;
+        }
+
+        // A command being retried keeps its place, otherwise pick the next one by lane
+        if (currentCommand == null) {
+            currentCommand = commandQueue.next();
+            // Skip commands whose caller has already given up on them
+            while (currentCommand != null && currentCommand.getResult().isDone()) {
+                currentCommand = commandQueue.next();
+            }
+        }
+
+        // Execute the next command in the queue
+        if (currentCommand != null) {
+            final GattCommand bluetoothCommand = currentCommand;
+            commandQueueBusy = true;
+            if (!isRetrying) {
+                retries = 0;
+                retryDelayMs = 0;
+            }
+            retries++;
+            final Runnable start = new Runnable() {
+                @Override
+                public void run() {
+                    GattThread.assertCurrent();
+                    // The timeout counts from when the command is issued, not from when it was
+                    // dequeued, so waiting for pipelined writes to drain does not use it up
+                    synchronized (GattSession.this) {
+                        if (currentCommand != bluetoothCommand || !commandQueueBusy || backingOff) {
+                            return;
+                        }
+                        bleHandler.postDelayed(watchdog, bluetoothCommand.getTimeoutMs());
+                    }
+                    try {
+                        bluetoothCommand.run();
+                    } catch (Exception ex) {
+                        Log.e(TAG, String.format("BLE ERROR: Command exception for device '%s'", address), ex);
+                    }
+                }
+            };
+            if (pipelinedWrites && bluetoothCommand.getType() == GattCommand.Type.WRITE_CHARACTERISTIC) {
+                startBesidePipelinedWrites(bluetoothCommand, start);
+            } else {
+                bleHandler.post(start);
+            }
+        }
+    }
+
+    // A write with response reports through the same callback as the pipelined writes, so it
+    // waits until the writer has nothing in flight and the writer waits until it is done
+    private void startBesidePipelinedWrites(GattCommand command, final Runnable start) {
+        command.getResult().whenComplete(new BiConsumer<byte[], Throwable>() {
+            @Override
+            public void accept(byte[] value, Throwable error) {
+                pipelinedWriter.resume();
+            }
+        });
+        bleHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                pipelinedWriter.pause(start);
+            }
+        });
+    }
+
+    /**
+     * Routes {@code onCharacteristicWrite} for TX to the pipelined writer, unless a write with
+     * response is using it.
+     *
+     * @return False if the callback belongs to the command queue.
+     */
+    public boolean onTxWriteCompleted(int status) {
+        if (!pipelinedWrites || pipelinedWriter.isPaused()) {
+            return false;
+        }
+        pipelinedWriter.onWriteCompleted(status);
+        return true;
+    }
+
+    // A lost write-without-response packet cannot be sent again in order, as the packets behind
+    // it are already out, so whoever waits for a response is failed instead of timing out
+    private void onPipelinedWriteFailed(int status) {
+        synchronized (this) {
+            failureCount++;
+        }
+        Log.e(TAG, "BLE ERROR: pipelined TX write failed for " + address + ", status " + status);
+        failResponses(new GattException("TX write failed for " + address, status));
+    }
+
+    /**
+     * Queues a payload for TX in the interactive lane. Each write owns its own copy of the
+     * payload.
+     *
+     * @return False if the session is not ready or the payload could not be queued.
+     */
+    public boolean send(byte[] data) {
+        return send(data, GattCommand.Lane.INTERACTIVE);
+    }
+
+    /**
+     * Queues a payload for TX in the given lane, so bulk transfers do not delay short requests.
+     * Payloads larger than ATT_MTU - 3 are split into several writes.
+     *
+     * @return False if the session is not ready or the payload could not be queued.
+     */
+    public boolean send(byte[] data, GattCommand.Lane lane) {
+        if (!isReady()) {
+            return false;
+        }
+
+        linkTuner.onTraffic(data.length, lane == GattCommand.Lane.BULK);
+        for (byte[] chunk : transport.fragment(data)) {
+            if (pipelinedWrites) {
+                pipelinedWriter.enqueue(chunk, lane == GattCommand.Lane.BULK);
+            } else if (!enqueueWrite(chunk, lane)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean enqueueWrite(final byte[] payload, GattCommand.Lane lane) {
+        return enqueue(new GattCommand(GattCommand.Type.WRITE_CHARACTERISTIC, new Runnable() {
+            @Override
+            public void run() {
+                BluetoothGatt current = getGatt();
+                if (current == null || PipelinedWriter.writeCharacteristic(current, tx, payload, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT) != BluetoothStatusCodes.SUCCESS) {
+                    Log.e(TAG, "BLE ERROR: GATT write failed");
+                    retryCommand(GattCommand.Type.WRITE_CHARACTERISTIC);
+                } else {
+                    Log.d(TAG, "BLE INFO: write Requested");
+                }
+            }
+        }).setLane(lane));
+    }
+
+    /**
+     * Releases the GATT handle, drops any queued commands and resets the HDLC link.
+     */
+    public void close() {
+        // Outside the session lock: the link calls back into send() while holding its own lock
+        HdlcLink link = hdlcLink;
+        if (link != null) {
+            link.reset();
+        }
+        closeGatt();
+        // Also outside: the decoder delivers frames to the link, which sends through this session
+        hdlcDecoder.reset();
+    }
+
+    /**
+     * Registers interest in the next complete frame received on RX. Register before sending
+     * the request so a fast response cannot be missed.
+     */
+    public CompletableFuture<byte[]> expectResponse() {
+        final CompletableFuture<byte[]> response = new CompletableFuture<>();
+        synchronized (pendingResponses) {
+            pendingResponses.add(response);
+        }
+        response.whenComplete(new BiConsumer<byte[], Throwable>() {
+            @Override
+            public void accept(byte[] value, Throwable error) {
+                if (error != null) {
+                    synchronized (pendingResponses) {
+                        pendingResponses.remove(response);
+                    }
+                }
+            }
+        });
+        return response;
+    }
+
+    /**
+     * Hands a received frame to the oldest caller waiting for a response. The frame is only
+     * copied when someone is waiting, so frames nobody asked for cost no allocation.
+     *
+     * @return False if nobody was waiting.
+     */
+    public boolean onResponse(HdlcFrame frame) {
+        CompletableFuture<byte[]> response;
+        synchronized (pendingResponses) {
+            response = pendingResponses.poll();
+        }
+        return response != null && response.complete(frame.toByteArray());
+    }
+
+    private void failResponses(GattException exception) {
+        CompletableFuture<byte[]> response;
+        while (true) {
+            synchronized (pendingResponses) {
+                response = pendingResponses.poll();
+            }
+            if (response == null) {
+                break;
+            }
+            response.completeExceptionally(exception);
+        }
+    }
+
+    private synchronized void closeGatt() {
+        bleHandler.removeCallbacks(watchdog);
+        bleHandler.removeCallbacks(retry);
+        backingOff = false;
+        pipelinedWriter.detach();
+        pipelinedWrites = false;
+        linkTuner.detach();
+        failAll("session closed");
+        commandQueueBusy = false;
+        failResponses(new GattException("session closed"));
+        uart = null;
+        rx = null;
+        tx = null;
+        transport.reset();
+        connectionState = STATE_DISCONNECTED;
+        if (gatt != null) {
+            gatt.close();
+            gatt = null;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.ble.demobleapplication;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * The process wide thread that runs every GATT command, retry and watchdog and receives every
+ * {@link android.bluetooth.BluetoothGattCallback} call. Keeping the BLE pipeline off the main
+ * looper means UI frames cannot delay it and bulk transfers cannot cause jank; only decoded
+ * results are handed to the UI, as {@link GattEvent}s published on the {@link GattEventBus}.
+ * System broadcasts are only sent when the {@link GattEventBroadcaster} bridge is enabled.
+ */
+public final class GattThread {
+
+    private static HandlerThread thread;
+    private static Handler handler;
+
+    private GattThread() {
+    }
+
+    /**
+     * @return The handler of the GATT thread, started on first use.
+     */
+    public static synchronized Handler getHandler() {
+        if (handler == null) {
+            thread = new HandlerThread("GattThread", Process.THREAD_PRIORITY_DISPLAY);
+            thread.start();
+            handler = new Handler(thread.getLooper());
+        }
+        return handler;
+    }
+
+    public static boolean isCurrent() {
+        return Looper.myLooper() == getHandler().getLooper();
+    }
+
+    /**
+     * Throws if the caller is not on the GATT thread. State that is only touched from commands
+     * and callbacks relies on this instead of locking.
+     */
+    public static void assertCurrent() {
+        if (!isCurrent()) {
+            throw new IllegalStateException("Expected GattThread, called on " + Thread.currentThread().getName());
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package com.ble.demobleapplication;
+
+import android.util.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Incremental HDLC (IEC 62056-46) decoder for the RX notification stream.
+ * <p>
+ * Notification payloads are copied into a fixed ring buffer that is sized for the largest frame
+ * the format field can describe, so no memory is allocated while data is flowing. The decoder
+ * hunts for the 0x7E opening flag, waits until the length from the frame format field is
+ * available, checks the closing flag, HCS and FCS ({@link Crc16}) and hands every valid
+ * frame to the registered listeners. Frames may start and end anywhere inside a notification and may share
+ * their closing flag with the next frame's opening flag. A corrupt frame is dropped and the
+ * decoder resynchronises on the next flag.
+ * <p>
+ * Listeners are called without the decoder's lock held, so a listener that sends through its
+ * session cannot deadlock against a thread that closes the session and {@link #reset()}s the
+ * decoder.
+ */
+public class HdlcDecoder {
+    private final static String TAG = HdlcDecoder.class.getSimpleName();
+
+    // Largest frame on the wire: 11 bit length plus the two flags
+    private static final int MAX_FRAME_SIZE = HdlcFrame.FORMAT_LENGTH_MASK + 2;
+    // Power of two above MAX_FRAME_SIZE so a frame always fits next to a partial one
+    private static final int RING_SIZE = 4096;
+    private static final int RING_MASK = RING_SIZE - 1;
+
+    // Format (2) + destination (1) + source (1) + control (1) + FCS (2)
+    private static final int MIN_FRAME_LENGTH = 7;
+    private static final int MAX_ADDRESS_LENGTH = 4;
+
+    public interface FrameListener {
+        /**
+         * Called for every valid frame. The frame and its buffer are reused by the decoder and
+         * are only valid for the duration of the call.
+         */
+        void onFrame(HdlcFrame frame);
+    }
+
+    private final CopyOnWriteArrayList<FrameListener> listeners = new CopyOnWriteArrayList<>();
+    // Serialises feed(), whose frames are handed out from the shared scratch buffer. Never
+    // taken by reset()
+    private final Object feedLock = new Object();
+
+    private final byte[] ring = new byte[RING_SIZE];
+    private int head = 0;
+    private int count = 0;
+
+    // Linear copy of the frame being checked, handed to listeners through the reused frame
+    private final byte[] scratch = new byte[MAX_FRAME_SIZE];
+    private final HdlcFrame frame = new HdlcFrame();
+
+    private long framesDecoded = 0;
+    private long hcsErrors = 0;
+    private long fcsErrors = 0;
+    private long framingErrors = 0;
+    private long bytesDiscarded = 0;
+
+    public HdlcDecoder() {
+        frame.buffer = scratch;
+    }
+
+    public void addFrameListener(FrameListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void removeFrameListener(FrameListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Appends a notification payload and delivers every frame it completes.
+     */
+    public void feed(byte[] data, int offset, int length) {
+        synchronized (feedLock) {
+            while (length > 0) {
+                final int n;
+                synchronized (this) {
+                    n = Math.min(length, RING_SIZE - count);
+                    int tail = (head + count) & RING_MASK;
+                    int first = Math.min(n, RING_SIZE - tail);
+                    System.arraycopy(data, offset, ring, tail, first);
+                    System.arraycopy(data, offset + first, ring, 0, n - first);
+                    count += n;
+                }
+                offset += n;
+                length -= n;
+                while (decode()) {
+                    for (FrameListener listener : listeners) {
+                        listener.onFrame(frame);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Consumes the ring up to and including the next valid frame, which is left in
+     * {@link #frame}.
+     *
+     * @return False once more data is needed.
+     */
+    private synchronized boolean decode() {
+        while (count > 0) {
+            if (ring[head] != HdlcFrame.FLAG) {
+                bytesDiscarded++;
+                skip(1);
+                continue;
+            }
+            if (count < 3) {
+                return false;
+            }
+            int format = ((peek(1) & 0xFF) << 8) | (peek(2) & 0xFF);
+            if ((format & HdlcFrame.FORMAT_TYPE_MASK) != HdlcFrame.FORMAT_TYPE_3) {
+                // Closing flag of the previous frame, an idle flag or line noise
+                skip(1);
+                continue;
+            }
+            int frameLength = (format & HdlcFrame.FORMAT_LENGTH_MASK) + 2;
+            if (count < frameLength) {
+                return false;
+            }
+            if (frameLength - 2 < MIN_FRAME_LENGTH || peek(frameLength - 1) != HdlcFrame.FLAG) {
+                framingErrors++;
+                skip(1);
+                continue;
+            }
+
+            copyOut(frameLength);
+            if (parse(format, frameLength)) {
+                framesDecoded++;
+                // Leave the closing flag, it may also open the next frame
+                skip(frameLength - 1);
+                return true;
+            }
+            skip(1);
+        }
+        return false;
+    }
+
+    /**
+     * Parses the frame in the scratch buffer into {@link #frame}.
+     *
+     * @return False if the addresses are malformed or the HCS or FCS does not match.
+     */
+    private boolean parse(int format, int frameLength) {
+        int fcsPosition = frameLength - 3;
+        int fcs = (scratch[fcsPosition] & 0xFF) | ((scratch[fcsPosition + 1] & 0xFF) << 8);
+        if (Crc16.fcs(scratch, 1, fcsPosition - 1) != fcs) {
+            fcsErrors++;
+            Log.w(TAG, "BLE WARNING: dropping HDLC frame with bad FCS");
+            return false;
+        }
+
+        int position = 3;
+        int destinationLength = addressLength(position, fcsPosition);
+        if (destinationLength < 0) {
+            framingErrors++;
+            return false;
+        }
+        frame.destinationAddress = address(position, destinationLength);
+        frame.destinationAddressLength = destinationLength;
+        position += destinationLength;
+
+        int sourceLength = addressLength(position, fcsPosition);
+        if (sourceLength < 0) {
+            framingErrors++;
+            return false;
+        }
+        frame.sourceAddress = address(position, sourceLength);
+        frame.sourceAddressLength = sourceLength;
+        position += sourceLength;
+
+        if (position >= fcsPosition) {
+            framingErrors++;
+            return false;
+        }
+        frame.control = scratch[position++] & 0xFF;
+
+        if (position == fcsPosition) {
+            // No information field, so the FCS is the only check sequence
+            frame.infoOffset = position;
+            frame.infoLength = 0;
+        } else {
+            if (position + 2 > fcsPosition) {
+                framingErrors++;
+                return false;
+            }
+            int hcs = (scratch[position] & 0xFF) | ((scratch[position + 1] & 0xFF) << 8);
+            if (Crc16.fcs(scratch, 1, position - 1) != hcs) {
+                hcsErrors++;
+                Log.w(TAG, "BLE WARNING: dropping HDLC frame with bad HCS");
+                return false;
+            }
+            frame.infoOffset = position + 2;
+            frame.infoLength = fcsPosition - frame.infoOffset;
+        }
+
+        frame.offset = 0;
+        frame.length = frameLength;
+        frame.segmented = (format & HdlcFrame.FORMAT_SEGMENTED) != 0;
+        return true;
+    }
+
+    /**
+     * @return The length of the address starting at {@code position}, whose last byte has the
+     * extension bit set, or -1 if it does not end within four bytes or before {@code limit}.
+     */
+    private int addressLength(int position, int limit) {
+        for (int i = 0; i < MAX_ADDRESS_LENGTH && position + i < limit; i++) {
+            if ((scratch[position + i] & 0x01) != 0) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private int address(int position, int length) {
+        int address = 0;
+        for (int i = 0; i < length; i++) {
+            address = (address << 7) | ((scratch[position + i] & 0xFF) >>> 1);
+        }
+        return address;
+    }
+
+    private byte peek(int index) {
+        return ring[(head + index) & RING_MASK];
+    }
+
+    private void skip(int n) {
+        head = (head + n) & RING_MASK;
+        count -= n;
+    }
+
+    private void copyOut(int length) {
+        int first = Math.min(length, RING_SIZE - head);
+        System.arraycopy(ring, head, scratch, 0, first);
+        System.arraycopy(ring, 0, scratch, first, length - first);
+    }
+
+    /**
+     * Drops any partially received frame, e.g. after a disconnect.
+     */
+    public synchronized void reset() {
+        head = 0;
+        count = 0;
+    }
+
+    public synchronized long getFramesDecoded() {
+        return framesDecoded;
+    }
+
+    public synchronized long getHcsErrors() {
+        return hcsErrors;
+    }
+
+    public synchronized long getFcsErrors() {
+        return fcsErrors;
+    }
+
+    public synchronized long getFramingErrors() {
+        return framingErrors;
+    }
+
+    public synchronized long getBytesDiscarded() {
+        return bytesDiscarded;
+    }
+}
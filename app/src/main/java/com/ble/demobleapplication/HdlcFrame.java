@@ -0,0 +1,194 @@
+package com.ble.demobleapplication;
+
+import java.util.Arrays;
+
+/**
+ * A decoded HDLC frame (IEC 62056-46, frame format type 3).
+ * <p>
+ * Instances handed out by {@link HdlcDecoder} are reused for every frame and point into the
+ * decoder's scratch buffer, so they are only valid inside the listener callback. Use
+ * {@link #toByteArray()} or {@link #copyInfo()} to keep the contents.
+ */
+public class HdlcFrame {
+
+    public static final byte FLAG = 0x7E;
+
+    // Frame format field: type 3 in the top nibble, segmentation bit, 11 bit length
+    public static final int FORMAT_TYPE_MASK = 0xF000;
+    public static final int FORMAT_TYPE_3 = 0xA000;
+    public static final int FORMAT_SEGMENTED = 0x0800;
+    public static final int FORMAT_LENGTH_MASK = 0x07FF;
+
+    // Control field values with the P/F bit cleared (modulo 8 numbering)
+    public static final int CONTROL_POLL_FINAL = 0x10;
+    public static final int CONTROL_SNRM = 0x83;
+    public static final int CONTROL_DISC = 0x43;
+    public static final int CONTROL_UA = 0x63;
+    public static final int CONTROL_DM = 0x0F;
+    public static final int CONTROL_FRMR = 0x87;
+    public static final int CONTROL_UI = 0x03;
+    public static final int CONTROL_RR = 0x01;
+    public static final int CONTROL_RNR = 0x05;
+    public static final int CONTROL_REJ = 0x09;
+    public static final int CONTROL_SREJ = 0x0D;
+
+    byte[] buffer;
+    // Offset and length of the whole frame in buffer, including the opening and closing flags
+    int offset;
+    int length;
+
+    boolean segmented;
+    int destinationAddress;
+    int destinationAddressLength;
+    int sourceAddress;
+    int sourceAddressLength;
+    int control;
+    int infoOffset;
+    int infoLength;
+
+    /**
+     * @return True if the segmentation bit is set, i.e. more frames follow for this APDU.
+     */
+    public boolean isSegmented() {
+        return segmented;
+    }
+
+    public int getDestinationAddress() {
+        return destinationAddress;
+    }
+
+    public int getDestinationAddressLength() {
+        return destinationAddressLength;
+    }
+
+    public int getSourceAddress() {
+        return sourceAddress;
+    }
+
+    public int getSourceAddressLength() {
+        return sourceAddressLength;
+    }
+
+    public int getControl() {
+        return control;
+    }
+
+    public boolean isInformation() {
+        return (control & 0x01) == 0;
+    }
+
+    public boolean isSupervisory() {
+        return (control & 0x03) == 0x01;
+    }
+
+    public boolean isUnnumbered() {
+        return (control & 0x03) == 0x03;
+    }
+
+    public boolean isPollFinal() {
+        return (control & CONTROL_POLL_FINAL) != 0;
+    }
+
+    /**
+     * @return N(S) of an I-frame.
+     */
+    public int getSendSequence() {
+        return (control >>> 1) & 0x07;
+    }
+
+    /**
+     * @return N(R) of an I- or S-frame.
+     */
+    public int getReceiveSequence() {
+        return (control >>> 5) & 0x07;
+    }
+
+    /**
+     * @return The control field of an S- or U-frame without N(R) and the P/F bit.
+     */
+    public int getCommand() {
+        return isSupervisory() ? control & 0x0F : control & ~CONTROL_POLL_FINAL;
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getInfoOffset() {
+        return infoOffset;
+    }
+
+    public int getInfoLength() {
+        return infoLength;
+    }
+
+    /**
+     * @return A copy of the information field, or an empty array if the frame has none.
+     */
+    public byte[] copyInfo() {
+        return Arrays.copyOfRange(buffer, infoOffset, infoOffset + infoLength);
+    }
+
+    /**
+     * @return A copy of the frame as it appeared on the wire, including both flags.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOfRange(buffer, offset, offset + length);
+    }
+
+    /**
+     * Builds a frame ready to be written, including flags, HCS (if there is an information
+     * field) and FCS.
+     */
+    public static byte[] encode(int destination, int destinationLength, int source, int sourceLength,
+                                int control, boolean segmented, byte[] info, int infoOffset, int infoLength) {
+        int headerLength = 2 + destinationLength + sourceLength + 1;
+        int length = headerLength + (infoLength > 0 ? 2 + infoLength : 0) + 2;
+        if (length > FORMAT_LENGTH_MASK) {
+            throw new IllegalArgumentException("HDLC frame too long: " + length);
+        }
+
+        byte[] frame = new byte[length + 2];
+        int format = FORMAT_TYPE_3 | (segmented ? FORMAT_SEGMENTED : 0) | length;
+        frame[0] = FLAG;
+        frame[1] = (byte) (format >>> 8);
+        frame[2] = (byte) format;
+        int position = encodeAddress(frame, 3, destination, destinationLength);
+        position = encodeAddress(frame, position, source, sourceLength);
+        frame[position++] = (byte) control;
+        if (infoLength > 0) {
+            int hcs = Crc16.fcs(frame, 1, position - 1);
+            frame[position++] = (byte) hcs;
+            frame[position++] = (byte) (hcs >>> 8);
+            System.arraycopy(info, infoOffset, frame, position, infoLength);
+            position += infoLength;
+        }
+        int fcs = Crc16.fcs(frame, 1, position - 1);
+        frame[position++] = (byte) fcs;
+        frame[position++] = (byte) (fcs >>> 8);
+        frame[position] = FLAG;
+        return frame;
+    }
+
+    private static int encodeAddress(byte[] frame, int position, int address, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            frame[position++] = (byte) (((address >>> (7 * i)) & 0x7F) << 1 | (i == 0 ? 1 : 0));
+        }
+        return position;
+    }
+
+    @Override
+    public String toString() {
+        return "HdlcFrame{dst=" + destinationAddress + ", src=" + sourceAddress
+                + ", control=0x" + Integer.toHexString(control) + ", info=" + infoLength
+                + (segmented ? ", segmented" : "") + "}";
+    }
+}
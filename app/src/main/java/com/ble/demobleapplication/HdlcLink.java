@@ -0,0 +1,520 @@
+package com.ble.demobleapplication;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Client (primary station) side of the HDLC data link layer of IEC 62056-46, in normal
+ * response mode.
+ * <p>
+ * SNRM proposes transmit and receive windows of up to seven frames and the maximum information
+ * field lengths; the UA from the server decides the values that are used. APDUs longer than the
+ * maximum information field are segmented, and up to a window of I-frames is sent before the
+ * poll bit asks the server to respond, instead of waiting for an RR after every frame. Frames
+ * the server did not acknowledge when it returns the final bit are sent again, all of them
+ * after an RR or REJ and only the named one after an SREJ. Received I-frames are checked
+ * against N(R), out of sequence frames are rejected, and segmented responses are reassembled
+ * before they are handed to the {@link Listener}.
+ */
+public class HdlcLink implements HdlcDecoder.FrameListener {
+    private final static String TAG = HdlcLink.class.getSimpleName();
+
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+    public static final int STATE_DISCONNECTING = 3;
+
+    // Sequence numbers are modulo 8, so at most seven I-frames can be unacknowledged
+    private static final int MODULO = 8;
+    public static final int MAX_WINDOW = MODULO - 1;
+
+    private static final long RESPONSE_TIMEOUT_MS = 2000;
+    private static final int MAX_POLL_RETRIES = 3;
+
+    /**
+     * Link parameters from one station's point of view, as carried in the information field of
+     * SNRM and UA.
+     */
+    public static class Parameters {
+        // Values that apply when SNRM or UA carries no information field
+        public static final int DEFAULT_MAX_INFO = 128;
+        public static final int DEFAULT_WINDOW = 1;
+
+        private static final int FORMAT_ID = 0x81;
+        private static final int GROUP_ID = 0x80;
+        private static final int MAX_INFO_TRANSMIT = 0x05;
+        private static final int MAX_INFO_RECEIVE = 0x06;
+        private static final int WINDOW_TRANSMIT = 0x07;
+        private static final int WINDOW_RECEIVE = 0x08;
+
+        public final int maxInfoTransmit;
+        public final int maxInfoReceive;
+        public final int windowTransmit;
+        public final int windowReceive;
+
+        public Parameters(int maxInfoTransmit, int maxInfoReceive, int windowTransmit, int windowReceive) {
+            this.maxInfoTransmit = maxInfoTransmit;
+            this.maxInfoReceive = maxInfoReceive;
+            this.windowTransmit = Math.max(1, Math.min(MAX_WINDOW, windowTransmit));
+            this.windowReceive = Math.max(1, Math.min(MAX_WINDOW, windowReceive));
+        }
+
+        byte[] encode() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(FORMAT_ID);
+            out.write(GROUP_ID);
+            out.write(0);
+            writeParameter(out, MAX_INFO_TRANSMIT, maxInfoTransmit, maxInfoTransmit > 0xFF ? 2 : 1);
+            writeParameter(out, MAX_INFO_RECEIVE, maxInfoReceive, maxInfoReceive > 0xFF ? 2 : 1);
+            writeParameter(out, WINDOW_TRANSMIT, windowTransmit, 4);
+            writeParameter(out, WINDOW_RECEIVE, windowReceive, 4);
+            byte[] info = out.toByteArray();
+            info[2] = (byte) (info.length - 3);
+            return info;
+        }
+
+        private static void writeParameter(ByteArrayOutputStream out, int id, int value, int length) {
+            out.write(id);
+            out.write(length);
+            for (int i = length - 1; i >= 0; i--) {
+                out.write(value >>> (8 * i));
+            }
+        }
+
+        /**
+         * Parses the parameter negotiation field. Missing parameters take their default value.
+         */
+        static Parameters decode(byte[] buffer, int offset, int length) {
+            int[] values = {DEFAULT_MAX_INFO, DEFAULT_MAX_INFO, DEFAULT_WINDOW, DEFAULT_WINDOW};
+            if (length >= 3 && (buffer[offset] & 0xFF) == FORMAT_ID && (buffer[offset + 1] & 0xFF) == GROUP_ID) {
+                int end = Math.min(offset + length, offset + 3 + (buffer[offset + 2] & 0xFF));
+                int position = offset + 3;
+                while (position + 2 <= end) {
+                    int id = buffer[position] & 0xFF;
+                    int valueLength = buffer[position + 1] & 0xFF;
+                    position += 2;
+                    if (position + valueLength > end) {
+                        break;
+                    }
+                    int value = 0;
+                    for (int i = 0; i < valueLength; i++) {
+                        value = (value << 8) | (buffer[position + i] & 0xFF);
+                    }
+                    if (id >= MAX_INFO_TRANSMIT && id <= WINDOW_RECEIVE) {
+                        values[id - MAX_INFO_TRANSMIT] = value;
+                    }
+                    position += valueLength;
+                }
+            }
+            return new Parameters(values[0], values[1], values[2], values[3]);
+        }
+
+        @Override
+        public String toString() {
+            return "maxInfoTx=" + maxInfoTransmit + ", maxInfoRx=" + maxInfoReceive
+                    + ", windowTx=" + windowTransmit + ", windowRx=" + windowReceive;
+        }
+    }
+
+    public interface Sink {
+        /**
+         * Writes one encoded frame to the link.
+         */
+        boolean send(byte[] frame);
+    }
+
+    public interface Listener {
+        void onConnected(Parameters parameters);
+
+        void onApdu(byte[] apdu);
+
+        void onDisconnected();
+    }
+
+    private static class Segment {
+        final byte[] info;
+        final boolean segmented;
+
+        Segment(byte[] info, boolean segmented) {
+            this.info = info;
+            this.segmented = segmented;
+        }
+    }
+
+    private final int clientAddress;
+    private final int serverAddress;
+    private final int serverAddressLength;
+    private final Sink sink;
+    private final Handler handler;
+    private Listener listener;
+
+    private Parameters proposed = new Parameters(0x500, 0x500, MAX_WINDOW, MAX_WINDOW);
+    private Parameters negotiated = new Parameters(Parameters.DEFAULT_MAX_INFO, Parameters.DEFAULT_MAX_INFO,
+            Parameters.DEFAULT_WINDOW, Parameters.DEFAULT_WINDOW);
+    private int state = STATE_DISCONNECTED;
+
+    // V(S), the oldest unacknowledged N(S) and V(R)
+    private int sendSequence = 0;
+    private int ackSequence = 0;
+    private int receiveSequence = 0;
+    private final Segment[] unacknowledged = new Segment[MODULO];
+    private final ArrayDeque<Segment> pending = new ArrayDeque<>();
+
+    private boolean awaitingFinal = false;
+    private boolean remoteBusy = false;
+    private boolean rejectPending = false;
+    private int selectiveReject = -1;
+    private boolean receivingSegmented = false;
+    private final ByteArrayOutputStream rxApdu = new ByteArrayOutputStream();
+    private int pollRetries = 0;
+
+    private long framesSent = 0;
+    private long framesRetransmitted = 0;
+
+    private final Runnable responseTimeout = new Runnable() {
+        @Override
+        public void run() {
+            onResponseTimeout();
+        }
+    };
+
+    /**
+     * @param clientAddress       Client (source) address, one byte on the wire.
+     * @param serverAddress       Server (destination) address, upper and lower HDLC address combined.
+     * @param serverAddressLength Number of bytes the server address takes on the wire: 1, 2 or 4.
+     */
+    public HdlcLink(int clientAddress, int serverAddress, int serverAddressLength, Sink sink, Handler handler) {
+        this.clientAddress = clientAddress;
+        this.serverAddress = serverAddress;
+        this.serverAddressLength = serverAddressLength;
+        this.sink = sink;
+        this.handler = handler;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the values proposed in the next SNRM. Windows are limited to {@link #MAX_WINDOW}.
+     */
+    public synchronized void setProposedParameters(Parameters proposed) {
+        this.proposed = proposed;
+    }
+
+    /**
+     * @return The parameters in effect, from this client's point of view.
+     */
+    public synchronized Parameters getParameters() {
+        return negotiated;
+    }
+
+    public synchronized int getState() {
+        return state;
+    }
+
+    public synchronized long getFramesSent() {
+        return framesSent;
+    }
+
+    public synchronized long getFramesRetransmitted() {
+        return framesRetransmitted;
+    }
+
+    /**
+     * Sends SNRM with the proposed parameters.
+     *
+     * @return False if the link is not disconnected.
+     */
+    public synchronized boolean connect() {
+        if (state != STATE_DISCONNECTED) {
+            return false;
+        }
+        resetSequences();
+        state = STATE_CONNECTING;
+        pollRetries = 0;
+        sendUnnumbered(HdlcFrame.CONTROL_SNRM, proposed.encode());
+        return true;
+    }
+
+    public synchronized void disconnect() {
+        if (state == STATE_DISCONNECTED) {
+            return;
+        }
+        state = STATE_DISCONNECTING;
+        pollRetries = 0;
+        sendUnnumbered(HdlcFrame.CONTROL_DISC, null);
+    }
+
+    /**
+     * Queues an APDU, split into I-frames of at most the negotiated maximum information field.
+     *
+     * @return False if the link is not connected.
+     */
+    public synchronized boolean sendApdu(byte[] apdu) {
+        if (state != STATE_CONNECTED) {
+            return false;
+        }
+        int maxInfo = negotiated.maxInfoTransmit;
+        for (int offset = 0; offset < apdu.length; offset += maxInfo) {
+            int end = Math.min(apdu.length, offset + maxInfo);
+            pending.add(new Segment(Arrays.copyOfRange(apdu, offset, end), end < apdu.length));
+        }
+        pump();
+        return true;
+    }
+
+    /**
+     * Drops all link state without sending DISC, e.g. when the BLE connection is gone.
+     */
+    public synchronized void reset() {
+        closed();
+    }
+
+    @Override
+    public synchronized void onFrame(HdlcFrame frame) {
+        if (frame.getDestinationAddress() != clientAddress || frame.getSourceAddress() != serverAddress) {
+            return;
+        }
+
+        if (frame.isUnnumbered()) {
+            onUnnumbered(frame);
+            return;
+        }
+        if (state != STATE_CONNECTED) {
+            return;
+        }
+        if (!acknowledge(frame.getReceiveSequence())) {
+            Log.w(TAG, "BLE WARNING: HDLC N(R) " + frame.getReceiveSequence() + " outside window");
+            return;
+        }
+
+        if (frame.isSupervisory()) {
+            onSupervisory(frame);
+        } else {
+            onInformation(frame);
+        }
+        if (frame.isPollFinal()) {
+            onFinal();
+        }
+    }
+
+    private void onUnnumbered(HdlcFrame frame) {
+        switch (frame.getCommand()) {
+            case HdlcFrame.CONTROL_UA:
+                if (state == STATE_CONNECTING) {
+                    Parameters server = Parameters.decode(frame.getBuffer(), frame.getInfoOffset(), frame.getInfoLength());
+                    // The server states its own transmit and receive side
+                    negotiated = new Parameters(
+                            Math.min(proposed.maxInfoTransmit, server.maxInfoReceive),
+                            Math.min(proposed.maxInfoReceive, server.maxInfoTransmit),
+                            Math.min(proposed.windowTransmit, server.windowReceive),
+                            Math.min(proposed.windowReceive, server.windowTransmit));
+                    handler.removeCallbacks(responseTimeout);
+                    awaitingFinal = false;
+                    state = STATE_CONNECTED;
+                    Log.d(TAG, "BLE HDLC connected: " + negotiated);
+                    if (listener != null) {
+                        listener.onConnected(negotiated);
+                    }
+                } else if (state == STATE_DISCONNECTING) {
+                    closed();
+                }
+                break;
+            case HdlcFrame.CONTROL_DM:
+                closed();
+                break;
+            case HdlcFrame.CONTROL_FRMR:
+                Log.e(TAG, "BLE ERROR: HDLC frame rejected by server");
+                closed();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void onSupervisory(HdlcFrame frame) {
+        switch (frame.getCommand()) {
+            case HdlcFrame.CONTROL_RR:
+            case HdlcFrame.CONTROL_REJ:
+                // Anything still unacknowledged at the final bit is sent again
+                remoteBusy = false;
+                break;
+            case HdlcFrame.CONTROL_RNR:
+                remoteBusy = true;
+                break;
+            case HdlcFrame.CONTROL_SREJ:
+                remoteBusy = false;
+                selectiveReject = frame.getReceiveSequence();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void onInformation(HdlcFrame frame) {
+        if (frame.getSendSequence() != receiveSequence) {
+            Log.w(TAG, "BLE WARNING: HDLC N(S) " + frame.getSendSequence() + ", expected " + receiveSequence);
+            rejectPending = true;
+            return;
+        }
+        receiveSequence = (receiveSequence + 1) % MODULO;
+        rxApdu.write(frame.getBuffer(), frame.getInfoOffset(), frame.getInfoLength());
+        receivingSegmented = frame.isSegmented();
+        if (!receivingSegmented) {
+            byte[] apdu = rxApdu.toByteArray();
+            rxApdu.reset();
+            if (listener != null) {
+                listener.onApdu(apdu);
+            }
+        }
+    }
+
+    /**
+     * The server has finished its response and it is our turn to send.
+     */
+    private void onFinal() {
+        handler.removeCallbacks(responseTimeout);
+        awaitingFinal = false;
+        pollRetries = 0;
+
+        if (rejectPending) {
+            rejectPending = false;
+            sendSupervisory(HdlcFrame.CONTROL_REJ);
+        } else if (selectiveReject >= 0) {
+            int sequence = selectiveReject;
+            selectiveReject = -1;
+            if (unacknowledged[sequence] != null) {
+                framesRetransmitted++;
+                sendInformation(sequence, unacknowledged[sequence], true);
+            } else {
+                pump();
+            }
+        } else if (ackSequence != sendSequence && !remoteBusy) {
+            retransmitUnacknowledged();
+        } else if (receivingSegmented) {
+            // Ask for the next segments of the response
+            sendSupervisory(HdlcFrame.CONTROL_RR);
+        } else if (remoteBusy) {
+            // Poll again once the timeout expires
+            handler.postDelayed(responseTimeout, RESPONSE_TIMEOUT_MS);
+        } else {
+            pump();
+        }
+    }
+
+    private void pump() {
+        if (state != STATE_CONNECTED || awaitingFinal || remoteBusy) {
+            return;
+        }
+        while (outstanding() < negotiated.windowTransmit && !pending.isEmpty()) {
+            Segment segment = pending.poll();
+            int sequence = sendSequence;
+            unacknowledged[sequence] = segment;
+            sendSequence = (sendSequence + 1) % MODULO;
+            boolean poll = outstanding() == negotiated.windowTransmit || pending.isEmpty();
+            sendInformation(sequence, segment, poll);
+        }
+    }
+
+    private void retransmitUnacknowledged() {
+        for (int sequence = ackSequence; sequence != sendSequence; sequence = (sequence + 1) % MODULO) {
+            framesRetransmitted++;
+            sendInformation(sequence, unacknowledged[sequence], (sequence + 1) % MODULO == sendSequence);
+        }
+    }
+
+    private int outstanding() {
+        return (sendSequence - ackSequence + MODULO) % MODULO;
+    }
+
+    /**
+     * Releases every I-frame before N(R).
+     *
+     * @return False if N(R) does not lie between the oldest unacknowledged frame and V(S).
+     */
+    private boolean acknowledge(int sequence) {
+        if ((sequence - ackSequence + MODULO) % MODULO > outstanding()) {
+            return false;
+        }
+        while (ackSequence != sequence) {
+            unacknowledged[ackSequence] = null;
+            ackSequence = (ackSequence + 1) % MODULO;
+        }
+        return true;
+    }
+
+    private void sendInformation(int sequence, Segment segment, boolean poll) {
+        int control = (receiveSequence << 5) | (poll ? HdlcFrame.CONTROL_POLL_FINAL : 0) | (sequence << 1);
+        send(control, segment.segmented, segment.info, poll);
+    }
+
+    private void sendSupervisory(int command) {
+        send((receiveSequence << 5) | HdlcFrame.CONTROL_POLL_FINAL | command, false, null, true);
+    }
+
+    private void sendUnnumbered(int command, byte[] info) {
+        send(command | HdlcFrame.CONTROL_POLL_FINAL, false, info, true);
+    }
+
+    private void send(int control, boolean segmented, byte[] info, boolean poll) {
+        byte[] frame = HdlcFrame.encode(serverAddress, serverAddressLength, clientAddress, 1,
+                control, segmented, info, 0, info != null ? info.length : 0);
+        framesSent++;
+        if (!sink.send(frame)) {
+            Log.e(TAG, "BLE ERROR: HDLC frame could not be queued");
+        }
+        if (poll) {
+            awaitingFinal = true;
+            handler.removeCallbacks(responseTimeout);
+            handler.postDelayed(responseTimeout, RESPONSE_TIMEOUT_MS);
+        }
+    }
+
+    private synchronized void onResponseTimeout() {
+        if (state == STATE_DISCONNECTED) {
+            return;
+        }
+        if (++pollRetries > MAX_POLL_RETRIES) {
+            Log.e(TAG, "BLE ERROR: HDLC server not responding, link closed");
+            closed();
+            return;
+        }
+        if (state == STATE_CONNECTING) {
+            sendUnnumbered(HdlcFrame.CONTROL_SNRM, proposed.encode());
+        } else if (state == STATE_DISCONNECTING) {
+            sendUnnumbered(HdlcFrame.CONTROL_DISC, null);
+        } else {
+            // Poll for the server's N(R); the final response triggers any retransmission
+            sendSupervisory(HdlcFrame.CONTROL_RR);
+        }
+    }
+
+    private void resetSequences() {
+        sendSequence = 0;
+        ackSequence = 0;
+        receiveSequence = 0;
+        Arrays.fill(unacknowledged, null);
+        pending.clear();
+        awaitingFinal = false;
+        remoteBusy = false;
+        rejectPending = false;
+        selectiveReject = -1;
+        receivingSegmented = false;
+        rxApdu.reset();
+    }
+
+    private void closed() {
+        handler.removeCallbacks(responseTimeout);
+        resetSequences();
+        boolean wasOpen = state != STATE_DISCONNECTED;
+        state = STATE_DISCONNECTED;
+        if (wasOpen && listener != null) {
+            listener.onDisconnected();
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.ble.demobleapplication;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Table-driven hex encoding and decoding.
+ * <p>
+ * Encoding looks up both characters of a byte in one table and writes into a caller-supplied
+ * {@code char[]} or {@link StringBuilder}, optionally with a separator between bytes, so
+ * formatting a payload needs no allocation beyond the final String, if any. Decoding reads any
+ * {@link CharSequence} into a caller-supplied {@code byte[]} or {@link ByteBuffer}:
+ * {@link Mode#STRICT} accepts only an even number of hex digits, {@link Mode#LENIENT} also
+ * accepts a leading "0x" and whitespace, ':', '-', ',' or '.' between bytes, as typed by users
+ * or printed by other tools. A separator between the two digits of a byte, as in "A B", is
+ * rejected rather than read as 0xAB. Both modes reject anything else with an
+ * {@link IllegalArgumentException} instead of silently producing garbage.
+ */
+public final class HexCodec {
+
+    public enum Mode {
+        STRICT,
+        LENIENT
+    }
+
+    /**
+     * Pass as separator for none.
+     */
+    public static final char NO_SEPARATOR = '\0';
+
+    private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+    // PAIRS[2 * b] and PAIRS[2 * b + 1] are the two digits of byte value b
+    private static final char[] PAIRS = new char[512];
+    // Value of an ASCII hex digit, -1 for any other character
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            PAIRS[2 * b] = DIGITS[b >>> 4];
+            PAIRS[2 * b + 1] = DIGITS[b & 0x0F];
+        }
+        for (int c = 0; c < VALUES.length; c++) {
+            VALUES[c] = (byte) Character.digit((char) c, 16);
+        }
+    }
+
+    private HexCodec() {
+    }
+
+    /**
+     * @return The number of characters {@code length} bytes encode to.
+     */
+    public static int encodedLength(int length, char separator) {
+        if (length == 0) {
+            return 0;
+        }
+        return separator == NO_SEPARATOR ? 2 * length : 3 * length - 1;
+    }
+
+    /**
+     * Encodes {@code length} bytes as upper case hex into {@code out}, which must have room for
+     * {@link #encodedLength(int, char)} characters.
+     *
+     * @return The number of characters written.
+     */
+    public static int encode(byte[] data, int offset, int length, char[] out, int outOffset, char separator) {
+        int position = outOffset;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            if (separator != NO_SEPARATOR && i != offset) {
+                out[position++] = separator;
+            }
+            int pair = (data[i] & 0xFF) << 1;
+            out[position++] = PAIRS[pair];
+            out[position++] = PAIRS[pair + 1];
+        }
+        return position - outOffset;
+    }
+
+    /**
+     * Appends {@code length} bytes as upper case hex to {@code out}.
+     */
+    public static StringBuilder encode(byte[] data, int offset, int length, StringBuilder out, char separator) {
+        out.ensureCapacity(out.length() + encodedLength(length, separator));
+        for (int i = offset, end = offset + length; i < end; i++) {
+            if (separator != NO_SEPARATOR && i != offset) {
+                out.append(separator);
+            }
+            int pair = (data[i] & 0xFF) << 1;
+            out.append(PAIRS[pair]).append(PAIRS[pair + 1]);
+        }
+        return out;
+    }
+
+    /**
+     * Appends the remaining bytes of {@code data} as upper case hex to {@code out}. The position
+     * of {@code data} is not changed.
+     */
+    public static StringBuilder encode(ByteBuffer data, StringBuilder out, char separator) {
+        int start = data.position();
+        int end = data.limit();
+        out.ensureCapacity(out.length() + encodedLength(end - start, separator));
+        for (int i = start; i < end; i++) {
+            if (separator != NO_SEPARATOR && i != start) {
+                out.append(separator);
+            }
+            int pair = (data.get(i) & 0xFF) << 1;
+            out.append(PAIRS[pair]).append(PAIRS[pair + 1]);
+        }
+        return out;
+    }
+
+    public static String toHex(byte[] data) {
+        return toHex(data, 0, data.length, NO_SEPARATOR);
+    }
+
+    public static String toHex(byte[] data, int offset, int length, char separator) {
+        char[] chars = new char[encodedLength(length, separator)];
+        encode(data, offset, length, chars, 0, separator);
+        return new String(chars);
+    }
+
+    /**
+     * @return The bytes {@code hex} decodes to.
+     * @throws IllegalArgumentException If {@code hex} is not valid in {@code mode}.
+     */
+    public static byte[] decode(CharSequence hex, Mode mode) {
+        byte[] data = new byte[decodedLength(hex, mode)];
+        decode(hex, data, 0, mode);
+        return data;
+    }
+
+    /**
+     * Decodes {@code hex} into {@code out} starting at {@code outOffset}.
+     *
+     * @return The number of bytes written.
+     * @throws IllegalArgumentException If {@code hex} is not valid in {@code mode}.
+     */
+    public static int decode(CharSequence hex, byte[] out, int outOffset, Mode mode) {
+        return decode(hex, out, outOffset, null, mode);
+    }
+
+    /**
+     * Decodes {@code hex} into {@code out} at its position, which is advanced past the bytes
+     * written.
+     *
+     * @return The number of bytes written.
+     * @throws IllegalArgumentException If {@code hex} is not valid in {@code mode}.
+     */
+    public static int decode(CharSequence hex, ByteBuffer out, Mode mode) {
+        if (out.hasArray()) {
+            int written = decode(hex, out.array(), out.arrayOffset() + out.position(), null, mode);
+            out.position(out.position() + written);
+            return written;
+        }
+        return decode(hex, null, 0, out, mode);
+    }
+
+    /**
+     * @return The number of bytes {@code hex} decodes to.
+     * @throws IllegalArgumentException If {@code hex} is not valid in {@code mode}.
+     */
+    public static int decodedLength(CharSequence hex, Mode mode) {
+        int digits = 0;
+        for (int i = start(hex, mode), length = hex.length(); i < length; i++) {
+            char c = hex.charAt(i);
+            if (value(c) >= 0) {
+                digits++;
+            } else if (mode == Mode.STRICT || !isSeparator(c) || (digits & 1) != 0) {
+                throw invalid(hex, i);
+            }
+        }
+        if ((digits & 1) != 0) {
+            throw new IllegalArgumentException("odd number of hex digits in \"" + hex + "\"");
+        }
+        return digits / 2;
+    }
+
+    private static int decode(CharSequence hex, byte[] array, int arrayOffset, ByteBuffer buffer, Mode mode) {
+        int written = 0;
+        int high = -1;
+        for (int i = start(hex, mode), length = hex.length(); i < length; i++) {
+            char c = hex.charAt(i);
+            int value = value(c);
+            if (value < 0) {
+                if (mode == Mode.STRICT || !isSeparator(c) || high >= 0) {
+                    throw invalid(hex, i);
+                }
+                continue;
+            }
+            if (high < 0) {
+                high = value;
+                continue;
+            }
+            byte b = (byte) ((high << 4) | value);
+            if (array != null) {
+                array[arrayOffset + written] = b;
+            } else {
+                buffer.put(b);
+            }
+            written++;
+            high = -1;
+        }
+        if (high >= 0) {
+            throw new IllegalArgumentException("odd number of hex digits in \"" + hex + "\"");
+        }
+        return written;
+    }
+
+    private static int start(CharSequence hex, Mode mode) {
+        if (mode == Mode.LENIENT && hex.length() >= 2 && hex.charAt(0) == '0'
+                && (hex.charAt(1) == 'x' || hex.charAt(1) == 'X')) {
+            return 2;
+        }
+        return 0;
+    }
+
+    private static int value(char c) {
+        return c < VALUES.length ? VALUES[c] : -1;
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == ' ' || c == ':' || c == '-' || c == ',' || c == '.' || c == '\t' || c == '\r' || c == '\n';
+    }
+
+    private static IllegalArgumentException invalid(CharSequence hex, int index) {
+        return new IllegalArgumentException("invalid hex character '" + hex.charAt(index) + "' at " + index + " in \"" + hex + "\"");
+    }
+}
@@ -0,0 +1,292 @@
+package com.ble.demobleapplication;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Adjusts the connection parameters of a {@link GattSession} to its traffic.
+ * <p>
+ * While a bulk transfer runs the tuner asks for {@link BluetoothGatt#CONNECTION_PRIORITY_HIGH}
+ * and, if the adapter supports it, the 2M PHY. A transfer is bulk when something is sent in the
+ * {@link GattCommand.Lane#BULK} lane or when more than the bulk threshold is exchanged without a
+ * pause of the idle timeout. Once the link has been quiet for the idle timeout the idle priority
+ * is requested again. The PHY is left at 2M, which needs less air time for the same data.
+ * <p>
+ * Traffic may be reported from any thread; everything else is confined to the handler passed in.
+ * The PHY and connection parameters the stack reports back are kept for diagnostics. When a bulk
+ * transfer ends, the CPU time spent on logging during it is reported with {@link BleLog}.
+ */
+public class LinkTuner {
+    private static final BleLog LOG = BleLog.LINK;
+
+    public enum Mode {
+        IDLE,
+        BULK
+    }
+
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 2000;
+    public static final int DEFAULT_BULK_THRESHOLD = 2048;
+
+    private final String address;
+    private final Handler handler;
+
+    private BluetoothGatt gatt;
+    private volatile Mode mode = Mode.IDLE;
+    private int idlePriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    private boolean use2MPhy = false;
+    private volatile long idleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+    private volatile int bulkThreshold = DEFAULT_BULK_THRESHOLD;
+
+    // Traffic since the link was last quiet for the idle timeout
+    private volatile long lastTrafficAt = 0;
+    private final AtomicInteger trafficBytes = new AtomicInteger();
+    private final AtomicBoolean bulkPending = new AtomicBoolean(false);
+
+    // Last values reported by the stack, -1 until reported
+    private volatile int txPhy = BluetoothDevice.PHY_LE_1M;
+    private volatile int rxPhy = BluetoothDevice.PHY_LE_1M;
+    private volatile int interval = -1;
+    private volatile int latency = -1;
+    private volatile int supervisionTimeout = -1;
+    private int bulkCount = 0;
+    private long bulkStartedAt = 0;
+    private BleLog.Stats bulkLogStats;
+    private int requestFailures = 0;
+
+    private final Runnable enterBulk = new Runnable() {
+        @Override
+        public void run() {
+            bulkPending.set(false);
+            enterBulk();
+        }
+    };
+
+    private final Runnable idleCheck = new Runnable() {
+        @Override
+        public void run() {
+            long quietMs = SystemClock.elapsedRealtime() - lastTrafficAt;
+            if (quietMs < idleTimeoutMs) {
+                handler.postDelayed(idleCheck, idleTimeoutMs - quietMs);
+            } else {
+                enterIdle();
+            }
+        }
+    };
+
+    public LinkTuner(String address, Handler handler) {
+        this.address = address;
+        this.handler = handler;
+    }
+
+    /**
+     * Sets the priority requested while idle, {@link BluetoothGatt#CONNECTION_PRIORITY_BALANCED}
+     * or {@link BluetoothGatt#CONNECTION_PRIORITY_LOW_POWER}.
+     */
+    public void setIdlePriority(final int priority) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                idlePriority = priority;
+            }
+        });
+    }
+
+    /**
+     * @param use2MPhy True if the adapter supports the LE 2M PHY, so bulk transfers may use it.
+     */
+    public void setUse2MPhy(final boolean use2MPhy) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                LinkTuner.this.use2MPhy = use2MPhy;
+            }
+        });
+    }
+
+    public void setIdleTimeoutMs(long idleTimeoutMs) {
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    public void setBulkThreshold(int bulkThreshold) {
+        this.bulkThreshold = bulkThreshold;
+    }
+
+    /**
+     * Starts tuning a connection once its MTU has been negotiated. The link starts in bulk mode,
+     * because the HDLC and DLMS association and the first reads follow straight away.
+     */
+    public void attach(final BluetoothGatt gatt) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                LinkTuner.this.gatt = gatt;
+                handler.removeCallbacks(idleCheck);
+                mode = Mode.IDLE;
+                trafficBytes.set(0);
+                lastTrafficAt = SystemClock.elapsedRealtime();
+                enterBulk();
+            }
+        });
+    }
+
+    public void detach() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                gatt = null;
+                handler.removeCallbacks(idleCheck);
+                mode = Mode.IDLE;
+                txPhy = BluetoothDevice.PHY_LE_1M;
+                rxPhy = BluetoothDevice.PHY_LE_1M;
+                interval = -1;
+                latency = -1;
+                supervisionTimeout = -1;
+            }
+        });
+    }
+
+    /**
+     * Reports bytes sent or received. Cheap enough to call for every notification: it only posts
+     * to the handler when the link has to switch to bulk mode.
+     *
+     * @param bulk True if the data was sent in the bulk lane.
+     */
+    public void onTraffic(int bytes, boolean bulk) {
+        long now = SystemClock.elapsedRealtime();
+        if (now - lastTrafficAt > idleTimeoutMs) {
+            trafficBytes.set(0);
+        }
+        lastTrafficAt = now;
+        if (mode == Mode.BULK) {
+            return;
+        }
+        if ((bulk || trafficBytes.addAndGet(bytes) >= bulkThreshold) && bulkPending.compareAndSet(false, true)) {
+            handler.post(enterBulk);
+        }
+    }
+
+    private void enterBulk() {
+        if (gatt == null || mode == Mode.BULK) {
+            return;
+        }
+        mode = Mode.BULK;
+        bulkCount++;
+        bulkStartedAt = SystemClock.elapsedRealtime();
+        bulkLogStats = BleLog.getStats();
+        LOG.d("BLE {} bulk transfer, requesting high priority{}", address, use2MPhy ? " and 2M PHY" : "");
+        requestPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+        if (use2MPhy && (txPhy != BluetoothDevice.PHY_LE_2M || rxPhy != BluetoothDevice.PHY_LE_2M)) {
+            gatt.setPreferredPhy(BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+        }
+        handler.postDelayed(idleCheck, idleTimeoutMs);
+    }
+
+    private void enterIdle() {
+        if (gatt == null || mode == Mode.IDLE) {
+            return;
+        }
+        mode = Mode.IDLE;
+        trafficBytes.set(0);
+        // Includes the logging of other sessions and threads during the transfer
+        if (LOG.isLoggable(EventLog.Level.INFO)) {
+            LOG.i("BLE " + address + " bulk transfer of " + (SystemClock.elapsedRealtime() - bulkStartedAt)
+                    + " ms done, logging {}", BleLog.getStats().since(bulkLogStats));
+        }
+        LOG.d("BLE {} idle, requesting priority {}", address, idlePriority);
+        requestPriority(idlePriority);
+    }
+
+    private void requestPriority(int priority) {
+        if (!gatt.requestConnectionPriority(priority)) {
+            requestFailures++;
+            LOG.w("BLE WARNING: connection priority {} refused for {}", priority, address);
+        }
+    }
+
+    /**
+     * Forwards {@code onPhyUpdate}.
+     */
+    public void onPhyUpdate(int txPhy, int rxPhy, int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            this.txPhy = txPhy;
+            this.rxPhy = rxPhy;
+            if (LOG.isLoggable(EventLog.Level.DEBUG)) {
+                LOG.d("BLE " + address + " PHY tx " + txPhy + " rx " + rxPhy);
+            }
+        } else {
+            LOG.w("BLE WARNING: PHY update failed for {}, status {}", address, status);
+        }
+    }
+
+    /**
+     * Forwards the hidden {@code onConnectionUpdated} callback.
+     *
+     * @param interval Connection interval in units of 1.25 ms.
+     * @param timeout  Supervision timeout in units of 10 ms.
+     */
+    public void onConnectionUpdated(int interval, int latency, int timeout, int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            this.interval = interval;
+            this.latency = latency;
+            this.supervisionTimeout = timeout;
+            if (LOG.isLoggable(EventLog.Level.DEBUG)) {
+                LOG.d("BLE " + address + " connection interval " + (interval * 5 / 4) + " ms, latency " + latency
+                        + ", supervision timeout " + (timeout * 10) + " ms");
+            }
+        } else {
+            LOG.w("BLE WARNING: connection update failed for {}, status {}", address, status);
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getTxPhy() {
+        return txPhy;
+    }
+
+    public int getRxPhy() {
+        return rxPhy;
+    }
+
+    /**
+     * @return The connection interval in units of 1.25 ms, or -1 if none has been reported.
+     */
+    public int getInterval() {
+        return interval;
+    }
+
+    public int getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return The supervision timeout in units of 10 ms, or -1 if none has been reported.
+     */
+    public int getSupervisionTimeout() {
+        return supervisionTimeout;
+    }
+
+    /**
+     * @return How often the link has switched to bulk mode.
+     */
+    public int getBulkCount() {
+        return bulkCount;
+    }
+
+    public int getRequestFailures() {
+        return requestFailures;
+    }
+
+    @Override
+    public String toString() {
+        return "LinkTuner{" + address + ", mode=" + mode + ", phy=" + txPhy + "/" + rxPhy + ", interval=" + interval
+                + ", latency=" + latency + ", timeout=" + supervisionTimeout + ", bulk=" + bulkCount + "}";
+    }
+}
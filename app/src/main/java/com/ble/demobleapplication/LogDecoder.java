@@ -0,0 +1,178 @@
+package com.ble.demobleapplication;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Turns {@link EventLog} payloads back into events and text. Used by the log writer for the text
+ * file, by {@link MappedLogFile#read(File)}, and offline through {@link #main(String[])}:
+ * <pre>
+ *     java com.ble.demobleapplication.LogDecoder csa_app_log.ring
+ * </pre>
+ */
+public final class LogDecoder {
+
+    public static final class Event {
+        private final int id;
+        private final long elapsedNanos;
+        private final long deviceKey;
+        private final Object[] arguments;
+
+        Event(int id, long elapsedNanos, long deviceKey, Object[] arguments) {
+            this.id = id;
+            this.elapsedNanos = elapsedNanos;
+            this.deviceKey = deviceKey;
+            this.arguments = arguments;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * @return The event, or null if it was logged by a build that knows more events.
+         */
+        public LogEvent getEvent() {
+            return LogEvent.forId(id);
+        }
+
+        /**
+         * @return The monotonic time the event was logged at, see
+         * {@link android.os.SystemClock#elapsedRealtimeNanos()}.
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * @return The device address, or null.
+         */
+        public String getDevice() {
+            return deviceKey == 0 ? null : address(deviceKey);
+        }
+
+        /**
+         * @return The arguments, each a {@link Long} or a {@link String}.
+         */
+        public Object[] getArguments() {
+            return arguments.clone();
+        }
+
+        @Override
+        public String toString() {
+            return format(this);
+        }
+    }
+
+    private LogDecoder() {
+    }
+
+    /**
+     * @throws IllegalArgumentException If the payload is not a complete event.
+     */
+    public static Event parse(byte[] payload, int offset, int length) {
+        final int end = offset + length;
+        if (length < EventLog.HEADER_SIZE) {
+            throw new IllegalArgumentException("event too short: " + length);
+        }
+        final int id = ((payload[offset] & 0xFF) << 8) | (payload[offset + 1] & 0xFF);
+        final long elapsedNanos = readLong(payload, offset + 2);
+        final long deviceKey = readLong(payload, offset + 10);
+        final Object[] arguments = new Object[payload[offset + 18] & 0xFF];
+        int position = offset + EventLog.HEADER_SIZE;
+        for (int i = 0; i < arguments.length; i++) {
+            if (position >= end) {
+                throw new IllegalArgumentException("event " + id + " missing argument " + i);
+            }
+            final byte type = payload[position++];
+            if (type == EventLog.TYPE_LONG && position + 8 <= end) {
+                arguments[i] = readLong(payload, position);
+                position += 8;
+            } else if (type == EventLog.TYPE_STRING && position + 2 <= end) {
+                final int size = ((payload[position] & 0xFF) << 8) | (payload[position + 1] & 0xFF);
+                position += 2;
+                if (position + size > end) {
+                    throw new IllegalArgumentException("event " + id + " string argument " + i + " cut");
+                }
+                arguments[i] = new String(payload, position, size, StandardCharsets.UTF_8);
+                position += size;
+            } else {
+                throw new IllegalArgumentException("event " + id + " bad argument " + i + " type " + type);
+            }
+        }
+        return new Event(id, elapsedNanos, deviceKey, arguments);
+    }
+
+    /**
+     * Formats a payload as {@code [elapsed seconds] device message}, or describes why it could
+     * not be decoded.
+     */
+    public static String format(byte[] payload, int offset, int length) {
+        try {
+            return format(parse(payload, offset, length));
+        } catch (IllegalArgumentException e) {
+            return "<bad event: " + e.getMessage() + ">";
+        }
+    }
+
+    public static String format(Event event) {
+        final StringBuilder text = new StringBuilder(64);
+        text.append(String.format(Locale.US, "[%.6f] ", event.elapsedNanos / 1e9));
+        if (event.deviceKey != 0) {
+            text.append(address(event.deviceKey)).append(' ');
+        }
+        final LogEvent known = event.getEvent();
+        int next = 0;
+        if (known == null) {
+            text.append("event ").append(event.id);
+        } else {
+            final String template = known.getTemplate();
+            int start = 0;
+            int hole;
+            while ((hole = template.indexOf("{}", start)) >= 0 && next < event.arguments.length) {
+                text.append(template, start, hole).append(event.arguments[next++]);
+                start = hole + 2;
+            }
+            text.append(template, start, template.length());
+        }
+        // Arguments without a place in the template, e.g. from a newer build
+        for (; next < event.arguments.length; next++) {
+            text.append(' ').append(event.arguments[next]);
+        }
+        return text.toString();
+    }
+
+    static String address(long key) {
+        final StringBuilder text = new StringBuilder(17);
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            text.append(HEX[(int) (key >>> (shift + 4)) & 0xF]).append(HEX[(int) (key >>> shift) & 0xF]);
+            if (shift > 0) {
+                text.append(':');
+            }
+        }
+        return text.toString();
+    }
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private static long readLong(byte[] payload, int position) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (payload[position + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Prints every record of the ring files given as arguments, oldest first.
+     */
+    public static void main(String[] args) throws IOException {
+        for (String path : args) {
+            for (MappedLogFile.Entry entry : MappedLogFile.read(new File(path))) {
+                System.out.println(entry);
+            }
+        }
+    }
+}
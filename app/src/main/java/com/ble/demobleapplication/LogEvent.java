@@ -0,0 +1,66 @@
+package com.ble.demobleapplication;
+
+/**
+ * The events {@link EventLog} records. Only the id and the arguments are stored; the template is
+ * applied by {@link LogDecoder} when the log is read, with every {@code {}} replaced by the next
+ * argument.
+ * <p>
+ * Ids are written to log files, so an id is never changed or reused. Add new events at the end.
+ */
+public enum LogEvent {
+    SCAN_STARTED(1, EventLog.Level.INFO, "Start Scan"),
+    SCAN_STOPPED(2, EventLog.Level.INFO, "Stop Scan"),
+    SCAN_TIMEOUT(3, EventLog.Level.INFO, "Scan period expired"),
+    // Logged for every advertisement, so off unless VERBOSE is enabled
+    SCAN_RESULT(4, EventLog.Level.VERBOSE, "onScanResult: rssi {}"),
+    BONDED(10, EventLog.Level.INFO, "BLE SUCCESS: Device Bonded"),
+    BOND_NONE(11, EventLog.Level.INFO, "BLE SUCCESS: Device Bond NONE"),
+    CONNECTING(12, EventLog.Level.INFO, "BLE Trying to create a new connection."),
+    CONNECTED(13, EventLog.Level.INFO, "BLE Connected to GATT server."),
+    DISCOVERY_STARTED(14, EventLog.Level.INFO, "BLE Attempting to start service discovery"),
+    DISCONNECTED(15, EventLog.Level.INFO, "BLE Disconnected from GATT server, status {}"),
+    MTU_CHANGED(16, EventLog.Level.DEBUG, "BLE Negotiated MTU {}, status {}"),
+    NOTIFICATION(17, EventLog.Level.VERBOSE, "BLE Received {} bytes");
+
+    private final int id;
+    private final EventLog.Level level;
+    private final String template;
+
+    LogEvent(int id, EventLog.Level level, String template) {
+        this.id = id;
+        this.level = level;
+        this.template = template;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public EventLog.Level getLevel() {
+        return level;
+    }
+
+    public String getTemplate() {
+        return template;
+    }
+
+    private static final LogEvent[] BY_ID;
+
+    static {
+        int max = 0;
+        for (LogEvent event : values()) {
+            max = Math.max(max, event.id);
+        }
+        BY_ID = new LogEvent[max + 1];
+        for (LogEvent event : values()) {
+            BY_ID[event.id] = event;
+        }
+    }
+
+    /**
+     * @return The event with {@code id}, or null if this build does not know it.
+     */
+    public static LogEvent forId(int id) {
+        return id >= 0 && id < BY_ID.length ? BY_ID[id] : null;
+    }
+}
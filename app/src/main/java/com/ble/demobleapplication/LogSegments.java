@@ -0,0 +1,291 @@
+package com.ble.demobleapplication;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The closed segments of the text log: numbered files next to the active one, compressed with
+ * gzip in the background and deleted once they are too old or the segments take too much space.
+ * <p>
+ * An index file lists every segment as {@code number first last bytes file}, with the times of
+ * its first and last record in milliseconds since the epoch, so the logs of one session can be
+ * found with {@link #find(long, long)} without decompressing anything. The index is replaced
+ * atomically whenever a segment is added, compressed or deleted. Thread safe.
+ */
+public class LogSegments {
+    private final static String TAG = LogSegments.class.getSimpleName();
+
+    public static final long DEFAULT_MAX_TOTAL_BYTES = 20 * 1024 * 1024;
+    public static final long DEFAULT_MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+
+    private static final String INDEX_SUFFIX = ".index";
+    private static final String GZIP_SUFFIX = ".gz";
+
+    public static final class Segment {
+        private final int number;
+        private final long firstMillis;
+        private final long lastMillis;
+        private long bytes;
+        private String fileName;
+
+        Segment(int number, long firstMillis, long lastMillis, long bytes, String fileName) {
+            this.number = number;
+            this.firstMillis = firstMillis;
+            this.lastMillis = lastMillis;
+            this.bytes = bytes;
+            this.fileName = fileName;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public long getFirstMillis() {
+            return firstMillis;
+        }
+
+        public long getLastMillis() {
+            return lastMillis;
+        }
+
+        public boolean isCompressed() {
+            return fileName.endsWith(GZIP_SUFFIX);
+        }
+    }
+
+    private static HandlerThread compressorThread;
+    private static Handler compressor;
+
+    private final File dir;
+    private final String baseName;
+    private final File indexFile;
+    private final Pattern segmentName;
+    // Oldest first
+    private final List<Segment> segments = new ArrayList<>();
+    private int nextNumber = 1;
+    private long maxTotalBytes = DEFAULT_MAX_TOTAL_BYTES;
+    private long maxAgeMs = DEFAULT_MAX_AGE_MS;
+
+    /**
+     * Loads the index of the segments called {@code baseName.N.txt[.gz]} in {@code dir}, and
+     * queues any segment left uncompressed by an earlier run.
+     */
+    public LogSegments(File dir, String baseName) {
+        this.dir = dir;
+        this.baseName = baseName;
+        this.indexFile = new File(dir, baseName + INDEX_SUFFIX);
+        this.segmentName = Pattern.compile(Pattern.quote(baseName) + "\\.(\\d+)\\.txt(\\.gz)?");
+        load();
+    }
+
+    /**
+     * Sets the limits closed segments are kept within. The newest segment is kept even if it
+     * alone exceeds {@code maxTotalBytes}.
+     */
+    public synchronized void setRetention(long maxTotalBytes, long maxAgeMs) {
+        this.maxTotalBytes = maxTotalBytes;
+        this.maxAgeMs = maxAgeMs;
+        if (applyRetention()) {
+            writeIndex();
+        }
+    }
+
+    /**
+     * Turns {@code active} into the next numbered segment and queues it for compression. The
+     * caller has closed it and opens a new active file afterwards.
+     *
+     * @return False if the file could not be renamed, in which case it stays the active file.
+     */
+    public synchronized boolean close(File active, long firstMillis, long lastMillis) {
+        final int number = nextNumber;
+        final File target = new File(dir, baseName + "." + number + ".txt");
+        if (!active.renameTo(target)) {
+            Log.e(TAG, "Failed to rename " + active.getPath() + " to " + target.getName());
+            return false;
+        }
+        nextNumber++;
+        final Segment segment = new Segment(number, firstMillis, lastMillis, target.length(), target.getName());
+        segments.add(segment);
+        applyRetention();
+        writeIndex();
+        compressLater(segment);
+        return true;
+    }
+
+    /**
+     * @return The segment files holding records between {@code fromMillis} and {@code toMillis},
+     * oldest first. Records after the last segment are in the active file.
+     */
+    public synchronized List<File> find(long fromMillis, long toMillis) {
+        final List<File> files = new ArrayList<>();
+        for (Segment segment : segments) {
+            if (segment.lastMillis >= fromMillis && segment.firstMillis <= toMillis) {
+                files.add(new File(dir, segment.fileName));
+            }
+        }
+        return files;
+    }
+
+    public synchronized List<Segment> getSegments() {
+        return new ArrayList<>(segments);
+    }
+
+    public synchronized long getTotalBytes() {
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.bytes;
+        }
+        return total;
+    }
+
+    private void compressLater(final Segment segment) {
+        synchronized (LogSegments.class) {
+            if (compressor == null) {
+                compressorThread = new HandlerThread("LogCompressor", Process.THREAD_PRIORITY_BACKGROUND);
+                compressorThread.start();
+                compressor = new Handler(compressorThread.getLooper());
+            }
+        }
+        compressor.post(new Runnable() {
+            @Override
+            public void run() {
+                compress(segment);
+            }
+        });
+    }
+
+    // Runs on the compressor thread, without holding the lock while the file is compressed
+    private void compress(Segment segment) {
+        final File source;
+        synchronized (this) {
+            if (!segments.contains(segment) || segment.isCompressed()) {
+                return;
+            }
+            source = new File(dir, segment.fileName);
+        }
+        final File target = new File(dir, segment.fileName + GZIP_SUFFIX);
+        final File partial = new File(dir, target.getName() + ".tmp");
+        try (InputStream in = new FileInputStream(source);
+             OutputStream out = new GZIPOutputStream(new FileOutputStream(partial), 64 * 1024)) {
+            final byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to compress " + source.getName() + ": " + e.getMessage());
+            partial.delete();
+            return;
+        }
+        synchronized (this) {
+            if (!segments.contains(segment) || !partial.renameTo(target)) {
+                // Deleted by the retention policy in the meantime, or the rename failed
+                partial.delete();
+                return;
+            }
+            source.delete();
+            segment.fileName = target.getName();
+            segment.bytes = target.length();
+            writeIndex();
+        }
+    }
+
+    /**
+     * @return True if a segment was deleted.
+     */
+    private boolean applyRetention() {
+        final long now = System.currentTimeMillis();
+        long total = getTotalBytes();
+        boolean deleted = false;
+        final Iterator<Segment> iterator = segments.iterator();
+        while (iterator.hasNext() && segments.size() > 1) {
+            final Segment oldest = iterator.next();
+            if (total <= maxTotalBytes && now - oldest.lastMillis <= maxAgeMs) {
+                break;
+            }
+            if (!new File(dir, oldest.fileName).delete()) {
+                Log.w(TAG, "Failed to delete log segment " + oldest.fileName);
+            }
+            total -= oldest.bytes;
+            iterator.remove();
+            deleted = true;
+        }
+        return deleted;
+    }
+
+    private void load() {
+        if (indexFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(indexFile))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final String[] fields = line.split(" ");
+                    if (fields.length != 5 || line.startsWith("#")) {
+                        continue;
+                    }
+                    try {
+                        final Segment segment = new Segment(Integer.parseInt(fields[0]), Long.parseLong(fields[1]),
+                                Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields[4]);
+                        if (new File(dir, segment.fileName).exists()) {
+                            segments.add(segment);
+                        }
+                    } catch (NumberFormatException e) {
+                        Log.w(TAG, "Skipping bad index line " + line);
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to read log index: " + e.getMessage());
+            }
+        }
+        // Numbers of segments missing from the index are not reused
+        final String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                final Matcher matcher = segmentName.matcher(name);
+                if (matcher.matches()) {
+                    nextNumber = Math.max(nextNumber, Integer.parseInt(matcher.group(1)) + 1);
+                }
+            }
+        }
+        for (Segment segment : segments) {
+            if (!segment.isCompressed()) {
+                compressLater(segment);
+            }
+        }
+    }
+
+    private void writeIndex() {
+        final File partial = new File(dir, indexFile.getName() + ".tmp");
+        try (Writer writer = new FileWriter(partial)) {
+            writer.write("# number first last bytes file\n");
+            for (Segment segment : segments) {
+                writer.write(segment.number + " " + segment.firstMillis + " " + segment.lastMillis + " "
+                        + segment.bytes + " " + segment.fileName + "\n");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write log index: " + e.getMessage());
+            return;
+        }
+        if (!partial.renameTo(indexFile)) {
+            Log.e(TAG, "Failed to replace log index");
+        }
+    }
+}
@@ -91,13 +91,16 @@ public class MainActivity extends AppCompatActivity implements ItemClickListener
 
     private static UUID SERVICE_UUID = UUID.fromString("ED310001-C889-5D66-AE38-A7A01230635A");
 
+    // A busy environment reports hundreds of advertisements a second
+    private static final BleLog SCAN_LOG = BleLog.SCAN.sampled(5);
+
     private ScanCallback leScanCallback =
             new ScanCallback() {
                 @Override
                 public void onScanResult(int callbackType, ScanResult result) {
                     super.onScanResult(callbackType, result);
-                    Log.d("TAGG", "onScanResult: " + result);
-                    FileLogger.logToFile(getApplicationContext(), "onScanResult: " + result.getDevice().getAddress());
+                    SCAN_LOG.d("onScanResult: {}", result);
+                    EventLog.log(LogEvent.SCAN_RESULT, result.getDevice().getAddress(), result.getRssi());
                     boolean isContain = false;
                     for (ScanResult scan : mList) {
                         // code to be executed for each element
@@ -182,7 +185,6 @@ public class MainActivity extends AppCompatActivity implements ItemClickListener
 
                 } else {
                     Log.d("TAGG", "onClick: stop");
-                    FileLogger.logToFile(getApplicationContext(), "stop scanning");
                     scanProgress.setVisibility(View.INVISIBLE);
                     startScanningButton.setText(getString(R.string.start));
                     stopScanDevice();
@@ -267,9 +269,12 @@ public class MainActivity extends AppCompatActivity implements ItemClickListener
                 @Override
                 public void run() {
                     Log.e("TAGG", "scan stop");
-                    isScanning = false;
+                    // Only a scan still running at the end of the period timed out; one the
+                    // user stopped has logged SCAN_STOPPED already
+                    if (isScanning) {
+                        stopScanDevice(LogEvent.SCAN_TIMEOUT);
+                    }
                     //onScanStop(true);
-                    stopScanDevice();
                     //bluetoothLeScanner.stopScan(leScanCallback);
                     scanProgress.setVisibility(View.INVISIBLE);
                     startScanningButton.setText(getString(R.string.start));
@@ -298,7 +303,7 @@ public class MainActivity extends AppCompatActivity implements ItemClickListener
             ScanSettings settings = new ScanSettings.Builder()
                     .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
                     .build();
-            FileLogger.logToFile(getApplicationContext(), "Start Scan");
+            EventLog.log(LogEvent.SCAN_STARTED);
 
             bluetoothLeScanner.startScan(filters, settings, leScanCallback);
             //bluetoothLeScanner.startScan(leScanCallback);
@@ -308,11 +313,19 @@ public class MainActivity extends AppCompatActivity implements ItemClickListener
     }
 
     private void stopScanDevice() {
+        stopScanDevice(LogEvent.SCAN_STOPPED);
+    }
+
+    /**
+     * @param reason {@link LogEvent#SCAN_TIMEOUT} when the scan period ran out, otherwise
+     *               {@link LogEvent#SCAN_STOPPED}.
+     */
+    private void stopScanDevice(LogEvent reason) {
 
         isScanning = false;
         //onScanStop(true);
         bluetoothLeScanner.stopScan(leScanCallback);
-        FileLogger.logToFile(getApplicationContext(), "Stop Scan");
+        EventLog.log(reason);
     }
 
     private boolean hasPermissions() {
@@ -0,0 +1,315 @@
+package com.ble.demobleapplication;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Fixed-size log file used as a circular buffer through a memory mapping, so appending a record
+ * is a copy into the page cache and the file never grows.
+ * <p>
+ * The file starts with a header of magic, version, data size, write offset and next sequence
+ * number, followed by the data area. Every record is framed as magic, payload length, sequence,
+ * time, payload and a CRC-32 over length to payload. The magic is stored last and the header is
+ * updated after the record, so a record torn by a crash fails its check and is skipped by
+ * {@link #read(File)}; on reopen the writer resumes after the last complete record. A record
+ * that does not fit before the end of the data area is written at its start, overwriting the
+ * oldest records.
+ * <p>
+ * Records hold either UTF-8 text or an {@link EventLog} payload, told apart by their magic;
+ * {@link #read(File)} formats the latter with {@link LogDecoder}.
+ * <p>
+ * Not thread safe; {@link FileLogger} only uses it from its writer thread.
+ */
+public class MappedLogFile implements Closeable {
+
+    private static final int FILE_MAGIC = 0x43534152;
+    private static final int VERSION = 1;
+    private static final int RECORD_MAGIC = 0x52454331;
+    private static final int EVENT_MAGIC = 0x45564E31;
+    private static final int PAD_MAGIC = 0x50414431;
+
+    static final int HEADER_SIZE = 32;
+    // Header fields
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_DATA_SIZE = 8;
+    private static final int OFFSET_WRITE = 16;
+    private static final int OFFSET_SEQUENCE = 24;
+
+    // Magic, length, sequence and time before the payload, CRC after it
+    private static final int RECORD_HEADER = 24;
+    static final int RECORD_OVERHEAD = RECORD_HEADER + 4;
+
+    public static final class Entry {
+        private final long sequence;
+        private final long timeMillis;
+        private final String message;
+        private final boolean event;
+
+        Entry(long sequence, long timeMillis, String message, boolean event) {
+            this.sequence = sequence;
+            this.timeMillis = timeMillis;
+            this.message = message;
+            this.event = event;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * @return True if the record was a structured event, formatted when it was read.
+         */
+        public boolean isEvent() {
+            return event;
+        }
+
+        @Override
+        public String toString() {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss:SSS", Locale.getDefault());
+            return "[" + format.format(new Date(timeMillis)) + "] " + message;
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer map;
+    private final int dataSize;
+    // Reused for the checksum of every appended record
+    private final CRC32 crc = new CRC32();
+    private final ByteBuffer view;
+    private int writeOffset;
+    private long nextSequence;
+
+    /**
+     * Opens {@code path}, creating it or, if it has a different size or format, starting it
+     * over with {@code size} bytes.
+     */
+    public MappedLogFile(File path, int size) throws IOException {
+        if (size < HEADER_SIZE + RECORD_OVERHEAD + 1) {
+            throw new IllegalArgumentException("size too small: " + size);
+        }
+        file = new RandomAccessFile(path, "rw");
+        try {
+            if (file.length() != size) {
+                file.setLength(size);
+            }
+            map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        view = map.duplicate();
+        dataSize = size - HEADER_SIZE;
+        if (map.getInt(0) == FILE_MAGIC && map.getInt(OFFSET_VERSION) == VERSION
+                && map.getInt(OFFSET_DATA_SIZE) == dataSize) {
+            writeOffset = (int) map.getLong(OFFSET_WRITE);
+            nextSequence = map.getLong(OFFSET_SEQUENCE);
+            if (writeOffset < 0 || writeOffset >= dataSize) {
+                format();
+            } else {
+                recover();
+            }
+        } else {
+            format();
+        }
+    }
+
+    /**
+     * @return The largest payload a record can hold; longer ones are cut.
+     */
+    public int getMaxPayload() {
+        return dataSize - RECORD_OVERHEAD;
+    }
+
+    public long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * Appends a text record, overwriting the oldest ones if the data area is full.
+     */
+    public void append(long timeMillis, byte[] payload, int offset, int length) {
+        append(RECORD_MAGIC, timeMillis, payload, offset, length);
+    }
+
+    /**
+     * Appends an {@link EventLog} payload as it is, overwriting the oldest records if the data
+     * area is full.
+     */
+    public void appendEvent(long timeMillis, byte[] payload) {
+        if (payload.length > getMaxPayload()) {
+            // A cut event could not be decoded
+            return;
+        }
+        append(EVENT_MAGIC, timeMillis, payload, 0, payload.length);
+    }
+
+    private void append(int magic, long timeMillis, byte[] payload, int offset, int length) {
+        length = Math.min(length, getMaxPayload());
+        final int needed = RECORD_OVERHEAD + length;
+        if (writeOffset + needed > dataSize) {
+            if (dataSize - writeOffset >= 4) {
+                map.putInt(HEADER_SIZE + writeOffset, PAD_MAGIC);
+            }
+            writeOffset = 0;
+        }
+        final int position = HEADER_SIZE + writeOffset;
+        // Invalidate whatever was here before the frame is filled in
+        map.putInt(position, 0);
+        map.putInt(position + 4, length);
+        map.putLong(position + 8, nextSequence);
+        map.putLong(position + 16, timeMillis);
+        map.position(position + RECORD_HEADER);
+        map.put(payload, offset, length);
+        crc.reset();
+        view.clear();
+        view.limit(position + RECORD_HEADER + length);
+        view.position(position + 4);
+        crc.update(view);
+        map.putInt(position + RECORD_HEADER + length, (int) crc.getValue());
+        map.putInt(position, magic);
+
+        writeOffset += needed;
+        nextSequence++;
+        map.putLong(OFFSET_WRITE, writeOffset);
+        map.putLong(OFFSET_SEQUENCE, nextSequence);
+    }
+
+    /**
+     * Writes the mapped pages to storage, so the records also survive a power loss.
+     */
+    public void force() {
+        map.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        map.force();
+        file.close();
+    }
+
+    private void format() {
+        final int size = HEADER_SIZE + dataSize;
+        int i = 0;
+        for (; i + 8 <= size; i += 8) {
+            map.putLong(i, 0);
+        }
+        for (; i < size; i++) {
+            map.put(i, (byte) 0);
+        }
+        writeOffset = 0;
+        nextSequence = 0;
+        map.putInt(OFFSET_VERSION, VERSION);
+        map.putInt(OFFSET_DATA_SIZE, dataSize);
+        map.putLong(OFFSET_WRITE, writeOffset);
+        map.putLong(OFFSET_SEQUENCE, nextSequence);
+        map.putInt(0, FILE_MAGIC);
+    }
+
+    // The header is written after every record, so it can only lag behind if the device lost
+    // power before the page was written back; skip records that made it to storage anyway
+    private void recover() {
+        while (true) {
+            int length = frameLength(map, dataSize, writeOffset);
+            if (length < 0 || map.getLong(HEADER_SIZE + writeOffset + 8) != nextSequence) {
+                length = frameLength(map, dataSize, 0);
+                if (writeOffset == 0 || length < 0 || map.getLong(HEADER_SIZE + 8) != nextSequence) {
+                    return;
+                }
+                writeOffset = 0;
+            }
+            writeOffset += RECORD_OVERHEAD + length;
+            nextSequence++;
+        }
+    }
+
+    /**
+     * Reads every intact record of a log file, oldest first.
+     */
+    public static List<Entry> read(File path) throws IOException {
+        final List<Entry> entries = new ArrayList<>();
+        try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+            final ByteBuffer map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            if (map.capacity() < HEADER_SIZE || map.getInt(0) != FILE_MAGIC || map.getInt(OFFSET_VERSION) != VERSION) {
+                throw new IOException("not a log ring: " + path);
+            }
+            final int dataSize = Math.min(map.getInt(OFFSET_DATA_SIZE), map.capacity() - HEADER_SIZE);
+            // Records are not aligned and the one under the write offset may be half
+            // overwritten, so look for frames at every offset and trust only intact ones
+            int offset = 0;
+            while (offset <= dataSize - RECORD_OVERHEAD) {
+                final int length = frameLength(map, dataSize, offset);
+                if (length < 0) {
+                    offset++;
+                    continue;
+                }
+                final int position = HEADER_SIZE + offset;
+                final byte[] payload = new byte[length];
+                final ByteBuffer view = map.duplicate();
+                view.position(position + RECORD_HEADER);
+                view.get(payload);
+                final boolean event = map.getInt(position) == EVENT_MAGIC;
+                entries.add(new Entry(map.getLong(position + 8), map.getLong(position + 16),
+                        event ? LogDecoder.format(payload, 0, length) : new String(payload, StandardCharsets.UTF_8),
+                        event));
+                offset += RECORD_OVERHEAD + length;
+            }
+        }
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Long.compare(a.sequence, b.sequence);
+            }
+        });
+        return entries;
+    }
+
+    /**
+     * @return The payload length of the intact record at {@code offset} in the data area, or -1.
+     */
+    private static int frameLength(ByteBuffer map, int dataSize, int offset) {
+        if (offset < 0 || offset > dataSize - RECORD_OVERHEAD) {
+            return -1;
+        }
+        final int position = HEADER_SIZE + offset;
+        final int magic = map.getInt(position);
+        if (magic != RECORD_MAGIC && magic != EVENT_MAGIC) {
+            return -1;
+        }
+        final int length = map.getInt(position + 4);
+        if (length < 0 || length > dataSize - offset - RECORD_OVERHEAD) {
+            return -1;
+        }
+        return map.getInt(position + RECORD_HEADER + length) == checksum(map, position, length) ? length : -1;
+    }
+
+    private static int checksum(ByteBuffer map, int position, int length) {
+        final CRC32 crc = new CRC32();
+        final ByteBuffer view = map.duplicate();
+        view.limit(position + RECORD_HEADER + length);
+        view.position(position + 4);
+        crc.update(view);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,55 @@
+package com.ble.demobleapplication;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Adapts application frames to the negotiated ATT MTU of one connection.
+ * <p>
+ * Outgoing payloads are split into chunks of at most ATT_MTU - 3 bytes. Incoming notifications
+ * are reassembled into frames by the session's {@link HdlcDecoder}.
+ */
+public class MtuTransport {
+    private final static String TAG = MtuTransport.class.getSimpleName();
+
+    // ATT header taken from every write/notification: opcode + attribute handle
+    public static final int ATT_HEADER_SIZE = 3;
+
+    private int mtu = GattSession.DEFAULT_MTU;
+
+    public synchronized int getMtu() {
+        return mtu;
+    }
+
+    public synchronized void setMtu(int mtu) {
+        this.mtu = Math.max(GattSession.DEFAULT_MTU, mtu);
+    }
+
+    /**
+     * @return The largest payload that fits in one write or notification.
+     */
+    public synchronized int getMaxPayload() {
+        return mtu - ATT_HEADER_SIZE;
+    }
+
+    /**
+     * Splits a payload into MTU sized chunks. Every chunk is a new array, so callers may reuse
+     * {@code data} afterwards.
+     */
+    public List<byte[]> fragment(byte[] data) {
+        final int chunkSize = getMaxPayload();
+        List<byte[]> chunks = new ArrayList<>((data.length + chunkSize - 1) / chunkSize);
+        for (int offset = 0; offset < data.length; offset += chunkSize) {
+            chunks.add(Arrays.copyOfRange(data, offset, Math.min(data.length, offset + chunkSize)));
+        }
+        return chunks;
+    }
+
+    /**
+     * Resets the MTU to the default, e.g. after a disconnect.
+     */
+    public synchronized void reset() {
+        mtu = GattSession.DEFAULT_MTU;
+    }
+}
@@ -0,0 +1,305 @@
+package com.ble.demobleapplication;
+
+import static android.bluetooth.BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothStatusCodes;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Keeps several write-without-response packets in flight on a characteristic instead of
+ * waiting for {@code onCharacteristicWrite} after every packet.
+ * <p>
+ * Flow control is credit based: the writer may have at most {@code window} writes handed to
+ * the stack that have not yet been confirmed. A write that the stack rejects as busy leaves
+ * the packet at the head of the queue and halves the window; every full window of confirmed
+ * writes grows it by one again. Non-bulk payloads are always sent ahead of queued bulk
+ * payloads. All state is confined to the handler passed in.
+ * <p>
+ * A write with response to the same characteristic reports through the same callback, so it
+ * is only started while the writer is paused, see {@link #pause(Runnable)}.
+ */
+public class PipelinedWriter {
+    private final static String TAG = PipelinedWriter.class.getSimpleName();
+
+    public static final int DEFAULT_WINDOW = 4;
+    public static final int MAX_WINDOW = 16;
+
+    // Delay before retrying when the stack is busy and nothing of ours is in flight
+    private static final long BUSY_RETRY_DELAY_MS = 5;
+
+    public interface Listener {
+        /**
+         * Called once the queue has drained and every write has been confirmed.
+         *
+         * @param bytes       Payload bytes written since the queue was last idle.
+         * @param bytesPerSec Achieved throughput over the same burst.
+         */
+        void onDrained(long bytes, long bytesPerSec);
+
+        /**
+         * Called when the stack refuses a write for a reason other than being busy. The
+         * packet is dropped.
+         */
+        void onWriteFailed(byte[] payload, int status);
+    }
+
+    private final Handler handler;
+    private final Queue<byte[]> pending = new ArrayDeque<>();
+    private final Queue<byte[]> pendingBulk = new ArrayDeque<>();
+    private final Queue<byte[]> inFlight = new ArrayDeque<>();
+
+    private BluetoothGatt gatt;
+    private BluetoothGattCharacteristic characteristic;
+    private Listener listener;
+
+    private int maxWindow = DEFAULT_WINDOW;
+    private int window = DEFAULT_WINDOW;
+    private int confirmedInWindow = 0;
+
+    private long burstStartNanos = 0;
+    private long burstBytes = 0;
+    private long lastBytesPerSec = 0;
+
+    private boolean retryScheduled = false;
+
+    // Run once nothing is in flight, and set from then until resume()
+    private Runnable whenPaused;
+    private volatile boolean paused = false;
+
+    private final Runnable pumpRunnable = new Runnable() {
+        @Override
+        public void run() {
+            retryScheduled = false;
+            pump();
+        }
+    };
+
+    public PipelinedWriter(Handler handler) {
+        this.handler = handler;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the maximum number of writes kept in flight. Values are clamped to
+     * 1..{@link #MAX_WINDOW}.
+     */
+    public void setWindow(final int size) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                maxWindow = Math.max(1, Math.min(MAX_WINDOW, size));
+                window = maxWindow;
+            }
+        });
+    }
+
+    /**
+     * Binds the writer to a connection. Anything queued for the previous connection is dropped.
+     */
+    public void attach(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                PipelinedWriter.this.gatt = gatt;
+                PipelinedWriter.this.characteristic = characteristic;
+                reset();
+            }
+        });
+    }
+
+    public void detach() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                gatt = null;
+                characteristic = null;
+                reset();
+            }
+        });
+    }
+
+    /**
+     * Queues a payload for writing. The writer keeps a reference to the array, so the caller
+     * must not modify it afterwards.
+     */
+    public void enqueue(byte[] payload) {
+        enqueue(payload, false);
+    }
+
+    /**
+     * Queues a payload for writing. Bulk payloads are only sent when no other payload is
+     * waiting. The writer keeps a reference to the array, so the caller must not modify it
+     * afterwards.
+     */
+    public void enqueue(final byte[] payload, final boolean bulk) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isIdle()) {
+                    burstStartNanos = SystemClock.elapsedRealtimeNanos();
+                    burstBytes = 0;
+                }
+                (bulk ? pendingBulk : pending).add(payload);
+                pump();
+            }
+        });
+    }
+
+    /**
+     * Stops sending and runs {@code action} on the handler once every write in flight has been
+     * confirmed, so that a write with response can use the characteristic on its own. Must be
+     * called on the handler. Queued payloads are sent again after {@link #resume()}.
+     */
+    void pause(Runnable action) {
+        whenPaused = action;
+        runIfPaused();
+    }
+
+    public void resume() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                whenPaused = null;
+                paused = false;
+                pump();
+            }
+        });
+    }
+
+    /**
+     * @return True while paused for a write with response, when write callbacks for the
+     * characteristic are not for this writer.
+     */
+    public boolean isPaused() {
+        return paused;
+    }
+
+    private void runIfPaused() {
+        if (whenPaused != null && inFlight.isEmpty()) {
+            final Runnable action = whenPaused;
+            whenPaused = null;
+            paused = true;
+            action.run();
+        }
+    }
+
+    private boolean isIdle() {
+        return pending.isEmpty() && pendingBulk.isEmpty() && inFlight.isEmpty();
+    }
+
+    private Queue<byte[]> nextQueue() {
+        return pending.isEmpty() ? pendingBulk : pending;
+    }
+
+    /**
+     * Forwards {@code onCharacteristicWrite} for writes issued by this writer.
+     */
+    public void onWriteCompleted(final int status) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                byte[] done = inFlight.poll();
+                if (done == null) {
+                    return;
+                }
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    burstBytes += done.length;
+                    if (++confirmedInWindow >= window) {
+                        confirmedInWindow = 0;
+                        if (window < maxWindow) window++;
+                    }
+                } else {
+                    Log.e(TAG, "BLE ERROR: pipelined write failed, status " + status);
+                    if (listener != null) listener.onWriteFailed(done, status);
+                }
+                runIfPaused();
+                pump();
+            }
+        });
+    }
+
+    /**
+     * @return Throughput of the last completed burst in bytes per second.
+     */
+    public long getLastBytesPerSec() {
+        return lastBytesPerSec;
+    }
+
+    private void pump() {
+        if (gatt == null || characteristic == null || paused || whenPaused != null) {
+            return;
+        }
+
+        Queue<byte[]> queue;
+        while (!(queue = nextQueue()).isEmpty() && inFlight.size() < window) {
+            byte[] payload = queue.peek();
+            int status = writeCharacteristic(gatt, characteristic, payload, WRITE_TYPE_NO_RESPONSE);
+            if (status == BluetoothStatusCodes.SUCCESS) {
+                inFlight.add(queue.poll());
+            } else if (status == BluetoothStatusCodes.ERROR_GATT_WRITE_REQUEST_BUSY) {
+                // Stack queue is full: back off and let a completion hand the credit back
+                window = Math.max(1, window / 2);
+                confirmedInWindow = 0;
+                if (inFlight.isEmpty() && !retryScheduled) {
+                    retryScheduled = true;
+                    handler.postDelayed(pumpRunnable, BUSY_RETRY_DELAY_MS);
+                }
+                return;
+            } else {
+                queue.poll();
+                Log.e(TAG, "BLE ERROR: pipelined write rejected, status " + status);
+                if (listener != null) listener.onWriteFailed(payload, status);
+            }
+        }
+
+        if (isIdle() && burstBytes > 0) {
+            long elapsedNanos = Math.max(1, SystemClock.elapsedRealtimeNanos() - burstStartNanos);
+            lastBytesPerSec = burstBytes * 1_000_000_000L / elapsedNanos;
+            Log.d(TAG, "BLE INFO: pipelined burst " + burstBytes + " bytes at " + lastBytesPerSec + " B/s");
+            if (listener != null) listener.onDrained(burstBytes, lastBytesPerSec);
+            burstBytes = 0;
+        }
+    }
+
+    private void reset() {
+        handler.removeCallbacks(pumpRunnable);
+        retryScheduled = false;
+        whenPaused = null;
+        paused = false;
+        pending.clear();
+        pendingBulk.clear();
+        inFlight.clear();
+        window = maxWindow;
+        confirmedInWindow = 0;
+        burstBytes = 0;
+    }
+
+    /**
+     * Writes {@code value} without touching the characteristic's shared value on Android 13+,
+     * and falls back to {@code setValue()} on older releases. Returns a
+     * {@link BluetoothStatusCodes} value; on older releases a refused write is reported as busy
+     * because that is the only reason the old API gives for returning false on a live link.
+     */
+    @SuppressWarnings("deprecation")
+    static int writeCharacteristic(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, byte[] value, int writeType) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            return gatt.writeCharacteristic(characteristic, value, writeType);
+        }
+        characteristic.setWriteType(writeType);
+        characteristic.setValue(value);
+        return gatt.writeCharacteristic(characteristic)
+                ? BluetoothStatusCodes.SUCCESS
+                : BluetoothStatusCodes.ERROR_GATT_WRITE_REQUEST_BUSY;
+    }
+}
@@ -0,0 +1,28 @@
+package com.ble.demobleapplication;
+
+/**
+ * Decides whether and when a failed {@link GattCommand} is run again. Set on a session with
+ * {@link GattSession#setRetryPolicy(RetryPolicy)}.
+ */
+public interface RetryPolicy {
+
+    // Passed as the status when a command failed without a GATT status, e.g. on a timeout
+    int STATUS_UNKNOWN = -1;
+
+    /**
+     * @return The number of attempts, including the first one, after which a command fails.
+     */
+    int getMaxAttempts();
+
+    /**
+     * @return False if the status means the command cannot succeed however often it is repeated.
+     */
+    boolean isRetryable(int status);
+
+    /**
+     * @param attempt         The attempt that just failed, starting at 1.
+     * @param previousDelayMs The delay before that attempt, 0 for the first one.
+     * @return How long to wait before the next attempt.
+     */
+    long getDelayMs(int attempt, long previousDelayMs);
+}
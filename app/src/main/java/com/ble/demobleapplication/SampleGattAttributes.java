@@ -150,12 +150,6 @@ public class SampleGattAttributes {
     }
 
     public static byte[] hexStringToByteArray(String s) {
-        int len = s.length();
-        byte[] data = new byte[len / 2];
-        for (int i = 0; i < len; i += 2) {
-            data[i / 2] = (byte) ((Character.digit(s.charAt(i), 16) << 4)
-                    + Character.digit(s.charAt(i + 1), 16));
-        }
-        return data;
+        return HexCodec.decode(s, HexCodec.Mode.STRICT);
     }
 }
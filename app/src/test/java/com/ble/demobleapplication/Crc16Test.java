@@ -0,0 +1,124 @@
+package com.ble.demobleapplication;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link Crc16} against the CRC-16/X.25 check value and a bit-at-a-time reference.
+ */
+public class Crc16Test {
+
+    private static final byte[] CHECK_INPUT = "123456789".getBytes(StandardCharsets.US_ASCII);
+    private static final int CHECK_VALUE = 0x906E;
+
+    // Straight from the definition: reflected polynomial 0x8408, init 0xFFFF, final XOR 0xFFFF
+    private static int reference(byte[] data, int offset, int length) {
+        int crc = 0xFFFF;
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= data[i] & 0xFF;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x8408 : crc >>> 1;
+            }
+        }
+        return ~crc & 0xFFFF;
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void checkValue() {
+        assertEquals(CHECK_VALUE, reference(CHECK_INPUT, 0, CHECK_INPUT.length));
+        assertEquals(CHECK_VALUE, Crc16.fcs(CHECK_INPUT, 0, CHECK_INPUT.length));
+        assertEquals(CHECK_VALUE, Crc16.fcsBytewise(CHECK_INPUT, 0, CHECK_INPUT.length));
+        assertEquals(CHECK_VALUE, Crc16.fcs(ByteBuffer.wrap(CHECK_INPUT)));
+        Crc16 crc = new Crc16();
+        crc.update(CHECK_INPUT);
+        assertEquals(CHECK_VALUE, crc.getValue());
+    }
+
+    @Test
+    public void matchesReferenceAtEveryLengthAndOffset() {
+        byte[] data = random(32, 1);
+        // Lengths around one and two slice-by-8 blocks, at every alignment
+        for (int offset = 0; offset < 8; offset++) {
+            for (int length = 0; length <= 17; length++) {
+                int expected = reference(data, offset, length);
+                String at = "offset " + offset + " length " + length;
+                assertEquals(at, expected, Crc16.fcs(data, offset, length));
+                assertEquals(at, expected, Crc16.fcsBytewise(data, offset, length));
+            }
+        }
+    }
+
+    @Test
+    public void matchesReferenceOnLongInput() {
+        byte[] data = random(65536 + 5, 2);
+        assertEquals(reference(data, 0, data.length), Crc16.fcs(data, 0, data.length));
+        assertEquals(reference(data, 3, 1000), Crc16.fcs(data, 3, 1000));
+    }
+
+    @Test
+    public void incrementalUpdateMatchesOneShot() {
+        byte[] data = random(200, 3);
+        int expected = Crc16.fcs(data, 0, data.length);
+        // Split into uneven fragments, as notifications arrive
+        int[] sizes = {1, 7, 8, 9, 15, 16, 17, 20};
+        Crc16 crc = new Crc16();
+        int position = 0;
+        for (int i = 0; position < data.length; i++) {
+            int n = Math.min(sizes[i % sizes.length], data.length - position);
+            crc.update(data, position, n);
+            position += n;
+        }
+        assertEquals(expected, crc.getValue());
+
+        crc.reset();
+        for (byte b : data) {
+            crc.update(b);
+        }
+        assertEquals(expected, crc.getValue());
+    }
+
+    @Test
+    public void byteBufferVariants() {
+        byte[] data = random(100, 4);
+        int expected = reference(data, 10, 50);
+
+        ByteBuffer heap = ByteBuffer.wrap(data, 10, 50);
+        assertEquals(expected, Crc16.fcs(heap));
+        assertEquals("fcs() must not move the position", 10, heap.position());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(50);
+        direct.put(data, 10, 50).flip();
+        assertEquals(expected, Crc16.fcs(direct));
+
+        Crc16 crc = new Crc16();
+        crc.update(heap);
+        assertEquals(expected, crc.getValue());
+        assertFalse("update() consumes the buffer", heap.hasRemaining());
+
+        ByteBuffer slice = ByteBuffer.wrap(data, 5, 60).slice();
+        slice.position(5);
+        slice.limit(55);
+        assertEquals(expected, Crc16.fcs(slice));
+    }
+
+    @Test
+    public void resetStartsOver() {
+        Crc16 crc = new Crc16();
+        crc.update(random(33, 5));
+        crc.reset();
+        assertEquals(0, crc.getValue());
+        crc.update(CHECK_INPUT, 0, CHECK_INPUT.length);
+        assertEquals(CHECK_VALUE, crc.getValue());
+    }
+}
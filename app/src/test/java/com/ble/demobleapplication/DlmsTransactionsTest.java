@@ -0,0 +1,264 @@
+package com.ble.demobleapplication;
+
+import android.os.Handler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link DlmsTransactions} over a connected {@link HdlcLink} whose frames go to a mock sink.
+ * <p>
+ * The local tests' {@link Handler} never runs what is posted to it, so responses are checked
+ * through the outstanding count and timeouts are fired by hand.
+ */
+public class DlmsTransactionsTest {
+
+    private static final int CLIENT = 0x10;
+    private static final int SERVER = 0x03;
+
+    private static final byte[] LLC_RESPONSE = {(byte) 0xE6, (byte) 0xE7, 0x00};
+
+    private final List<byte[]> requests = new ArrayList<>();
+    private final List<byte[]> notifications = new ArrayList<>();
+    private HdlcLink link;
+    private HdlcDecoder fromServer;
+    private DlmsTransactions transactions;
+
+    @Before
+    public void setUp() {
+        final HdlcDecoder toServer = new HdlcDecoder();
+        toServer.addFrameListener(new HdlcDecoder.FrameListener() {
+            @Override
+            public void onFrame(HdlcFrame frame) {
+                if (frame.isInformation()) {
+                    requests.add(frame.copyInfo());
+                }
+            }
+        });
+        link = new HdlcLink(CLIENT, SERVER, 1, new HdlcLink.Sink() {
+            @Override
+            public boolean send(byte[] frame) {
+                toServer.feed(frame, 0, frame.length);
+                return true;
+            }
+        }, new Handler());
+        fromServer = new HdlcDecoder();
+        fromServer.addFrameListener(link);
+        transactions = new DlmsTransactions(link, new Handler());
+        transactions.setNotificationListener(new DlmsTransactions.NotificationListener() {
+            @Override
+            public void onNotification(byte[] apdu) {
+                notifications.add(apdu);
+            }
+        });
+
+        link.connect();
+        byte[] ua = new HdlcLink.Parameters(0x500, 0x500, 1, 1).encode();
+        receive(HdlcFrame.CONTROL_UA | HdlcFrame.CONTROL_POLL_FINAL, ua);
+        assertEquals(HdlcLink.STATE_CONNECTED, link.getState());
+    }
+
+    private void receive(int control, byte[] info) {
+        byte[] frame = HdlcFrame.encode(CLIENT, 1, SERVER, 1, control, false, info, 0, info != null ? info.length : 0);
+        fromServer.feed(frame, 0, frame.length);
+    }
+
+    /**
+     * Sends a request and has the server acknowledge its frame, so the window of one frame is
+     * free again for the next.
+     */
+    private CompletableFuture<byte[]> request(byte[] apdu) {
+        CompletableFuture<byte[]> future = transactions.request(apdu, 1000);
+        receive(((requests.size() % 8) << 5) | HdlcFrame.CONTROL_POLL_FINAL | HdlcFrame.CONTROL_RR, null);
+        return future;
+    }
+
+    private static byte[] get(int invokeId) {
+        return new byte[]{(byte) 0xC0, 0x01, (byte) (0xC0 | invokeId), 0x00, 0x01};
+    }
+
+    private static byte[] response(int... apdu) {
+        byte[] info = new byte[LLC_RESPONSE.length + apdu.length];
+        System.arraycopy(LLC_RESPONSE, 0, info, 0, LLC_RESPONSE.length);
+        for (int i = 0; i < apdu.length; i++) {
+            info[LLC_RESPONSE.length + i] = (byte) apdu[i];
+        }
+        return info;
+    }
+
+    private byte[] lastRequest() {
+        return requests.get(requests.size() - 1);
+    }
+
+    // The invoke-id the transactions put into the last request, after the LLC header
+    private int lastInvokeId() {
+        return lastRequest()[3 + 2] & 0x0F;
+    }
+
+    private static Throwable failure(CompletableFuture<byte[]> future) throws InterruptedException {
+        assertTrue(future.isCompletedExceptionally());
+        try {
+            future.get();
+            throw new AssertionError("not failed");
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+    }
+
+    private void fireTimeouts() throws Exception {
+        Field outstanding = DlmsTransactions.class.getDeclaredField("outstanding");
+        outstanding.setAccessible(true);
+        for (Object transaction : new ArrayList<>((Collection<?>) outstanding.get(transactions))) {
+            Field timeout = transaction.getClass().getDeclaredField("timeout");
+            timeout.setAccessible(true);
+            ((Runnable) timeout.get(transaction)).run();
+        }
+    }
+
+    @Test
+    public void addsLlcHeaderAndKeepsPriorityBits() {
+        request(get(9));
+        byte[] info = lastRequest();
+        assertEquals((byte) 0xE6, info[0]);
+        assertEquals((byte) 0xE6, info[1]);
+        assertEquals(0, info[2]);
+        assertEquals((byte) 0xC0, info[3]);
+        // Invoke-id 9 is replaced with the first free one; the service class and priority stay
+        assertEquals((byte) 0xC0, info[5]);
+    }
+
+    @Test
+    public void allocatesInvokeIdsInTurnAndWraps() {
+        for (int i = 0; i < 20; i++) {
+            request(get(0));
+            assertEquals(i % 16, lastInvokeId());
+            transactions.onApdu(response(0xC4, 0x01, 0xC0 | lastInvokeId(), 0x00));
+            assertEquals(0, transactions.getOutstanding());
+        }
+        assertEquals(0, transactions.getUnmatchedResponseCount());
+    }
+
+    @Test
+    public void failsWhenAllInvokeIdsAreInUse() throws Exception {
+        List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            futures.add(request(get(0)));
+        }
+        assertEquals(16, transactions.getOutstanding());
+        CompletableFuture<byte[]> refused = request(get(0));
+        assertTrue(failure(refused) instanceof GattException);
+        assertEquals(16, transactions.getOutstanding());
+
+        // Cancelling one frees its invoke-id for the next request
+        futures.get(5).cancel(false);
+        assertEquals(15, transactions.getOutstanding());
+        request(get(0));
+        assertEquals(5, lastInvokeId());
+    }
+
+    @Test
+    public void matchesResponsesByInvokeIdOutOfOrder() {
+        request(get(0));
+        int first = lastInvokeId();
+        request(new byte[]{(byte) 0xC1, 0x01, (byte) 0xC0, 0x00});
+        int second = lastInvokeId();
+
+        transactions.onApdu(response(0xC5, 0x01, 0xC0 | second, 0x00));
+        assertEquals(1, transactions.getOutstanding());
+        // The right invoke-id with the wrong tag does not answer the GET
+        transactions.onApdu(response(0xC7, 0x01, 0xC0 | first, 0x00));
+        assertEquals(1, transactions.getUnmatchedResponseCount());
+        transactions.onApdu(response(0xC4, 0x01, 0xC0 | first, 0x00));
+        assertEquals(0, transactions.getOutstanding());
+
+        // A late duplicate matches nothing
+        transactions.onApdu(response(0xC4, 0x01, 0xC0 | first, 0x00));
+        assertEquals(2, transactions.getUnmatchedResponseCount());
+    }
+
+    @Test
+    public void cipheredRequestsMatchCipheredResponsesInOrder() {
+        // glo-get-request and ded-action-request carry no visible invoke-id
+        byte[] glo = {(byte) 0xC8, 0x05, 0x30, 0x00, 0x00, 0x00, 0x01};
+        request(glo);
+        assertArrayEquals(glo, Arrays.copyOfRange(lastRequest(), 3, lastRequest().length));
+        request(new byte[]{(byte) 0xD3, 0x05, 0x30, 0x00, 0x00, 0x00, 0x02});
+
+        transactions.onApdu(response(0xC4, 0x01, 0xC0, 0x00));
+        assertEquals(1, transactions.getUnmatchedResponseCount());
+        transactions.onApdu(response(0xD7, 0x02, 0x30, 0x00));
+        assertEquals(1, transactions.getOutstanding());
+        transactions.onApdu(response(0xCC, 0x02, 0x30, 0x00));
+        assertEquals(0, transactions.getOutstanding());
+    }
+
+    @Test
+    public void exceptionResponseAnswersTheOldestRequest() {
+        request(new byte[]{0x60, 0x00});
+        request(get(0));
+        transactions.onApdu(response(0xD8, 0x01, 0x01));
+        assertEquals(1, transactions.getOutstanding());
+        // The AARQ was answered, so an AARE now matches nothing
+        transactions.onApdu(response(0x61, 0x00));
+        assertEquals(1, transactions.getUnmatchedResponseCount());
+    }
+
+    @Test
+    public void notificationsGoToTheListener() {
+        request(get(0));
+        transactions.onApdu(response(0xC2, 0x00, 0x01));
+        transactions.onApdu(new byte[]{0x0F, 0x00, 0x00, 0x00, 0x01});
+        assertEquals(2, transactions.getNotificationCount());
+        assertEquals(2, notifications.size());
+        assertArrayEquals(new byte[]{(byte) 0xC2, 0x00, 0x01}, notifications.get(0));
+        assertEquals(1, transactions.getOutstanding());
+    }
+
+    @Test
+    public void timeoutFailsRequestAndFreesInvokeId() throws Exception {
+        CompletableFuture<byte[]> future = request(get(0));
+        int invokeId = lastInvokeId();
+        fireTimeouts();
+        assertTrue(failure(future) instanceof TimeoutException);
+        assertEquals(0, transactions.getOutstanding());
+
+        transactions.onApdu(response(0xC4, 0x01, 0xC0 | invokeId, 0x00));
+        assertEquals(1, transactions.getUnmatchedResponseCount());
+    }
+
+    @Test
+    public void rejectsNonRequests() throws Exception {
+        assertTrue(failure(transactions.request(new byte[]{(byte) 0xC4, 0x01}, 1000)) instanceof IllegalArgumentException);
+        assertTrue(failure(transactions.request(new byte[0], 1000)) instanceof IllegalArgumentException);
+        assertTrue(requests.isEmpty());
+    }
+
+    @Test
+    public void failsWhenLinkIsDown() throws Exception {
+        link.reset();
+        CompletableFuture<byte[]> future = transactions.request(get(0), 1000);
+        assertTrue(failure(future) instanceof GattException);
+        assertEquals(0, transactions.getOutstanding());
+    }
+
+    @Test
+    public void resetFailsEveryOutstandingRequest() throws Exception {
+        CompletableFuture<byte[]> first = request(get(0));
+        CompletableFuture<byte[]> second = request(new byte[]{0x62, 0x00});
+        transactions.reset();
+        assertTrue(failure(first) instanceof GattException);
+        assertTrue(failure(second) instanceof GattException);
+        assertEquals(0, transactions.getOutstanding());
+    }
+}
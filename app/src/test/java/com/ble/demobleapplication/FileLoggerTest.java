@@ -0,0 +1,109 @@
+package com.ble.demobleapplication;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link FileLogger}'s ring and writer thread under several producers.
+ * <p>
+ * The local tests have no external storage, so the writer cannot open the log file and counts
+ * the records it takes from the ring as discarded; what is checked is that every record is
+ * accounted for exactly once.
+ */
+public class FileLoggerTest {
+
+    private static final int THREADS = 4;
+    private static final int LINES = 50_000;
+
+    @After
+    public void tearDown() {
+        FileLogger.setOverflowPolicy(FileLogger.OverflowPolicy.DROP);
+    }
+
+    /**
+     * Logs {@link #LINES} lines from each of {@link #THREADS} threads started together.
+     */
+    private static void logConcurrently() throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int id = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < LINES; i++) {
+                        FileLogger.logToFile(null, "producer " + id + " line " + i);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private static long handled() {
+        return FileLogger.getWrittenCount() + FileLogger.getDiscardedCount();
+    }
+
+    /**
+     * Flushes until the writer has handled {@code expected} records or ten seconds have passed.
+     */
+    private static void awaitHandled(long expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (handled() < expected && System.currentTimeMillis() < deadline) {
+            FileLogger.flush();
+            Thread.sleep(10);
+        }
+        assertEquals(expected, handled());
+    }
+
+    @Test
+    public void blockingProducersLoseNothing() throws InterruptedException {
+        FileLogger.setOverflowPolicy(FileLogger.OverflowPolicy.BLOCK);
+        long logged = FileLogger.getLoggedCount();
+        long dropped = FileLogger.getDroppedCount();
+        long handled = handled();
+
+        logConcurrently();
+
+        assertEquals(THREADS * LINES, FileLogger.getLoggedCount() - logged);
+        assertEquals(0, FileLogger.getDroppedCount() - dropped);
+        awaitHandled(handled + THREADS * LINES);
+    }
+
+    @Test
+    public void droppingProducersCountEveryLine() throws InterruptedException {
+        FileLogger.setOverflowPolicy(FileLogger.OverflowPolicy.DROP);
+        long logged = FileLogger.getLoggedCount();
+        long dropped = FileLogger.getDroppedCount();
+        long handled = handled();
+
+        logConcurrently();
+
+        long accepted = FileLogger.getLoggedCount() - logged;
+        assertEquals(THREADS * LINES, accepted + FileLogger.getDroppedCount() - dropped);
+        awaitHandled(handled + accepted);
+    }
+
+    @Test
+    public void flushIsCountedWhenTheWriterCatchesUp() throws InterruptedException {
+        long flushes = FileLogger.getFlushCount();
+        long handled = handled();
+        FileLogger.logToFile(null, "one line");
+        awaitHandled(handled + 1);
+        assertTrue(FileLogger.getFlushCount() > flushes);
+        assertTrue(FileLogger.getMaxFlushNanos() >= FileLogger.getLastFlushNanos());
+    }
+}
@@ -0,0 +1,252 @@
+package com.ble.demobleapplication;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link HdlcDecoder} over notification streams that split, merge and corrupt frames.
+ */
+public class HdlcDecoderTest {
+
+    // SNRM with parameter negotiation as sent by a meter
+    private static final byte[] SNRM = HexCodec.decode(
+            "7EA0210223F193730A81801405020500060205000704000000010804000000017F657E", HexCodec.Mode.STRICT);
+
+    private HdlcDecoder decoder;
+    private final List<byte[]> frames = new ArrayList<>();
+    private final List<byte[]> infos = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        decoder = new HdlcDecoder();
+        frames.clear();
+        infos.clear();
+        decoder.addFrameListener(new HdlcDecoder.FrameListener() {
+            @Override
+            public void onFrame(HdlcFrame frame) {
+                frames.add(frame.toByteArray());
+                infos.add(frame.copyInfo());
+            }
+        });
+    }
+
+    private static byte[] frame(byte[] info) {
+        return HdlcFrame.encode(0x01, 1, 0x10, 1, 0x10, false, info, 0, info.length);
+    }
+
+    private static byte[] info(int length, int seed) {
+        byte[] info = new byte[length];
+        for (int i = 0; i < length; i++) {
+            info[i] = (byte) (seed + i * 7);
+        }
+        return info;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] out = new byte[length];
+        int position = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, out, position, part.length);
+            position += part.length;
+        }
+        return out;
+    }
+
+    private void feed(byte[] data) {
+        decoder.feed(data, 0, data.length);
+    }
+
+    @Test
+    public void decodesMeterFrame() {
+        final HdlcFrame[] seen = new HdlcFrame[1];
+        decoder.addFrameListener(new HdlcDecoder.FrameListener() {
+            @Override
+            public void onFrame(HdlcFrame frame) {
+                assertEquals(145, frame.getDestinationAddress());
+                assertEquals(2, frame.getDestinationAddressLength());
+                assertEquals(120, frame.getSourceAddress());
+                assertEquals(1, frame.getSourceAddressLength());
+                assertEquals(HdlcFrame.CONTROL_SNRM, frame.getCommand());
+                assertTrue(frame.isPollFinal());
+                assertFalse(frame.isSegmented());
+                assertEquals(23, frame.getInfoLength());
+                seen[0] = frame;
+            }
+        });
+        feed(SNRM);
+        assertNotNull(seen[0]);
+        assertEquals(1, frames.size());
+        assertArrayEquals(SNRM, frames.get(0));
+        assertEquals(1, decoder.getFramesDecoded());
+    }
+
+    @Test
+    public void decodesFrameSplitAtEveryPosition() {
+        byte[] wire = frame(info(40, 3));
+        for (int split = 1; split < wire.length; split++) {
+            decoder.feed(wire, 0, split);
+            assertEquals("split " + split, 0, frames.size());
+            decoder.feed(wire, split, wire.length - split);
+            assertEquals("split " + split, 1, frames.size());
+            assertArrayEquals(info(40, 3), infos.get(0));
+            frames.clear();
+            infos.clear();
+        }
+        assertEquals(wire.length - 1, decoder.getFramesDecoded());
+    }
+
+    @Test
+    public void decodesFrameFedOneByteAtATime() {
+        byte[] wire = frame(info(100, 9));
+        for (int i = 0; i < wire.length; i++) {
+            decoder.feed(wire, i, 1);
+        }
+        assertEquals(1, frames.size());
+        assertArrayEquals(wire, frames.get(0));
+    }
+
+    @Test
+    public void decodesSeveralFramesInOneNotification() {
+        byte[] first = frame(info(10, 1));
+        byte[] second = frame(info(20, 2));
+        byte[] third = frame(new byte[0]);
+        feed(concat(first, second, third));
+        assertEquals(3, frames.size());
+        assertArrayEquals(info(10, 1), infos.get(0));
+        assertArrayEquals(info(20, 2), infos.get(1));
+        assertEquals(0, infos.get(2).length);
+    }
+
+    @Test
+    public void decodesFramesSharingAFlag() {
+        byte[] first = frame(info(10, 1));
+        byte[] second = frame(info(12, 5));
+        // The closing flag of the first frame also opens the second
+        byte[] shared = concat(first, Arrays.copyOfRange(second, 1, second.length));
+        feed(shared);
+        assertEquals(2, frames.size());
+        assertArrayEquals(info(10, 1), infos.get(0));
+        assertArrayEquals(info(12, 5), infos.get(1));
+    }
+
+    @Test
+    public void dropsFrameWithBadFcsAndResynchronises() {
+        byte[] bad = frame(info(16, 4));
+        bad[bad.length - 5] ^= 0x20;
+        byte[] good = frame(info(16, 8));
+        feed(concat(bad, good));
+        assertEquals(1, frames.size());
+        assertArrayEquals(info(16, 8), infos.get(0));
+        assertEquals(1, decoder.getFcsErrors());
+        assertEquals(0, decoder.getHcsErrors());
+    }
+
+    @Test
+    public void dropsFrameWithBadHcs() {
+        byte[] bad = frame(info(16, 4));
+        // HCS follows flag, format, both addresses and control; fix up the FCS so only the HCS
+        // is wrong
+        bad[6] ^= 0x01;
+        int fcs = Crc16.fcs(bad, 1, bad.length - 4);
+        bad[bad.length - 3] = (byte) fcs;
+        bad[bad.length - 2] = (byte) (fcs >>> 8);
+        feed(concat(bad, frame(info(4, 0))));
+        assertEquals(1, frames.size());
+        assertEquals(1, decoder.getHcsErrors());
+        assertEquals(0, decoder.getFcsErrors());
+    }
+
+    @Test
+    public void discardsGarbageBeforeAFrame() {
+        byte[] garbage = {0x00, 0x11, 0x22, 0x33, (byte) 0xA0, 0x05};
+        feed(concat(garbage, frame(info(8, 1))));
+        assertEquals(1, frames.size());
+        assertEquals(garbage.length, decoder.getBytesDiscarded());
+    }
+
+    @Test
+    public void skipsIdleFlagsAndNoise() {
+        byte[] noise = {HdlcFrame.FLAG, HdlcFrame.FLAG, 0x12, HdlcFrame.FLAG, 0x00, 0x34};
+        feed(concat(noise, frame(info(8, 1)), new byte[]{HdlcFrame.FLAG}));
+        assertEquals(1, frames.size());
+        assertArrayEquals(info(8, 1), infos.get(0));
+    }
+
+    @Test
+    public void resynchronisesAfterATruncatedFrame() {
+        byte[] cut = frame(info(30, 2));
+        byte[] good = frame(info(30, 6));
+        feed(concat(Arrays.copyOf(cut, cut.length / 2), good, frame(info(3, 3))));
+        assertTrue(frames.size() >= 1);
+        assertArrayEquals(info(3, 3), infos.get(infos.size() - 1));
+        assertTrue(decoder.getFramingErrors() + decoder.getFcsErrors() > 0);
+    }
+
+    @Test
+    public void decodesSegmentedFrameAndLongAddresses() {
+        byte[] info = info(5, 1);
+        byte[] wire = HdlcFrame.encode(0x1234, 2, 0x21, 1, 0x32, true, info, 0, info.length);
+        final int[] fields = new int[5];
+        decoder.addFrameListener(new HdlcDecoder.FrameListener() {
+            @Override
+            public void onFrame(HdlcFrame frame) {
+                fields[0] = frame.getDestinationAddress();
+                fields[1] = frame.getDestinationAddressLength();
+                fields[2] = frame.getSourceAddress();
+                fields[3] = frame.isSegmented() ? 1 : 0;
+                fields[4] = frame.getControl();
+            }
+        });
+        feed(wire);
+        assertArrayEquals(new int[]{0x1234, 2, 0x21, 1, 0x32}, fields);
+    }
+
+    @Test
+    public void decodesMaximumLengthFrame() {
+        // Format length 0x7FF: header 5, HCS 2, FCS 2
+        byte[] info = info(HdlcFrame.FORMAT_LENGTH_MASK - 9, 1);
+        byte[] wire = frame(info);
+        feed(concat(wire, wire));
+        assertEquals(2, frames.size());
+        assertArrayEquals(info, infos.get(1));
+    }
+
+    @Test
+    public void resetDropsPartialFrame() {
+        byte[] wire = frame(info(20, 1));
+        decoder.feed(wire, 0, 10);
+        decoder.reset();
+        decoder.feed(wire, 10, wire.length - 10);
+        assertEquals(0, frames.size());
+        feed(wire);
+        assertEquals(1, frames.size());
+    }
+
+    @Test
+    public void removedListenerIsNotCalled() {
+        final int[] calls = new int[1];
+        HdlcDecoder.FrameListener listener = new HdlcDecoder.FrameListener() {
+            @Override
+            public void onFrame(HdlcFrame frame) {
+                calls[0]++;
+            }
+        };
+        decoder.addFrameListener(listener);
+        decoder.addFrameListener(listener);
+        feed(frame(info(1, 1)));
+        decoder.removeFrameListener(listener);
+        feed(frame(info(1, 1)));
+        assertEquals(1, calls[0]);
+        assertEquals(2, frames.size());
+    }
+}
@@ -0,0 +1,110 @@
+package com.ble.demobleapplication;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link HdlcFrame} encoding and control field accessors.
+ */
+public class HdlcFrameTest {
+
+    private static HdlcFrame decode(byte[] wire) {
+        final HdlcFrame[] decoded = new HdlcFrame[1];
+        HdlcDecoder decoder = new HdlcDecoder();
+        decoder.addFrameListener(new HdlcDecoder.FrameListener() {
+            @Override
+            public void onFrame(HdlcFrame frame) {
+                assertNull("more than one frame", decoded[0]);
+                decoded[0] = frame;
+            }
+        });
+        decoder.feed(wire, 0, wire.length);
+        assertNotNull("no frame decoded", decoded[0]);
+        return decoded[0];
+    }
+
+    @Test
+    public void encodesMeterSnrm() {
+        byte[] info = HexCodec.decode("8180140502050006020500070400000001080400000001", HexCodec.Mode.STRICT);
+        byte[] wire = HdlcFrame.encode(145, 2, 120, 1, HdlcFrame.CONTROL_SNRM | HdlcFrame.CONTROL_POLL_FINAL,
+                false, info, 0, info.length);
+        assertEquals("7EA0210223F193730A81801405020500060205000704000000010804000000017F657E", HexCodec.toHex(wire));
+    }
+
+    @Test
+    public void encodesFormatFieldAndFlags() {
+        byte[] info = {1, 2, 3};
+        byte[] wire = HdlcFrame.encode(1, 1, 0x10, 1, 0x10, true, info, 0, info.length);
+        // Format, two addresses, control, HCS, info, FCS
+        int length = 2 + 1 + 1 + 1 + 2 + info.length + 2;
+        assertEquals(length + 2, wire.length);
+        assertEquals(HdlcFrame.FLAG, wire[0]);
+        assertEquals(HdlcFrame.FLAG, wire[wire.length - 1]);
+        int format = ((wire[1] & 0xFF) << 8) | (wire[2] & 0xFF);
+        assertEquals(HdlcFrame.FORMAT_TYPE_3, format & HdlcFrame.FORMAT_TYPE_MASK);
+        assertEquals(HdlcFrame.FORMAT_SEGMENTED, format & HdlcFrame.FORMAT_SEGMENTED);
+        assertEquals(length, format & HdlcFrame.FORMAT_LENGTH_MASK);
+    }
+
+    @Test
+    public void frameWithoutInformationHasNoHcs() {
+        byte[] wire = HdlcFrame.encode(1, 1, 0x10, 1, HdlcFrame.CONTROL_UA, false, null, 0, 0);
+        assertEquals(2 + 2 + 1 + 1 + 1 + 2, wire.length);
+        HdlcFrame frame = decode(wire);
+        assertTrue(frame.isUnnumbered());
+        assertEquals(HdlcFrame.CONTROL_UA, frame.getCommand());
+        assertEquals(0, frame.getInfoLength());
+        assertEquals(0, frame.copyInfo().length);
+    }
+
+    @Test
+    public void informationFrameSequenceNumbers() {
+        // N(R) = 5, P, N(S) = 3
+        int control = (5 << 5) | HdlcFrame.CONTROL_POLL_FINAL | (3 << 1);
+        byte[] info = {0x42};
+        HdlcFrame frame = decode(HdlcFrame.encode(1, 1, 0x10, 1, control, false, info, 0, info.length));
+        assertTrue(frame.isInformation());
+        assertFalse(frame.isSupervisory());
+        assertFalse(frame.isUnnumbered());
+        assertTrue(frame.isPollFinal());
+        assertEquals(3, frame.getSendSequence());
+        assertEquals(5, frame.getReceiveSequence());
+        assertArrayEquals(info, frame.copyInfo());
+    }
+
+    @Test
+    public void supervisoryFrameCommand() {
+        int[] commands = {HdlcFrame.CONTROL_RR, HdlcFrame.CONTROL_RNR, HdlcFrame.CONTROL_REJ, HdlcFrame.CONTROL_SREJ};
+        for (int command : commands) {
+            HdlcFrame frame = decode(HdlcFrame.encode(1, 1, 0x10, 1, (7 << 5) | command, false, null, 0, 0));
+            assertTrue(frame.isSupervisory());
+            assertEquals(command, frame.getCommand());
+            assertEquals(7, frame.getReceiveSequence());
+            assertFalse(frame.isPollFinal());
+        }
+    }
+
+    @Test
+    public void encodesFourByteAddresses() {
+        int destination = (0x12 << 21) | (0x34 << 14) | (0x56 << 7) | 0x78;
+        HdlcFrame frame = decode(HdlcFrame.encode(destination, 4, 0x3FFF, 2, HdlcFrame.CONTROL_DISC, false, null, 0, 0));
+        assertEquals(destination, frame.getDestinationAddress());
+        assertEquals(4, frame.getDestinationAddressLength());
+        assertEquals(0x3FFF, frame.getSourceAddress());
+        assertEquals(2, frame.getSourceAddressLength());
+    }
+
+    @Test
+    public void toByteArrayIsTheWireFrame() {
+        byte[] info = {9, 8, 7, 6};
+        byte[] wire = HdlcFrame.encode(1, 1, 0x10, 1, 0x10, false, info, 0, info.length);
+        assertArrayEquals(wire, decode(wire).toByteArray());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsFrameLongerThanTheFormatField() {
+        byte[] info = new byte[HdlcFrame.FORMAT_LENGTH_MASK];
+        HdlcFrame.encode(1, 1, 0x10, 1, 0x10, false, info, 0, info.length);
+    }
+}
@@ -0,0 +1,447 @@
+package com.ble.demobleapplication;
+
+import android.os.Handler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link HdlcLink} against a scripted server: the link's frames go to a mock sink and the
+ * server's replies are fed back through an {@link HdlcDecoder}.
+ */
+public class HdlcLinkTest {
+
+    private static final int CLIENT = 0x10;
+    private static final int SERVER = 145;
+    private static final int SERVER_LENGTH = 2;
+
+    private static final int RR = HdlcFrame.CONTROL_RR;
+    private static final int RNR = HdlcFrame.CONTROL_RNR;
+    private static final int REJ = HdlcFrame.CONTROL_REJ;
+    private static final int SREJ = HdlcFrame.CONTROL_SREJ;
+    private static final int PF = HdlcFrame.CONTROL_POLL_FINAL;
+
+    /**
+     * A frame the link wrote to the sink.
+     */
+    private static class Sent {
+        int destination;
+        int source;
+        int control;
+        boolean segmented;
+        byte[] info;
+
+        boolean isInformation() {
+            return (control & 0x01) == 0;
+        }
+
+        int sendSequence() {
+            return (control >>> 1) & 0x07;
+        }
+
+        int receiveSequence() {
+            return (control >>> 5) & 0x07;
+        }
+
+        boolean poll() {
+            return (control & PF) != 0;
+        }
+
+        int command() {
+            return (control & 0x03) == 0x01 ? control & 0x0F : control & ~PF;
+        }
+    }
+
+    private final List<Sent> sent = new ArrayList<>();
+    private final List<byte[]> apdus = new ArrayList<>();
+    private final List<HdlcLink.Parameters> connected = new ArrayList<>();
+    private int disconnected;
+    private boolean sinkAccepts = true;
+
+    private HdlcLink link;
+    private HdlcDecoder fromServer;
+
+    @Before
+    public void setUp() {
+        final HdlcDecoder toServer = new HdlcDecoder();
+        toServer.addFrameListener(new HdlcDecoder.FrameListener() {
+            @Override
+            public void onFrame(HdlcFrame frame) {
+                Sent s = new Sent();
+                s.destination = frame.getDestinationAddress();
+                s.source = frame.getSourceAddress();
+                s.control = frame.getControl();
+                s.segmented = frame.isSegmented();
+                s.info = frame.copyInfo();
+                sent.add(s);
+            }
+        });
+        link = new HdlcLink(CLIENT, SERVER, SERVER_LENGTH, new HdlcLink.Sink() {
+            @Override
+            public boolean send(byte[] frame) {
+                toServer.feed(frame, 0, frame.length);
+                return sinkAccepts;
+            }
+        }, new Handler());
+        link.setListener(new HdlcLink.Listener() {
+            @Override
+            public void onConnected(HdlcLink.Parameters parameters) {
+                connected.add(parameters);
+            }
+
+            @Override
+            public void onApdu(byte[] apdu) {
+                apdus.add(apdu);
+            }
+
+            @Override
+            public void onDisconnected() {
+                disconnected++;
+            }
+        });
+        fromServer = new HdlcDecoder();
+        fromServer.addFrameListener(link);
+    }
+
+    private void receive(int control, boolean segmented, byte[] info) {
+        byte[] frame = HdlcFrame.encode(CLIENT, 1, SERVER, SERVER_LENGTH, control, segmented,
+                info, 0, info != null ? info.length : 0);
+        fromServer.feed(frame, 0, frame.length);
+    }
+
+    private void receiveSupervisory(int command, int receiveSequence) {
+        receive((receiveSequence << 5) | PF | command, false, null);
+    }
+
+    private void receiveInformation(int sendSequence, int receiveSequence, boolean last, boolean segmented, byte[] info) {
+        receive((receiveSequence << 5) | (last ? PF : 0) | (sendSequence << 1), segmented, info);
+    }
+
+    /**
+     * Connects with the server stating it receives {@code maxInfo} bytes in a window of
+     * {@code window} frames.
+     */
+    private void connect(int maxInfo, int window) {
+        assertTrue(link.connect());
+        HdlcLink.Parameters server = new HdlcLink.Parameters(maxInfo, maxInfo, window, window);
+        receive(HdlcFrame.CONTROL_UA | PF, false, server.encode());
+        assertEquals(HdlcLink.STATE_CONNECTED, link.getState());
+        sent.clear();
+    }
+
+    private static byte[] bytes(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (seed + i);
+        }
+        return data;
+    }
+
+    private Sent last() {
+        return sent.get(sent.size() - 1);
+    }
+
+    @Test
+    public void snrmAndUaNegotiateParameters() {
+        assertTrue(link.connect());
+        assertEquals(HdlcLink.STATE_CONNECTING, link.getState());
+        assertFalse("already connecting", link.connect());
+
+        assertEquals(1, sent.size());
+        Sent snrm = sent.get(0);
+        assertEquals(HdlcFrame.CONTROL_SNRM, snrm.command());
+        assertTrue(snrm.poll());
+        assertEquals(SERVER, snrm.destination);
+        assertEquals(CLIENT, snrm.source);
+        HdlcLink.Parameters proposed = HdlcLink.Parameters.decode(snrm.info, 0, snrm.info.length);
+        assertEquals(HdlcLink.MAX_WINDOW, proposed.windowTransmit);
+        assertEquals(0x500, proposed.maxInfoTransmit);
+
+        // The server transmits 200 and receives 100 bytes per frame, with windows of 3 and 2
+        receive(HdlcFrame.CONTROL_UA | PF, false, new HdlcLink.Parameters(200, 100, 3, 2).encode());
+        assertEquals(HdlcLink.STATE_CONNECTED, link.getState());
+        assertEquals(1, connected.size());
+        HdlcLink.Parameters negotiated = link.getParameters();
+        assertEquals(100, negotiated.maxInfoTransmit);
+        assertEquals(200, negotiated.maxInfoReceive);
+        assertEquals(2, negotiated.windowTransmit);
+        assertEquals(3, negotiated.windowReceive);
+    }
+
+    @Test
+    public void uaWithoutParametersUsesDefaults() {
+        link.connect();
+        receive(HdlcFrame.CONTROL_UA | PF, false, null);
+        HdlcLink.Parameters negotiated = link.getParameters();
+        assertEquals(HdlcLink.Parameters.DEFAULT_MAX_INFO, negotiated.maxInfoTransmit);
+        assertEquals(HdlcLink.Parameters.DEFAULT_WINDOW, negotiated.windowTransmit);
+    }
+
+    @Test
+    public void parametersRoundTripAndClampWindows() {
+        HdlcLink.Parameters parameters = new HdlcLink.Parameters(0x500, 64, 9, 0);
+        assertEquals(HdlcLink.MAX_WINDOW, parameters.windowTransmit);
+        assertEquals(1, parameters.windowReceive);
+        byte[] info = parameters.encode();
+        HdlcLink.Parameters decoded = HdlcLink.Parameters.decode(info, 0, info.length);
+        assertEquals(0x500, decoded.maxInfoTransmit);
+        assertEquals(64, decoded.maxInfoReceive);
+        assertEquals(HdlcLink.MAX_WINDOW, decoded.windowTransmit);
+        assertEquals(1, decoded.windowReceive);
+    }
+
+    @Test
+    public void sendApduRequiresConnection() {
+        assertFalse(link.sendApdu(bytes(4, 0)));
+        assertTrue(sent.isEmpty());
+    }
+
+    @Test
+    public void segmentsApduToMaxInfoAndPollsOnLastFrame() {
+        connect(16, HdlcLink.MAX_WINDOW);
+        byte[] apdu = bytes(40, 1);
+        assertTrue(link.sendApdu(apdu));
+
+        assertEquals(3, sent.size());
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (int i = 0; i < 3; i++) {
+            Sent frame = sent.get(i);
+            assertTrue(frame.isInformation());
+            assertEquals(i, frame.sendSequence());
+            assertEquals(0, frame.receiveSequence());
+            assertEquals(i < 2, frame.segmented);
+            assertEquals(i == 2, frame.poll());
+            assertTrue(frame.info.length <= 16);
+            joined.write(frame.info, 0, frame.info.length);
+        }
+        assertArrayEquals(apdu, joined.toByteArray());
+    }
+
+    @Test
+    public void windowLimitsUnacknowledgedFrames() {
+        connect(8, 2);
+        link.sendApdu(bytes(40, 1));
+
+        // Two frames, the second polls
+        assertEquals(2, sent.size());
+        assertTrue(sent.get(1).poll());
+
+        receiveSupervisory(RR, 2);
+        assertEquals(4, sent.size());
+        assertEquals(2, sent.get(2).sendSequence());
+        assertEquals(3, sent.get(3).sendSequence());
+
+        receiveSupervisory(RR, 4);
+        assertEquals(5, sent.size());
+        assertEquals(4, last().sendSequence());
+        assertFalse(last().segmented);
+        assertTrue(last().poll());
+        assertEquals(0, link.getFramesRetransmitted());
+    }
+
+    @Test
+    public void sequenceNumbersWrapModuloEight() {
+        connect(128, 1);
+        for (int i = 0; i < 10; i++) {
+            link.sendApdu(bytes(4, i));
+            assertEquals(i % 8, last().sendSequence());
+            receiveSupervisory(RR, (i + 1) % 8);
+        }
+        assertEquals(10, sent.size());
+        assertEquals(0, link.getFramesRetransmitted());
+    }
+
+    @Test
+    public void receivesApduAndAcknowledgesIt() {
+        connect(128, HdlcLink.MAX_WINDOW);
+        link.sendApdu(bytes(4, 0));
+        receiveInformation(0, 1, true, false, bytes(5, 9));
+
+        assertEquals(1, apdus.size());
+        assertArrayEquals(bytes(5, 9), apdus.get(0));
+
+        // The next frame carries N(R) = 1
+        link.sendApdu(bytes(4, 0));
+        assertEquals(1, last().receiveSequence());
+        assertEquals(1, last().sendSequence());
+    }
+
+    @Test
+    public void reassemblesSegmentedResponse() {
+        connect(128, HdlcLink.MAX_WINDOW);
+        link.sendApdu(bytes(4, 0));
+
+        receiveInformation(0, 1, true, true, bytes(3, 1));
+        assertTrue(apdus.isEmpty());
+        // Asks for the next segment
+        assertEquals(RR, last().command());
+        assertEquals(1, last().receiveSequence());
+
+        receiveInformation(1, 1, false, true, bytes(3, 4));
+        receiveInformation(2, 1, true, false, bytes(2, 7));
+        assertEquals(1, apdus.size());
+        assertArrayEquals(bytes(8, 1), apdus.get(0));
+    }
+
+    @Test
+    public void outOfSequenceFrameIsRejected() {
+        connect(128, HdlcLink.MAX_WINDOW);
+        link.sendApdu(bytes(4, 0));
+        // N(S) = 1 while 0 is expected
+        receiveInformation(1, 1, true, false, bytes(3, 1));
+
+        assertTrue(apdus.isEmpty());
+        assertEquals(REJ, last().command());
+        assertEquals(0, last().receiveSequence());
+        assertTrue(last().poll());
+    }
+
+    @Test
+    public void rejRetransmitsEverythingFromNr() {
+        connect(4, HdlcLink.MAX_WINDOW);
+        link.sendApdu(bytes(12, 0));
+        assertEquals(3, sent.size());
+
+        receiveSupervisory(REJ, 1);
+        assertEquals(5, sent.size());
+        assertEquals(1, sent.get(3).sendSequence());
+        assertFalse(sent.get(3).poll());
+        assertEquals(2, sent.get(4).sendSequence());
+        assertTrue(sent.get(4).poll());
+        assertArrayEquals(sent.get(1).info, sent.get(3).info);
+        assertEquals(2, link.getFramesRetransmitted());
+    }
+
+    @Test
+    public void srejRetransmitsOnlyTheNamedFrame() {
+        connect(4, HdlcLink.MAX_WINDOW);
+        link.sendApdu(bytes(12, 0));
+
+        receiveSupervisory(SREJ, 1);
+        assertEquals(4, sent.size());
+        assertEquals(1, last().sendSequence());
+        assertTrue(last().poll());
+        assertArrayEquals(sent.get(1).info, last().info);
+        assertEquals(1, link.getFramesRetransmitted());
+    }
+
+    @Test
+    public void unacknowledgedFramesAreResentAfterFinalRr() {
+        connect(4, HdlcLink.MAX_WINDOW);
+        link.sendApdu(bytes(8, 0));
+
+        // The server only saw the first frame
+        receiveSupervisory(RR, 1);
+        assertEquals(3, sent.size());
+        assertEquals(1, last().sendSequence());
+        assertEquals(1, link.getFramesRetransmitted());
+    }
+
+    @Test
+    public void receiveSequenceOutsideWindowIsIgnored() {
+        connect(4, HdlcLink.MAX_WINDOW);
+        link.sendApdu(bytes(8, 0));
+        // Only N(S) 0 and 1 are outstanding
+        receiveSupervisory(RR, 5);
+        assertEquals(2, sent.size());
+        assertEquals(0, link.getFramesRetransmitted());
+    }
+
+    @Test
+    public void rnrHoldsTransmissionUntilRr() {
+        connect(4, 1);
+        link.sendApdu(bytes(4, 0));
+        receiveSupervisory(RNR, 1);
+        link.sendApdu(bytes(4, 1));
+        assertEquals(1, sent.size());
+
+        receiveSupervisory(RR, 1);
+        assertEquals(2, sent.size());
+        assertEquals(1, last().sendSequence());
+    }
+
+    @Test
+    public void framesForOtherStationsAreIgnored() {
+        link.connect();
+        byte[] ua = HdlcFrame.encode(CLIENT + 1, 1, SERVER, SERVER_LENGTH, HdlcFrame.CONTROL_UA | PF, false, null, 0, 0);
+        fromServer.feed(ua, 0, ua.length);
+        assertEquals(HdlcLink.STATE_CONNECTING, link.getState());
+    }
+
+    @Test
+    public void discAndUaCloseTheLink() {
+        connect(128, 1);
+        link.disconnect();
+        assertEquals(HdlcLink.STATE_DISCONNECTING, link.getState());
+        assertEquals(HdlcFrame.CONTROL_DISC, last().command());
+
+        receive(HdlcFrame.CONTROL_UA | PF, false, null);
+        assertEquals(HdlcLink.STATE_DISCONNECTED, link.getState());
+        assertEquals(1, disconnected);
+    }
+
+    @Test
+    public void dmClosesTheLinkAndDropsQueuedFrames() {
+        connect(4, 1);
+        link.sendApdu(bytes(12, 0));
+        receive(HdlcFrame.CONTROL_DM | PF, false, null);
+        assertEquals(HdlcLink.STATE_DISCONNECTED, link.getState());
+        assertEquals(1, disconnected);
+
+        // A new connection starts again at N(S) = 0 with nothing queued
+        connect(4, 1);
+        link.sendApdu(bytes(2, 0));
+        assertEquals(1, sent.size());
+        assertEquals(0, last().sendSequence());
+    }
+
+    @Test
+    public void resetClosesWithoutDisc() {
+        connect(128, 1);
+        link.reset();
+        assertEquals(HdlcLink.STATE_DISCONNECTED, link.getState());
+        assertTrue(sent.isEmpty());
+        assertEquals(1, disconnected);
+    }
+
+    @Test
+    public void unansweredSnrmIsRepeatedThenGivenUp() throws Exception {
+        link.connect();
+        Field field = HdlcLink.class.getDeclaredField("responseTimeout");
+        field.setAccessible(true);
+        Runnable timeout = (Runnable) field.get(link);
+        for (int i = 0; i < 3; i++) {
+            timeout.run();
+            assertEquals(HdlcLink.STATE_CONNECTING, link.getState());
+        }
+        assertEquals(4, sent.size());
+        timeout.run();
+        assertEquals(HdlcLink.STATE_DISCONNECTED, link.getState());
+        assertEquals(1, disconnected);
+    }
+
+    @Test
+    public void timeoutWhileConnectedPollsWithRr() throws Exception {
+        connect(4, HdlcLink.MAX_WINDOW);
+        link.sendApdu(bytes(4, 0));
+        Field field = HdlcLink.class.getDeclaredField("responseTimeout");
+        field.setAccessible(true);
+        ((Runnable) field.get(link)).run();
+        assertEquals(RR, last().command());
+        assertTrue(last().poll());
+    }
+
+    @Test
+    public void refusedFrameIsStillCounted() {
+        sinkAccepts = false;
+        link.connect();
+        assertEquals(1, link.getFramesSent());
+    }
+}
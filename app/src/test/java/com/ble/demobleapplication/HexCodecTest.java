@@ -0,0 +1,165 @@
+package com.ble.demobleapplication;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link HexCodec} round trips and what each {@link HexCodec.Mode} accepts.
+ */
+public class HexCodecTest {
+
+    private static byte[] allBytes() {
+        byte[] data = new byte[256];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+    private static void assertRejected(String hex, HexCodec.Mode mode) {
+        try {
+            HexCodec.decode(hex, mode);
+            fail(mode + " accepted \"" + hex + "\"");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            HexCodec.decodedLength(hex, mode);
+            fail(mode + " gave a length for \"" + hex + "\"");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void encodesUpperCase() {
+        assertEquals("00017F80FF", HexCodec.toHex(new byte[]{0, 1, 0x7F, (byte) 0x80, (byte) 0xFF}));
+        assertEquals("", HexCodec.toHex(new byte[0]));
+        assertEquals("0A:0B:0C", HexCodec.toHex(new byte[]{10, 11, 12}, 0, 3, ':'));
+        assertEquals("0B 0C", HexCodec.toHex(new byte[]{10, 11, 12}, 1, 2, ' '));
+    }
+
+    @Test
+    public void encodedLength() {
+        assertEquals(0, HexCodec.encodedLength(0, ' '));
+        assertEquals(2, HexCodec.encodedLength(1, ' '));
+        assertEquals(8, HexCodec.encodedLength(3, ' '));
+        assertEquals(6, HexCodec.encodedLength(3, HexCodec.NO_SEPARATOR));
+    }
+
+    @Test
+    public void roundTripsEveryByteValue() {
+        byte[] data = allBytes();
+        String hex = HexCodec.toHex(data);
+        assertArrayEquals(data, HexCodec.decode(hex, HexCodec.Mode.STRICT));
+        assertArrayEquals(data, HexCodec.decode(hex, HexCodec.Mode.LENIENT));
+        assertArrayEquals(data, HexCodec.decode(hex.toLowerCase(), HexCodec.Mode.STRICT));
+        for (char separator : new char[]{' ', ':', '-', ',', '.'}) {
+            String separated = HexCodec.toHex(data, 0, data.length, separator);
+            assertArrayEquals(data, HexCodec.decode(separated, HexCodec.Mode.LENIENT));
+            assertRejected(separated, HexCodec.Mode.STRICT);
+        }
+    }
+
+    @Test
+    public void encodesIntoCallerBuffers() {
+        byte[] data = {1, 2, (byte) 0xAB};
+        char[] chars = new char[10];
+        int written = HexCodec.encode(data, 0, data.length, chars, 1, '-');
+        assertEquals(8, written);
+        assertEquals("01-02-AB", new String(chars, 1, written));
+
+        StringBuilder text = new StringBuilder("x=");
+        assertEquals("x=0102AB", HexCodec.encode(data, 0, data.length, text, HexCodec.NO_SEPARATOR).toString());
+
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        buffer.position(1);
+        assertEquals("02 AB", HexCodec.encode(buffer, new StringBuilder(), ' ').toString());
+        assertEquals(1, buffer.position());
+    }
+
+    @Test
+    public void decodesIntoCallerBuffers() {
+        byte[] out = new byte[4];
+        assertEquals(2, HexCodec.decode("A1B2", out, 1, HexCodec.Mode.STRICT));
+        assertArrayEquals(new byte[]{0, (byte) 0xA1, (byte) 0xB2, 0}, out);
+
+        ByteBuffer heap = ByteBuffer.allocate(4);
+        heap.put((byte) 9);
+        assertEquals(2, HexCodec.decode("0x01 02", heap, HexCodec.Mode.LENIENT));
+        assertEquals(3, heap.position());
+        assertEquals(2, heap.get(2));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(2);
+        assertEquals(2, HexCodec.decode("FFEE", direct, HexCodec.Mode.STRICT));
+        assertEquals((byte) 0xEE, direct.get(1));
+    }
+
+    @Test
+    public void lenientAcceptsPrefixAndSeparatorsBetweenBytes() {
+        byte[] expected = {0x7E, (byte) 0xA0, 0x21};
+        String[] inputs = {"0x7EA021", "0X7ea021", "7E A0 21", "7E:A0:21", "7E-A0-21", " 7E,A0.21 ",
+                "7E\tA0\r\n21", "0x7E A0  21"};
+        for (String input : inputs) {
+            assertArrayEquals(input, expected, HexCodec.decode(input, HexCodec.Mode.LENIENT));
+            assertEquals(input, 3, HexCodec.decodedLength(input, HexCodec.Mode.LENIENT));
+        }
+    }
+
+    @Test
+    public void lenientRejectsSeparatorInsideAByte() {
+        assertRejected("A B", HexCodec.Mode.LENIENT);
+        assertRejected("7E A 021", HexCodec.Mode.LENIENT);
+        assertRejected("0x7:E", HexCodec.Mode.LENIENT);
+    }
+
+    @Test
+    public void strictRejectsPrefixAndSeparators() {
+        assertRejected("0x7E", HexCodec.Mode.STRICT);
+        assertRejected("7E A0", HexCodec.Mode.STRICT);
+        assertRejected(" 7E", HexCodec.Mode.STRICT);
+    }
+
+    @Test
+    public void bothModesRejectOddDigitCountsAndNonHex() {
+        for (HexCodec.Mode mode : HexCodec.Mode.values()) {
+            assertRejected("7", mode);
+            assertRejected("7EA", mode);
+            assertRejected("7G", mode);
+            // Non-ASCII digits and spaces, including full-width digits Character.digit() accepts
+            assertRejected("7\u00C9", mode);
+            assertRejected("\uFF17\uFF25", mode);
+            assertRejected("7E\u00A0A0", mode);
+        }
+        assertRejected("0x", HexCodec.Mode.STRICT);
+        assertEquals(0, HexCodec.decode("", HexCodec.Mode.STRICT).length);
+        assertEquals(0, HexCodec.decode("0x", HexCodec.Mode.LENIENT).length);
+    }
+
+    @Test
+    public void errorNamesTheOffendingCharacter() {
+        try {
+            HexCodec.decode("7EZ0", HexCodec.Mode.STRICT);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("'Z' at 2"));
+        }
+    }
+
+    @Test
+    public void matchesStringFormat() {
+        byte[] data = new byte[244];
+        new Random(1).nextBytes(data);
+        StringBuilder formatted = new StringBuilder(data.length * 3);
+        for (int i = 0; i < data.length; i++) {
+            if (i > 0) {
+                formatted.append(' ');
+            }
+            formatted.append(String.format("%02X", data[i]));
+        }
+        assertEquals(formatted.toString(), HexCodec.toHex(data, 0, data.length, ' '));
+        assertEquals(formatted.toString().replace(" ", ""), HexCodec.toHex(data));
+    }
+}
@@ -0,0 +1,296 @@
+package com.ble.demobleapplication;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link LogSegments} rotation, index, retention and compression.
+ * <p>
+ * The local tests' {@link android.os.Handler} never runs what is posted to it, so segments are
+ * compressed by calling the compressor's method directly.
+ */
+public class LogSegmentsTest {
+
+    private static final String BASE = "app_log";
+    private static final int LINES = 3000;
+    private static final int LINES_PER_SEGMENT = 250;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private long now;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = folder.newFolder("logs");
+        now = System.currentTimeMillis();
+    }
+
+    private File active() {
+        return new File(dir, BASE + ".txt");
+    }
+
+    private static long lineMillis(long base, int line) {
+        return base + line * 1000L;
+    }
+
+    /**
+     * Writes {@link #LINES} lines, closing the active file as a segment every
+     * {@link #LINES_PER_SEGMENT} of them, as {@link FileLogger} rotates.
+     */
+    private void writeLines(LogSegments segments, long base) throws IOException {
+        for (int first = 0; first < LINES; first += LINES_PER_SEGMENT) {
+            int last = Math.min(first + LINES_PER_SEGMENT, LINES) - 1;
+            try (Writer writer = new FileWriter(active(), true)) {
+                for (int line = first; line <= last; line++) {
+                    writer.write(lineMillis(base, line) + " line " + line + "\n");
+                }
+            }
+            assertTrue(segments.close(active(), lineMillis(base, first), lineMillis(base, last)));
+            assertFalse(active().exists());
+        }
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        InputStream in = new FileInputStream(file);
+        if (file.getName().endsWith(".gz")) {
+            in = new GZIPInputStream(in);
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    private List<String> readIndex() throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(new File(dir, BASE + ".index")))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.startsWith("#")) {
+                    lines.add(line);
+                }
+            }
+        }
+        return lines;
+    }
+
+    private static void compress(LogSegments segments, LogSegments.Segment segment) throws Exception {
+        Method compress = LogSegments.class.getDeclaredMethod("compress", LogSegments.Segment.class);
+        compress.setAccessible(true);
+        compress.invoke(segments, segment);
+    }
+
+    private String[] leftovers() {
+        return dir.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File parent, String name) {
+                return name.endsWith(".tmp");
+            }
+        });
+    }
+
+    @Test
+    public void keepsEveryLineAcrossRotation() throws IOException {
+        LogSegments segments = new LogSegments(dir, BASE);
+        writeLines(segments, now - LINES * 1000L);
+
+        List<LogSegments.Segment> list = segments.getSegments();
+        assertEquals(LINES / LINES_PER_SEGMENT, list.size());
+        int line = 0;
+        for (int i = 0; i < list.size(); i++) {
+            LogSegments.Segment segment = list.get(i);
+            assertEquals(i + 1, segment.getNumber());
+            assertFalse(segment.isCompressed());
+            for (String text : readLines(new File(dir, BASE + "." + segment.getNumber() + ".txt"))) {
+                assertTrue(text, text.endsWith(" line " + line));
+                line++;
+            }
+        }
+        assertEquals(LINES, line);
+    }
+
+    @Test
+    public void findsSegmentsByTime() throws IOException {
+        long base = now - LINES * 1000L;
+        LogSegments segments = new LogSegments(dir, BASE);
+        writeLines(segments, base);
+
+        // Lines 600 to 760 are in the third and fourth segment
+        List<File> files = segments.find(lineMillis(base, 600), lineMillis(base, 760));
+        assertEquals(2, files.size());
+        assertEquals(BASE + ".3.txt", files.get(0).getName());
+        assertEquals(BASE + ".4.txt", files.get(1).getName());
+        assertTrue(segments.find(now + 1000, now + 2000).isEmpty());
+        assertEquals(LINES / LINES_PER_SEGMENT, segments.find(0, Long.MAX_VALUE).size());
+    }
+
+    @Test
+    public void indexIsRewrittenAndReloaded() throws Exception {
+        long base = now - LINES * 1000L;
+        LogSegments segments = new LogSegments(dir, BASE);
+        writeLines(segments, base);
+        compress(segments, segments.getSegments().get(0));
+
+        List<String> index = readIndex();
+        assertEquals(LINES / LINES_PER_SEGMENT, index.size());
+        assertEquals("1 " + lineMillis(base, 0) + " " + lineMillis(base, LINES_PER_SEGMENT - 1) + " "
+                + new File(dir, BASE + ".1.txt.gz").length() + " " + BASE + ".1.txt.gz", index.get(0));
+        assertFalse(new File(dir, BASE + ".index.tmp").exists());
+
+        LogSegments reloaded = new LogSegments(dir, BASE);
+        assertEquals(segments.getSegments().size(), reloaded.getSegments().size());
+        assertEquals(segments.getTotalBytes(), reloaded.getTotalBytes());
+        assertTrue(reloaded.getSegments().get(0).isCompressed());
+
+        // Numbering carries on, also past files missing from the index
+        assertTrue(new File(dir, BASE + ".20.txt").createNewFile());
+        reloaded = new LogSegments(dir, BASE);
+        assertTrue(active().createNewFile());
+        assertTrue(reloaded.close(active(), now, now));
+        List<LogSegments.Segment> list = reloaded.getSegments();
+        assertEquals(21, list.get(list.size() - 1).getNumber());
+    }
+
+    @Test
+    public void indexSkipsMissingFilesAndBadLines() throws IOException {
+        LogSegments segments = new LogSegments(dir, BASE);
+        writeLines(segments, now - LINES * 1000L);
+        assertTrue(new File(dir, BASE + ".2.txt").delete());
+        try (Writer writer = new FileWriter(new File(dir, BASE + ".index"), true)) {
+            writer.write("x 1 2 3 " + BASE + ".1.txt\n");
+        }
+        assertEquals(LINES / LINES_PER_SEGMENT - 1, new LogSegments(dir, BASE).getSegments().size());
+    }
+
+    @Test
+    public void retentionDeletesOldestBySize() throws IOException {
+        LogSegments segments = new LogSegments(dir, BASE);
+        writeLines(segments, now - LINES * 1000L);
+        long total = segments.getTotalBytes();
+        long segmentBytes = new File(dir, BASE + ".12.txt").length();
+
+        segments.setRetention(total / 2, LogSegments.DEFAULT_MAX_AGE_MS);
+        assertTrue(segments.getTotalBytes() <= total / 2);
+        assertTrue(segments.getTotalBytes() > total / 2 - segmentBytes);
+        int oldest = segments.getSegments().get(0).getNumber();
+        for (int number = 1; number <= LINES / LINES_PER_SEGMENT; number++) {
+            assertEquals(number >= oldest, new File(dir, BASE + "." + number + ".txt").exists());
+        }
+        assertEquals(segments.getSegments().size(), readIndex().size());
+
+        // The newest segment stays even if it alone is too big
+        segments.setRetention(1, LogSegments.DEFAULT_MAX_AGE_MS);
+        assertEquals(1, segments.getSegments().size());
+        assertEquals(LINES / LINES_PER_SEGMENT, segments.getSegments().get(0).getNumber());
+    }
+
+    @Test
+    public void retentionDeletesOldestByAge() throws IOException {
+        LogSegments segments = new LogSegments(dir, BASE);
+        // Lines one second apart ending now: only the last four segments end within 1000 s
+        writeLines(segments, now - LINES * 1000L);
+        segments.setRetention(LogSegments.DEFAULT_MAX_TOTAL_BYTES, 1000 * 1000L);
+        assertEquals(4, segments.getSegments().size());
+        for (LogSegments.Segment segment : segments.getSegments()) {
+            assertTrue(now - segment.getLastMillis() <= 1000 * 1000L);
+        }
+        assertFalse(new File(dir, BASE + ".8.txt").exists());
+        assertTrue(new File(dir, BASE + ".9.txt").exists());
+    }
+
+    @Test
+    public void compressionReplacesTheSegment() throws Exception {
+        LogSegments segments = new LogSegments(dir, BASE);
+        writeLines(segments, now - LINES * 1000L);
+        LogSegments.Segment segment = segments.getSegments().get(3);
+        List<String> before = readLines(new File(dir, BASE + ".4.txt"));
+        long total = segments.getTotalBytes();
+
+        compress(segments, segment);
+        assertTrue(segment.isCompressed());
+        assertFalse(new File(dir, BASE + ".4.txt").exists());
+        assertEquals(before, readLines(new File(dir, BASE + ".4.txt.gz")));
+        assertTrue(segments.getTotalBytes() < total);
+        assertEquals(0, leftovers().length);
+
+        List<File> found = segments.find(segment.getFirstMillis(), segment.getFirstMillis());
+        assertEquals(BASE + ".4.txt.gz", found.get(0).getName());
+    }
+
+    @Test
+    public void compressionRacingDeletionLeavesNoFiles() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            final File roundDir = new File(dir, "round" + round);
+            assertTrue(roundDir.mkdirs());
+            dir = roundDir;
+            final LogSegments segments = new LogSegments(dir, BASE);
+            writeLines(segments, now - LINES * 1000L);
+
+            final List<LogSegments.Segment> list = segments.getSegments();
+            final CountDownLatch start = new CountDownLatch(1);
+            final Throwable[] failure = new Throwable[1];
+            Thread compressor = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (LogSegments.Segment segment : list) {
+                            compress(segments, segment);
+                        }
+                    } catch (Throwable t) {
+                        failure[0] = t;
+                    }
+                }
+            });
+            compressor.start();
+            start.countDown();
+            // Keep only the newest segment while the others are being compressed
+            segments.setRetention(1, LogSegments.DEFAULT_MAX_AGE_MS);
+            compressor.join();
+            assertNull(failure[0]);
+
+            assertEquals(1, segments.getSegments().size());
+            LogSegments.Segment kept = segments.getSegments().get(0);
+            String[] names = dir.list();
+            // The kept segment, compressed or not, and the index
+            assertEquals(2, names.length);
+            assertEquals(0, leftovers().length);
+            assertTrue(new File(dir, kept.isCompressed() ? BASE + ".12.txt.gz" : BASE + ".12.txt").exists());
+            assertEquals(1, readIndex().size());
+        }
+    }
+
+    @Test
+    public void failedRenameKeepsTheActiveFile() {
+        LogSegments segments = new LogSegments(dir, BASE);
+        assertFalse(segments.close(active(), now, now));
+        assertTrue(segments.getSegments().isEmpty());
+    }
+}
@@ -0,0 +1,229 @@
+package com.ble.demobleapplication;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link MappedLogFile} wrapping around a small ring, torn records and recovery on reopen.
+ */
+public class MappedLogFileTest {
+
+    private static final int SIZE = 4096;
+    private static final int RECORDS = 500;
+
+    // Header fields, as laid out by MappedLogFile
+    private static final int OFFSET_WRITE = 16;
+    private static final int OFFSET_SEQUENCE = 24;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String message(long sequence) {
+        return "record " + sequence;
+    }
+
+    private static void append(MappedLogFile ring, long sequence) {
+        byte[] payload = message(sequence).getBytes(StandardCharsets.UTF_8);
+        ring.append(1_700_000_000_000L + sequence, payload, 0, payload.length);
+    }
+
+    /**
+     * Asserts the entries are consecutive records ending just before {@code nextSequence}.
+     */
+    private static void assertNewest(List<MappedLogFile.Entry> entries, long nextSequence) {
+        assertFalse(entries.isEmpty());
+        long sequence = nextSequence - entries.size();
+        for (MappedLogFile.Entry entry : entries) {
+            assertEquals(sequence, entry.getSequence());
+            assertEquals(message(sequence), entry.getMessage());
+            assertEquals(1_700_000_000_000L + sequence, entry.getTimeMillis());
+            assertFalse(entry.isEvent());
+            sequence++;
+        }
+    }
+
+    private static long readLong(File file, int offset) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(offset);
+            return raf.readLong();
+        }
+    }
+
+    private static void writeLong(File file, int offset, long value) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(offset);
+            raf.writeLong(value);
+        }
+    }
+
+    @Test
+    public void keepsTheNewestRecordsAfterWrapping() throws IOException {
+        File file = folder.newFile("log.ring");
+        try (MappedLogFile ring = new MappedLogFile(file, SIZE)) {
+            for (int i = 0; i < RECORDS; i++) {
+                append(ring, i);
+            }
+            assertEquals(RECORDS, ring.getNextSequence());
+        }
+        assertEquals(SIZE, file.length());
+
+        List<MappedLogFile.Entry> entries = MappedLogFile.read(file);
+        assertNewest(entries, RECORDS);
+        // Roughly the data area divided by the record size is left
+        int recordSize = MappedLogFile.RECORD_OVERHEAD + message(RECORDS).length();
+        assertTrue(entries.size() >= (SIZE - MappedLogFile.HEADER_SIZE) / recordSize - 1);
+    }
+
+    @Test
+    public void reopenResumesAfterTheLastRecord() throws IOException {
+        File file = folder.newFile("log.ring");
+        try (MappedLogFile ring = new MappedLogFile(file, SIZE)) {
+            for (int i = 0; i < RECORDS; i++) {
+                append(ring, i);
+            }
+        }
+        try (MappedLogFile ring = new MappedLogFile(file, SIZE)) {
+            assertEquals(RECORDS, ring.getNextSequence());
+            append(ring, RECORDS);
+        }
+        assertNewest(MappedLogFile.read(file), RECORDS + 1);
+    }
+
+    @Test
+    public void tornRecordIsSkipped() throws IOException {
+        File file = folder.newFile("log.ring");
+        try (MappedLogFile ring = new MappedLogFile(file, SIZE)) {
+            for (int i = 0; i < 5; i++) {
+                append(ring, i);
+            }
+        }
+        // Corrupt the payload of the third record
+        int recordSize = MappedLogFile.RECORD_OVERHEAD + message(0).length();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long position = MappedLogFile.HEADER_SIZE + 2L * recordSize + 24;
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0x01);
+        }
+
+        List<MappedLogFile.Entry> entries = MappedLogFile.read(file);
+        assertEquals(4, entries.size());
+        assertEquals(0, entries.get(0).getSequence());
+        assertEquals(1, entries.get(1).getSequence());
+        assertEquals(3, entries.get(2).getSequence());
+        assertEquals(4, entries.get(3).getSequence());
+
+        // The writer trusts its header and carries on after the torn record
+        try (MappedLogFile ring = new MappedLogFile(file, SIZE)) {
+            assertEquals(5, ring.getNextSequence());
+        }
+    }
+
+    @Test
+    public void recoversRecordsTheHeaderDoesNotCountYet() throws IOException {
+        File file = folder.newFile("log.ring");
+        long lagOffset;
+        long lagSequence;
+        try (MappedLogFile ring = new MappedLogFile(file, SIZE)) {
+            for (int i = 0; i < 10; i++) {
+                append(ring, i);
+            }
+            ring.force();
+            lagOffset = readLong(file, OFFSET_WRITE);
+            lagSequence = readLong(file, OFFSET_SEQUENCE);
+            for (int i = 10; i < 15; i++) {
+                append(ring, i);
+            }
+        }
+        // As if the header page was not written back before a power loss
+        writeLong(file, OFFSET_WRITE, lagOffset);
+        writeLong(file, OFFSET_SEQUENCE, lagSequence);
+
+        try (MappedLogFile ring = new MappedLogFile(file, SIZE)) {
+            assertEquals(15, ring.getNextSequence());
+            append(ring, 15);
+        }
+        List<MappedLogFile.Entry> entries = MappedLogFile.read(file);
+        assertEquals(16, entries.size());
+        assertNewest(entries, 16);
+    }
+
+    @Test
+    public void recoversAcrossTheWrap() throws IOException {
+        File file = folder.newFile("log.ring");
+        int recordSize = MappedLogFile.RECORD_OVERHEAD + message(100).length();
+        int perLap = (SIZE - MappedLogFile.HEADER_SIZE) / recordSize;
+        long lagOffset;
+        long lagSequence;
+        try (MappedLogFile ring = new MappedLogFile(file, SIZE)) {
+            // Stop two records short of the end of the data area, then wrap
+            for (int i = 100; i < 100 + perLap - 2; i++) {
+                append(ring, i);
+            }
+            ring.force();
+            lagOffset = readLong(file, OFFSET_WRITE);
+            lagSequence = readLong(file, OFFSET_SEQUENCE);
+            for (int i = 0; i < 5; i++) {
+                append(ring, ring.getNextSequence() + 100);
+            }
+        }
+        writeLong(file, OFFSET_WRITE, lagOffset);
+        writeLong(file, OFFSET_SEQUENCE, lagSequence);
+
+        try (MappedLogFile ring = new MappedLogFile(file, SIZE)) {
+            assertEquals(perLap - 2 + 5, ring.getNextSequence());
+        }
+    }
+
+    @Test
+    public void otherSizeStartsOver() throws IOException {
+        File file = folder.newFile("log.ring");
+        try (MappedLogFile ring = new MappedLogFile(file, SIZE)) {
+            append(ring, 0);
+        }
+        try (MappedLogFile ring = new MappedLogFile(file, 2 * SIZE)) {
+            assertEquals(0, ring.getNextSequence());
+        }
+        assertEquals(2 * SIZE, file.length());
+        assertTrue(MappedLogFile.read(file).isEmpty());
+    }
+
+    @Test
+    public void longPayloadIsCut() throws IOException {
+        File file = folder.newFile("log.ring");
+        try (MappedLogFile ring = new MappedLogFile(file, SIZE)) {
+            byte[] payload = new byte[SIZE];
+            Arrays.fill(payload, (byte) 'x');
+            ring.append(0, payload, 0, payload.length);
+            assertEquals(SIZE - MappedLogFile.HEADER_SIZE - MappedLogFile.RECORD_OVERHEAD, ring.getMaxPayload());
+        }
+        List<MappedLogFile.Entry> entries = MappedLogFile.read(file);
+        assertEquals(1, entries.size());
+        assertEquals(SIZE - MappedLogFile.HEADER_SIZE - MappedLogFile.RECORD_OVERHEAD, entries.get(0).getMessage().length());
+    }
+
+    @Test(expected = IOException.class)
+    public void readRejectsOtherFiles() throws IOException {
+        File file = folder.newFile("other.txt");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.write(new byte[64]);
+        }
+        MappedLogFile.read(file);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTooSmallSize() throws IOException {
+        new MappedLogFile(folder.newFile("log.ring"), MappedLogFile.HEADER_SIZE + MappedLogFile.RECORD_OVERHEAD);
+    }
+}